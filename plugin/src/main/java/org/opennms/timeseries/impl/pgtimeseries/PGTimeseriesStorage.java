@@ -1,6 +1,7 @@
 
 package org.opennms.timeseries.impl.pgtimeseries;
 
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -10,10 +11,21 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import javax.sql.DataSource;
@@ -28,73 +40,284 @@ import org.opennms.integration.api.v1.timeseries.TagMatcher;
 import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
 import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
-import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTag;
+import org.opennms.timeseries.impl.pgtimeseries.config.Downsampling;
 import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+import org.opennms.timeseries.impl.pgtimeseries.config.WriteMode;
+import org.opennms.timeseries.impl.pgtimeseries.util.BinaryCopyEncoder;
 import org.opennms.timeseries.impl.pgtimeseries.util.DBUtils;
+import org.opennms.timeseries.impl.pgtimeseries.util.CounterRates;
+import org.opennms.timeseries.impl.pgtimeseries.util.DataSourceFactory;
+import org.opennms.timeseries.impl.pgtimeseries.util.Downsampler;
+import org.opennms.timeseries.impl.pgtimeseries.util.FetchResultCache;
+import org.opennms.timeseries.impl.pgtimeseries.util.FetchStatements;
+import org.opennms.timeseries.impl.pgtimeseries.util.KnownMetricCache;
+import org.opennms.timeseries.impl.pgtimeseries.util.MetricDeleter;
+import org.opennms.timeseries.impl.pgtimeseries.util.MetricIdCache;
 import org.opennms.timeseries.impl.pgtimeseries.util.PGTimeseriesDatabaseInitializer;
+import org.opennms.timeseries.impl.pgtimeseries.util.ReadRouter;
+import org.opennms.timeseries.impl.pgtimeseries.util.RollupLevel;
+import org.opennms.timeseries.impl.pgtimeseries.util.RollupMaintainer;
+import org.opennms.timeseries.impl.pgtimeseries.util.Rollups;
+import org.opennms.timeseries.impl.pgtimeseries.util.SampleShards;
+import org.opennms.timeseries.impl.pgtimeseries.util.SamplesLostException;
+import org.opennms.timeseries.impl.pgtimeseries.util.StatementStats;
+import org.opennms.timeseries.impl.pgtimeseries.util.TagBatch;
+import org.opennms.timeseries.impl.pgtimeseries.util.TagIndex;
+import org.opennms.timeseries.impl.pgtimeseries.util.TagQuery;
+import org.opennms.timeseries.impl.pgtimeseries.util.TimeBuckets;
+import org.opennms.timeseries.impl.pgtimeseries.util.UnnestInsert;
+import org.opennms.timeseries.impl.pgtimeseries.util.WriteBehindQueue;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
 import org.slf4j.Logger;
 
 import com.codahale.metrics.jmx.JmxReporter;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zaxxer.hikari.HikariDataSource;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
-@RequiredArgsConstructor
 public class PGTimeseriesStorage implements TimeSeriesStorage {
 
     private static final Logger RATE_LIMITED_LOGGER = log;
 
+    /** Loads the tags of several metrics at once, followed by the condition on the metric key. */
+    private static final String LOAD_METRICS_SQL = "SELECT fk_pgtimeseries_metric, key, value, type FROM pgtimeseries_tag " +
+            "WHERE fk_pgtimeseries_metric ";
+
     private final DataSource dataSource;
+    /** True if dataSource is the pool for externalDatasourceURL which has to be closed on destroy(). */
+    private final boolean ownsDataSource;
+    /** Separate pool for reads from externalDatasourceURL, null if reads share dataSource. */
+    private final HikariDataSource readPool;
+    private final ReadRouter readRouter;
     private final PGTimeseriesConfig config;
 
     private final MetricRegistry metrics = new MetricRegistry();
     private final Meter samplesWritten = metrics.meter("samplesWritten");
     private final Meter samplesRead = metrics.meter("samplesRead");
     private final Meter samplesLost = metrics.meter("samplesLost");
+    private final Meter copyRowsWritten = metrics.meter("copyRowsWritten");
+    private final Meter copyBytesWritten = metrics.meter("copyBytesWritten");
+    private final Meter tagRowsWritten = metrics.meter("tagRowsWritten");
+    private final Meter tagRowsSkipped = metrics.meter("tagRowsSkipped");
+    private final Meter counterWraps = metrics.meter("counterWraps");
+    private final Meter counterResets = metrics.meter("counterResets");
+    private final Meter rollupReads = metrics.meter("rollupReads");
+    private final Meter downsampledReads = metrics.meter("downsampledReads");
+    private final Timer writeConnectionWait = metrics.timer("writeConnectionWait");
+    private final Timer readConnectionWait = metrics.timer("readConnectionWait");
     final JmxReporter reporter = JmxReporter.forRegistry(metrics).inDomain("org.opennms.timeseries.impl.pgtimeseries").build();
 
+    private final StatementStats statements;
+    private final PGTimeseriesDatabaseInitializer initializer;
+    private final KnownMetricCache knownMetrics;
+    private final WriteBehindQueue writeBehindQueue;
+    /** Writes all but the first shard of large store() calls, null unless writeShards is greater than 1. */
+    private final ExecutorService writers;
+    /** Resolves metric keys to ids, null unless normalizeMetricKeys is enabled. */
+    private final MetricIdCache metricIds;
+    /** Answers findMetrics() from memory, null unless tagIndexEnabled is set. */
+    private final TagIndex tagIndex;
+    /** Reloads the tag index with the tags written by other instances, null unless tagIndexReloadSeconds is set. */
+    private final ScheduledExecutorService tagIndexReloader;
+    /** Caches the settled buckets of fetch results, null unless fetchCacheMaxBytes is set. */
+    private final FetchResultCache fetchCache;
+    /** The column of pgtimeseries_time_series that identifies the series. */
+    private final String seriesColumn;
+    private final FetchStatements fetchStatements;
+    /** The rollup levels and their watermarks, null unless rollupLevels are configured. */
+    private final Rollups rollups;
+    /** Keeps the rollups fresh, null unless rollupLevels are configured. */
+    private final RollupMaintainer rollupMaintainer;
+    /** Deletes metrics in bulk and, with softDelete, tombstones and purges them. */
+    private final MetricDeleter metricDeleter;
+
+    /** Will be called via blueprint. */
+    public PGTimeseriesStorage(final DataSource dataSource, final PGTimeseriesConfig config) {
+        this(config, dataSource);
+    }
+
+    /**
+     * @param dataSource the OpenNMS data source, only used if no externalDatasourceURL is configured.
+     */
     public PGTimeseriesStorage(final PGTimeseriesConfig config, final DataSource dataSource) {
         this.config = Objects.requireNonNull(config);
-        this.dataSource = Objects.requireNonNull(dataSource);
+        this.dataSource = DataSourceFactory.create(config, dataSource, metrics);
+        this.ownsDataSource = this.dataSource != dataSource;
+        this.readPool = DataSourceFactory.createReadPool(config, metrics);
+        this.readRouter = new ReadRouter(config, readPool != null ? readPool : this.dataSource, DataSourceFactory.createReplicaPools(config, metrics), metrics);
+        this.initializer = new PGTimeseriesDatabaseInitializer(this.dataSource, config);
+        this.knownMetrics = new KnownMetricCache(config, metrics);
+        this.statements = new StatementStats(config, metrics);
+        this.metricIds = config.getNormalizeMetricKeys() ? new MetricIdCache(config, metrics, statements) : null;
+        this.seriesColumn = config.getNormalizeMetricKeys() ? "metric_id" : "key";
+        this.rollups = RollupLevel.parse(config.getRollupLevels()).isEmpty() ? null : new Rollups(config, seriesColumn);
+        this.fetchStatements = new FetchStatements(seriesColumn, rollups != null ? rollups.getLevels() : Collections.emptyList());
+        this.rollupMaintainer = rollups != null ? new RollupMaintainer(config, rollups, this.dataSource, metrics) : null;
+        this.metricDeleter = new MetricDeleter(config, seriesColumn, rollups != null ? rollups.getLevels() : Collections.emptyList(), this.dataSource, metrics);
+        this.fetchCache = config.getFetchCacheMaxBytes() > 0 ? new FetchResultCache(config, metrics) : null;
+        this.tagIndex = config.getTagIndexEnabled() ? new TagIndex(metrics) : null;
+        this.tagIndexReloader = tagIndex != null && config.getTagIndexReloadSeconds() > 0
+                ? Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                        .setNameFormat("pgtimeseries-tag-index-%d")
+                        .setDaemon(true)
+                        .build())
+                : null;
+        this.writers = config.getWriteShards() > 1
+                ? Executors.newFixedThreadPool(config.getWriteShards() - 1, new ThreadFactoryBuilder()
+                        .setNameFormat("pgtimeseries-writer-%d")
+                        .setDaemon(true)
+                        .build())
+                : null;
+        this.writeBehindQueue = config.getWriteQueueSize() > 0 ? new WriteBehindQueue(config, this::storeNow, metrics, samplesLost) : null;
     }
     
     @Override
     public void store(List<Sample> entries) throws StorageException {
-        String sql = "INSERT INTO pgtimeseries_time_series(time, key, value)  values (?, ?, ?)";
+        if (writeBehindQueue != null) {
+            writeBehindQueue.enqueue(entries);
+        } else {
+            storeSynchronously(entries);
+        }
+    }
+
+    /**
+     * Writes the samples before returning, bypassing the write-behind queue, e.g. for imports which must neither
+     * drop samples when the queue is full nor lose them silently when a write fails.
+     *
+     * @throws SamplesLostException with the number of samples which were not written.
+     */
+    public void storeSynchronously(List<Sample> entries) throws StorageException {
+        try {
+            storeNow(entries);
+        } catch (SamplesLostException e) {
+            samplesLost.mark(e.getLost());
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the samples right away. Large lists are split by metric into writeShards shards which are written
+     * concurrently, each on its own connection.
+     *
+     * @throws SamplesLostException with the number of samples of all shards which were not written.
+     */
+    private void storeNow(List<Sample> entries) throws StorageException {
+        if (writers == null || entries.size() < config.getWriteShardMinSamples()) {
+            insert(entries);
+            return;
+        }
+        final List<List<Sample>> shards = SampleShards.byMetric(entries, config.getWriteShards());
+        final Map<Future<?>, Integer> futures = new LinkedHashMap<>();
+        for (List<Sample> shard : shards.subList(1, shards.size())) {
+            if (!shard.isEmpty()) {
+                futures.put(writers.submit(() -> {
+                    insert(shard);
+                    return null;
+                }), shard.size());
+            }
+        }
+        StorageException failure = null;
+        int lost = 0;
+        try {
+            // the calling thread writes the first shard itself
+            if (!shards.get(0).isEmpty()) {
+                insert(shards.get(0));
+            }
+        } catch (SamplesLostException e) {
+            failure = e;
+            lost += e.getLost();
+        }
+        for (Map.Entry<Future<?>, Integer> future : futures.entrySet()) {
+            try {
+                future.getKey().get();
+            } catch (ExecutionException e) {
+                final StorageException cause = e.getCause() instanceof StorageException
+                        ? (StorageException) e.getCause()
+                        : new StorageException(e.getCause());
+                lost += cause instanceof SamplesLostException ? ((SamplesLostException) cause).getLost() : future.getValue();
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException(e);
+            }
+        }
+        if (failure != null) {
+            throw new SamplesLostException(lost, failure);
+        }
+    }
+
+    /** @throws SamplesLostException with the number of samples which were not written. */
+    private void insert(List<Sample> entries) throws StorageException {
+        String sql = "INSERT INTO pgtimeseries_time_series(time, " + seriesColumn + ", value)  values (?, ?, ?)";
 
         final DBUtils db = new DBUtils(this.getClass());
         int batchSize = 0;
+        int written = 0;
         Connection connection = null;
         try {
-            if (PGTimeseriesDatabaseInitializer.isExternalDatasourceURLAvailable()) {
-                connection = PGTimeseriesDatabaseInitializer.getWhichDataSourceConnection();
-                log.trace("Store got connection: " + connection.toString());
+            connection = writeConnection();
+            db.watch(connection);
+            PreparedStatement ps = null;
+            CopyManager copyManager = null;
+            if (config.getWriteMode() == WriteMode.COPY) {
+                copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
             } else {
-                connection = this.dataSource.getConnection();
+                ps = statements.prepare(connection, config.getWriteMode() == WriteMode.UNNEST ? UnnestInsert.sql(seriesColumn) : sql);
+                db.watch(ps);
             }
-            db.watch(connection);
-            PreparedStatement ps = connection.prepareStatement(sql);
-            db.watch(ps);
+            final TagBatch tags = new TagBatch();
+            // the known metric cache is consulted once per distinct metric, not once per sample
+            final Set<Metric> checked = new HashSet<>();
             // Partition the samples into collections smaller than max_batch_size
             for (List<Sample> batch : Lists.partition(entries, config.getMaxBatchSize())) {
                 log.debug("Inserting {} samples", batch.size());
+                batchSize = batch.size();
+                Map<String, Long> ids = null;
+                if (metricIds != null) {
+                    ids = metricIds.resolve(connection, batch.stream()
+                            .map(s -> s.getMetric().getKey())
+                            .collect(Collectors.toSet()));
+                }
+                if (copyManager != null) {
+                    copySamples(copyManager, batch, ids);
+                } else if (config.getWriteMode() == WriteMode.UNNEST) {
+                    UnnestInsert.bind(connection, ps, batch, ids);
+                    ps.executeUpdate();
+                    statements.executed(ps);
+                } else {
+                    for (Sample sample : batch) {
+                        ps.setTimestamp(1, new Timestamp(sample.getTime().toEpochMilli()));
+                        if (ids != null) {
+                            ps.setLong(2, ids.get(sample.getMetric().getKey()));
+                        } else {
+                            ps.setString(2, sample.getMetric().getKey());
+                        }
+                        ps.setDouble(3, sample.getValue());
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                    statements.executed(ps);
+                }
                 for (Sample sample : batch) {
-                    ps.setTimestamp(1, new Timestamp(sample.getTime().toEpochMilli()));
-                    ps.setString(2, sample.getMetric().getKey());
-                    ps.setDouble(3, sample.getValue());
-                    ps.addBatch();
-                    storeTags(connection, sample.getMetric(), ImmutableMetric.TagType.intrinsic, sample.getMetric().getIntrinsicTags());
-                    storeTags(connection, sample.getMetric(), ImmutableMetric.TagType.meta, sample.getMetric().getMetaTags());
-                    storeTags(connection, sample.getMetric(), ImmutableMetric.TagType.external, sample.getMetric().getExternalTags());
+                    if (checked.add(sample.getMetric()) && !knownMetrics.isKnown(sample.getMetric())) {
+                        tags.add(sample.getMetric());
+                    }
                 }
-                batchSize = batch.size();
-                ps.executeBatch();
                 samplesWritten.mark(batchSize);
+                written += batchSize;
 
                 if (log.isDebugEnabled()) {
                     String keys = batch.stream()
@@ -104,33 +327,40 @@ public class PGTimeseriesStorage implements TimeSeriesStorage {
                     log.debug("Successfully inserted samples for resources with ids {}", keys);
                 }
             }
+            storeTags(connection, tags);
         } catch (SQLException e) {
-            RATE_LIMITED_LOGGER.error("An error occurred while inserting samples. Some sample may be lost.", e);
-            samplesLost.mark(batchSize);
-            throw new StorageException(e);
+            RATE_LIMITED_LOGGER.error("An error occurred while inserting samples, {} of {} samples were not written.", entries.size() - written, entries.size(), e);
+            throw new SamplesLostException(entries.size() - written, e);
         } finally {
             db.cleanUp();
         }
     }
 
-    private void storeTags(final Connection connection, final Metric metric, final ImmutableMetric.TagType tagType, final Collection<Tag> tags) throws SQLException {
-        final String sql = "INSERT INTO pgtimeseries_tag(fk_pgtimeseries_metric, key, value, type)  values (?, ?, ?, ?) ON CONFLICT (fk_pgtimeseries_metric, key, value, type) DO NOTHING;";
-        final DBUtils db = new DBUtils(this.getClass());
+    /** Streams a batch into pgtimeseries_time_series via binary COPY. */
+    private void copySamples(final CopyManager copyManager, final List<Sample> batch, final Map<String, Long> ids) throws SQLException {
+        final byte[] data = BinaryCopyEncoder.encode(batch, ids);
+        final CopyIn copyIn = copyManager.copyIn(ids != null ? BinaryCopyEncoder.COPY_BY_ID_SQL : BinaryCopyEncoder.COPY_SQL);
         try {
-            PreparedStatement ps = connection.prepareStatement(sql);
-            db.watch(ps);
-            for (Tag tag : tags) {
-                ps.setString(1, metric.getKey());
-                ps.setString(2, tag.getKey());
-                ps.setString(3, tag.getValue());
-                ps.setString(4, tagType.name());
-                ps.addBatch();
-            }
-            ps.executeBatch();
-            ps.close();
+            copyIn.writeToCopy(data, 0, data.length);
+            copyIn.endCopy();
         } finally {
-            db.cleanUp();
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
         }
+        copyRowsWritten.mark(batch.size());
+        copyBytesWritten.mark(data.length);
+    }
+
+    private void storeTags(final Connection connection, final TagBatch tags) throws SQLException {
+        final int inserted = tags.write(connection, statements);
+        tags.getMetrics().forEach(knownMetrics::markKnown);
+        if (tagIndex != null) {
+            tagIndex.addAll(tags.getMetrics());
+        }
+        tagRowsWritten.mark(inserted);
+        tagRowsSkipped.mark(tags.getDuplicates() + tags.size() - inserted);
+        log.debug("Upserted {} distinct tag rows, {} were new", tags.size(), inserted);
     }
 
     @Override
@@ -139,34 +369,26 @@ public class PGTimeseriesStorage implements TimeSeriesStorage {
         if (matchers.isEmpty()) {
             throw new IllegalArgumentException("Collection<TagMatcher> can not be empty");
         }
+        if (tagIndex != null) {
+            return tagIndex.find(matchers);
+        }
 
         final DBUtils db = new DBUtils(this.getClass());
         Connection connection = null;
         try {
 
-            String sql = createMetricsSQL(matchers);
-            if (PGTimeseriesDatabaseInitializer.isExternalDatasourceURLAvailable()) {
-                connection = PGTimeseriesDatabaseInitializer.getWhichDataSourceConnection();
-                log.trace("FindMetrics got connection: " + connection.toString());
-            }
-            else {
-                connection = this.dataSource.getConnection();
-            }
+            TagQuery query = TagQuery.compile(matchers);
+            connection = readConnection();
             db.watch(connection);
 
-            // Get all relevant metricKeys
-            PreparedStatement ps = connection.prepareStatement(sql);
+            // Match the metric keys and load all of their tags in the same statement
+            PreparedStatement ps = statements.prepare(connection, LOAD_METRICS_SQL + "IN ( " + query.getSql() + " )");
             db.watch(ps);
+            query.bind(ps, 0);
             ResultSet rs = ps.executeQuery();
+            statements.executed(ps);
             db.watch(rs);
-            Set<String> metricKeys = new HashSet<>();
-            while (rs.next()) {
-                metricKeys.add(rs.getString("fk_pgtimeseries_metric"));
-            }
-            rs.close();
-
-            // Load the actual metrics
-            return loadMetrics(connection, db, metricKeys);
+            return readMetrics(rs);
         } catch (SQLException e) {
             throw new StorageException(e);
         } finally {
@@ -175,229 +397,188 @@ public class PGTimeseriesStorage implements TimeSeriesStorage {
     }
 
     private List<Metric> loadMetrics(Connection connection, DBUtils db, Collection<String> metricKeys) throws SQLException {
-        List<Metric> metrics = new ArrayList<>();
-        String sql = "SELECT * FROM pgtimeseries_tag WHERE fk_pgtimeseries_metric=?";
-        PreparedStatement ps = connection.prepareStatement(sql);
-        db.watch(ps);
-        for (String metricKey : metricKeys) {
-            ps.setString(1, metricKey);
-            ResultSet rs = ps.executeQuery();
-            db.watch(rs);
-            ImmutableMetric.MetricBuilder metric = ImmutableMetric.builder();
-            boolean intrinsicTagAvailable = false;
-            while (rs.next()) {
-                Tag tag = new ImmutableTag(rs.getString("key"), rs.getString("value"));
-                ImmutableMetric.TagType type = ImmutableMetric.TagType.valueOf(rs.getString("type"));
-                if ((type == ImmutableMetric.TagType.intrinsic)) {
-                    metric.intrinsicTag(tag);
-                    intrinsicTagAvailable = true;
-                } else if (type == ImmutableMetric.TagType.meta) {
-                    metric.metaTag(tag);
-                } else if (type == ImmutableMetric.TagType.external) {
-                    metric.externalTag(tag);
-                } else {
-                    throw new IllegalArgumentException("Unknown ImmutableMetric.TagType " + type);
-                }
-            }
-            if (intrinsicTagAvailable) {
-                // create metric only if at least one intrinsic tag is available. Otherwise we are no valid metric.
-                metrics.add(metric.build());
-            }
-            rs.close();
+        if (metricKeys.isEmpty()) {
+            return Collections.emptyList();
         }
-        return metrics;
+        PreparedStatement ps = statements.prepare(connection, LOAD_METRICS_SQL + "= ANY( ? )");
+        db.watch(ps);
+        ps.setArray(1, connection.createArrayOf("text", metricKeys.toArray()));
+        ResultSet rs = ps.executeQuery();
+        statements.executed(ps);
+        db.watch(rs);
+        return readMetrics(rs);
     }
 
-    String createMetricsSQL(Collection<TagMatcher> matchers) {
-        Objects.requireNonNull(matchers, "matchers collection can not be null");
-        List<TagMatcher> tagsList = new ArrayList<>(matchers);
-        StringBuilder b = new StringBuilder("select distinct t0.fk_pgtimeseries_metric from pgtimeseries_tag t0");
-        for (int i = 1; i < matchers.size(); i++) {
-            b.append(String.format(" join pgtimeseries_tag t%s on t%s.fk_pgtimeseries_metric = t%s.fk_pgtimeseries_metric", i, i - 1, 1));
+    /** Builds the metrics from the tag rows of {@link #LOAD_METRICS_SQL} in a single pass. */
+    private static List<Metric> readMetrics(ResultSet rs) throws SQLException {
+        Map<String, ImmutableMetric.MetricBuilder> builders = new LinkedHashMap<>();
+        Set<String> withIntrinsicTag = new HashSet<>();
+        while (rs.next()) {
+            String metricKey = rs.getString("fk_pgtimeseries_metric");
+            ImmutableMetric.MetricBuilder metric = builders.computeIfAbsent(metricKey, k -> ImmutableMetric.builder());
+            Tag tag = new ImmutableTag(rs.getString("key"), rs.getString("value"));
+            ImmutableMetric.TagType type = ImmutableMetric.TagType.valueOf(rs.getString("type"));
+            if ((type == ImmutableMetric.TagType.intrinsic)) {
+                metric.intrinsicTag(tag);
+                withIntrinsicTag.add(metricKey);
+            } else if (type == ImmutableMetric.TagType.meta) {
+                metric.metaTag(tag);
+            } else if (type == ImmutableMetric.TagType.external) {
+                metric.externalTag(tag);
+            } else {
+                throw new IllegalArgumentException("Unknown ImmutableMetric.TagType " + type);
+            }
         }
-        b.append(" WHERE");
-        for (int i = 0; i < matchers.size(); i++) {
-            if (i > 0) {
-                b.append(" AND");
+        List<Metric> metrics = new ArrayList<>(withIntrinsicTag.size());
+        for (Map.Entry<String, ImmutableMetric.MetricBuilder> metric : builders.entrySet()) {
+            // create metric only if at least one intrinsic tag is available. Otherwise we are no valid metric.
+            if (withIntrinsicTag.contains(metric.getKey())) {
+                metrics.add(metric.getValue().build());
             }
-            TagMatcher matcher = tagsList.get(i);
-            String comp = tagMatcherToComp(matcher);
-            b.append(String.format(" (t%s.key='%s' AND t%s.value %s '%s')", i, matcher.getKey(), i, comp, matcher.getValue()));
-        }
-        b.append(";");
-
-        return b.toString();
-    }
-
-    private String tagMatcherToComp(final TagMatcher matcher) {
-        // see https://www.postgresql.org/docs/11/functions-matching.html#FUNCTIONS-POSIX-REGEXP
-        Objects.requireNonNull(matcher);
-        switch (matcher.getType()) {
-            case EQUALS:
-                return "=";
-            case NOT_EQUALS:
-                return "!=";
-            case EQUALS_REGEX:
-                return "~";
-            case NOT_EQUALS_REGEX:
-                return "!~";
-            default:
-                throw new IllegalArgumentException("Unknown TagMatcher.Type " + matcher.getType().name());
         }
+        return metrics;
     }
 
     @Override
     public List<Sample> getTimeseries(TimeSeriesFetchRequest request) throws StorageException {
+        return metricDeleter.filter(request.getMetric().getKey(), fetch(request));
+    }
+
+    private List<Sample> fetch(TimeSeriesFetchRequest request) throws StorageException {
 
         DBUtils db = new DBUtils();
-        ArrayList<Sample> samples;
+        List<Sample> samples;
         Connection connection = null;
+        boolean cursor = false;
         try {
-            if (PGTimeseriesDatabaseInitializer.isExternalDatasourceURLAvailable()) {
-                connection = PGTimeseriesDatabaseInitializer.getWhichDataSourceConnection();
-                log.trace("getTimeseries got connection: " + connection.toString());
-            }
-            else {
-                connection = this.dataSource.getConnection();
-            }
+            connection = readConnection();
             db.watch(connection);
-            long stepInSeconds = request.getStep().getSeconds();
             List<Metric> metrics = loadMetrics(connection, db, Collections.singletonList(request.getMetric().getKey()));
             if (metrics.isEmpty()) {
                 // we didn't find teh metric => nothing to do.
                 return Collections.emptyList();
             }
             Metric metric = metrics.get(0);
+            boolean counter = isCounter(metric);
+            // downsampled samples keep their own time, they are neither cached nor read from rollups
+            final boolean downsample = isDownsampled(request, counter);
+
+            // Buckets which had settled when they were cached are reused, only the remaining ones are fetched.
+            // With the cache the buckets start at a multiple of the step, so that requests relative to now share them.
+            final boolean cacheable = fetchCache != null && !downsample;
+            final Instant bucketStart = cacheable ? FetchResultCache.alignedStart(request) : request.getStart();
+            TimeBuckets buckets;
+            Timestamp from = null;
+            final FetchResultCache.Entry cached = cacheable ? fetchCache.get(request) : null;
+            if (cached != null && cached.isComplete()) {
+                samples = cached.getBuckets().toSamples(metric);
+                samplesRead.mark(samples.size());
+                return samples;
+            } else if (cached != null) {
+                // only the settled buckets are filled in, the open ones are NaN until they are fetched again
+                buckets = cached.getBuckets();
+                from = new Timestamp(buckets.getTime(cached.getFirstOpenIndex()));
+            } else {
+                buckets = new TimeBuckets(bucketStart, request.getEnd(), request.getStep());
+            }
 
-            String sql;
-            Timestamp start = new java.sql.Timestamp(request.getStart().toEpochMilli());
-            Timestamp end = new java.sql.Timestamp(request.getEnd().toEpochMilli());
-            String type = metric.getFirstTagByKey(MetaTagNames.mtype).getValue();
-            String aggr;
-            if (Metric.Mtype.count.name().equals(type) || Metric.Mtype.counter.name().equals(type)) {
-                // This is a counter
-                if (Aggregation.NONE == request.getAggregation()) {
-                    aggr = "sum";
-                } else {
-                    aggr = toSql(request.getAggregation());
+            final Object series;
+            if (metricIds != null) {
+                series = metricIds.lookup(connection, request.getMetric().getKey());
+                if (series == null) {
+                    return Collections.emptyList();
                 }
-                sql = String.format("WITH intervals AS ( " +
-                "SELECT " +
-                    "n AS start_time, " +
-                    "n + '%s seconds'::pg_catalog.interval AS end_time " +
-                "FROM " +
-                    "generate_series( '%s', '%s', '%s seconds'::pg_catalog.interval ) AS n " +
-            "), raw_values AS ( " +
-                "SELECT " +
-                    "time AS step, " +
-                    "value - lag( value ) OVER ( ORDER BY time ) AS deltaval " +
-                "FROM " +
-                    "pgtimeseries_time_series " +
-                "WHERE " +
-                    "key = ? AND " +
-                    "time > '%s' AND " +
-                    "time < '%s' " +
-            ") " +
-            "SELECT " +
-                "f.start_time AS step, " +
-                "COALESCE( " +
-                    "%s( deltaval ) / %s, " +
-                    "'NaN' " +
-                ") as aggregation " +
-            "FROM " +
-                "raw_values AS r " +
-                "RIGHT JOIN intervals AS f ON r.step >= f.start_time AND " +
-                "r.step < f.end_time " +
-            "GROUP BY " +
-                "f.start_time, " +
-                "f.end_time " +
-            "ORDER BY " +
-                "f.start_time", stepInSeconds, start, end, stepInSeconds, start, end, aggr, stepInSeconds);
-            } else { // Not a counter!
-                if (Aggregation.NONE == request.getAggregation()) {
-                    sql = String.format("WITH intervals AS ( " +
-                    "SELECT " +
-                        "n AS start_time, " +
-                        "n + '%s seconds'::pg_catalog.interval AS end_time " +
-                    "FROM " +
-                        "generate_series( '%s', '%s', '%s seconds'::pg_catalog.interval ) AS n " +
-                "), raw_values AS ( " +
-                    "SELECT " +
-                        "time AS step, " +
-                        "value AS raw_value " +
-                    "FROM " +
-                        "pgtimeseries_time_series " +
-                    "WHERE " +
-                        "key = ? AND " +
-                        "time > '%s' AND " +
-                        "time < '%s' " +
-                ") " +
-                "SELECT " +
-                    "f.start_time AS step, " +
-                    "COALESCE( " +
-                        "raw_value, " +
-                        "'NaN' " +
-                    ") as aggregation " +
-                "FROM " +
-                    "raw_values AS r " +
-                    "RIGHT JOIN intervals AS f ON r.step >= f.start_time AND " +
-                    "r.step < f.end_time " +
-                "GROUP BY " +
-                    "f.start_time, " +
-                    "f.end_time " +
-                "ORDER BY " +
-                    "f.start_time", stepInSeconds, start, end, stepInSeconds, start, end);
+            } else {
+                series = request.getMetric().getKey();
+            }
+
+            Timestamp start = new java.sql.Timestamp(bucketStart.toEpochMilli());
+            Timestamp end = new java.sql.Timestamp(request.getEnd().toEpochMilli());
+            final RollupLevel rollup = rollups != null && !downsample ? rollups.choose(request, counter, Instant.now()) : null;
+            if (rollup != null && from != null) {
+                // the buckets of a rollup are not aligned with the settled buckets, fetch everything
+                buckets = new TimeBuckets(bucketStart, request.getEnd(), request.getStep());
+                from = null;
+            }
+            final String sql;
+            if (rollup != null) {
+                sql = counter ? fetchStatements.getCounterRollup(rollup) : fetchStatements.getRollup(rollup, request.getAggregation());
+            } else {
+                sql = counter || downsample ? fetchStatements.getRaw(from != null) : fetchStatements.get(request.getAggregation(), from != null);
+            }
+            PreparedStatement statement = statements.prepare(connection, sql);
+            db.watch(statement);
+            cursor = beginCursor(connection, statement);
+            if (rollup != null) {
+                final Timestamp watermark = Timestamp.from(rollups.getWatermark(rollup));
+                if (counter) {
+                    FetchStatements.bindCounterRollup(statement, rollup, series, start, watermark, end);
                 } else {
-                    sql = String.format("WITH intervals AS ( " +
-                    "SELECT " +
-                        "n AS start_time, " +
-                        "n + '%s seconds'::pg_catalog.interval AS end_time " +
-                    "FROM " +
-                        "generate_series( '%s', '%s', '%s seconds'::pg_catalog.interval ) AS n " +
-                "), raw_values AS ( " +
-                    "SELECT " +
-                        "time AS step, " +
-                        "value AS raw_value " +
-                    "FROM " +
-                        "pgtimeseries_time_series " +
-                    "WHERE " +
-                        "key = ? AND " +
-                        "time > '%s' AND " +
-                        "time < '%s' " +
-                ") " +
-                "SELECT " +
-                    "f.start_time AS step, " +
-                    "COALESCE( " +
-                        "%s( raw_value ), " +
-                        "'NaN' " +
-                    ") as aggregation " +
-                "FROM " +
-                    "raw_values AS r " +
-                    "RIGHT JOIN intervals AS f ON r.step >= f.start_time AND " +
-                    "r.step < f.end_time " +
-                "GROUP BY " +
-                    "f.start_time, " +
-                    "f.end_time " +
-                "ORDER BY " +
-                    "f.start_time", stepInSeconds, start, end, stepInSeconds, start, end, toSql(request.getAggregation()));
+                    FetchStatements.bindRollup(statement, rollup, series, start, watermark, end, request.getStep());
                 }
+                rollupReads.mark();
+            } else if (counter || downsample) {
+                FetchStatements.bindRaw(statement, from != null, series, start, from, end);
+            } else {
+                FetchStatements.bind(statement, from != null, series, start, from, end, request.getStep());
             }
-            PreparedStatement statement = connection.prepareStatement(sql);
-            db.watch(statement);
 
-            statement.setString(1, request.getMetric().getKey());
+            final Instant fetchedAt = Instant.now();
             ResultSet rs = statement.executeQuery();
+            statements.executed(statement);
             db.watch(rs);
-            samples = new ArrayList<>();
-            while (rs.next()) {
-                long timestamp = rs.getTimestamp("step").getTime();
-                samples.add(ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(timestamp)).value(rs.getDouble("aggregation")).build());
-                samplesRead.mark();
+            if (downsample) {
+                int points = buckets.size();
+                if (config.getDownsamplingMaxPoints() > 0) {
+                    points = Math.min(points, config.getDownsamplingMaxPoints());
+                }
+                final Downsampler downsampler = Downsampler.create(config.getDownsampling(),
+                        request.getStart().toEpochMilli(), request.getEnd().toEpochMilli(), points);
+                while (rs.next()) {
+                    double value = rs.getDouble("value");
+                    downsampler.add(rs.getTimestamp("time").getTime(), rs.wasNull() ? Double.NaN : value);
+                }
+                samples = downsampler.toSamples(metric);
+                samplesRead.mark(samples.size());
+                downsampledReads.mark();
+                return samples;
+            } else if (counter) {
+                final CounterRates rates = new CounterRates(buckets, config.getCounterMaxRate());
+                while (rs.next()) {
+                    long timestamp = rs.getTimestamp("time").getTime();
+                    double value = rs.getDouble("value");
+                    if (rs.wasNull()) {
+                        value = Double.NaN;
+                    }
+                    if (from != null && timestamp < from.getTime()) {
+                        rates.seed(timestamp, value);
+                    } else if (rollup != null) {
+                        rates.add(timestamp, value, rs.getInt("samples"));
+                    } else {
+                        rates.add(timestamp, value);
+                    }
+                }
+                rates.writeTo(buckets, request.getAggregation());
+                counted(rates);
+            } else {
+                while (rs.next()) {
+                    long timestamp = rs.getTimestamp("step").getTime();
+                    double value = rs.getDouble("aggregation");
+                    buckets.set(timestamp, rs.wasNull() ? Double.NaN : value);
+                }
+            }
+            if (cacheable) {
+                fetchCache.put(request, buckets, fetchedAt);
             }
+            samples = buckets.toSamples(metric);
+            samplesRead.mark(samples.size());
         } catch (SQLException e) {
             log.error("Could not retrieve FetchResults", e);
             throw new StorageException(e);
         } finally {
+            if (cursor) {
+                endCursor(connection);
+            }
             if (connection != null) {
                 try {
                     connection.close();
@@ -410,50 +591,282 @@ public class PGTimeseriesStorage implements TimeSeriesStorage {
         return samples;
     }
 
-    @Override
-    public void delete(final Metric metric) throws StorageException {
+    /**
+     * Fetches several series which share start, end and step with a single query, e.g. all series of a graph.
+     * The list at index i of the result holds the samples for the request at index i, it is empty if the metric
+     * is unknown. Requests which are served from the fetch cache or a rollup, are downsampled or are for a
+     * tombstoned metric are fetched one by one, just like {@link #getTimeseries(TimeSeriesFetchRequest)}.
+     */
+    public List<List<Sample>> getTimeseries(List<TimeSeriesFetchRequest> requests) throws StorageException {
+        Objects.requireNonNull(requests, "requests can not be null");
+        if (requests.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final TimeSeriesFetchRequest first = requests.get(0);
+        for (TimeSeriesFetchRequest request : requests) {
+            if (!first.getStart().equals(request.getStart())
+                    || !first.getEnd().equals(request.getEnd())
+                    || !first.getStep().equals(request.getStep())) {
+                throw new IllegalArgumentException("All requests of a batch must share start, end and step");
+            }
+        }
 
+        final List<List<Sample>> results = new ArrayList<>(Collections.nCopies(requests.size(), null));
         DBUtils db = new DBUtils(this.getClass());
         Connection connection = null;
+        boolean cursor = false;
         try {
-            if (PGTimeseriesDatabaseInitializer.isExternalDatasourceURLAvailable()) {
-                connection = PGTimeseriesDatabaseInitializer.getWhichDataSourceConnection();
-                log.trace("Delete got connection: " + connection.toString());
+            connection = readConnection();
+            db.watch(connection);
+
+            final Set<String> keys = requests.stream()
+                    .map(r -> r.getMetric().getKey())
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+            final Map<String, Metric> metricsByKey = new HashMap<>();
+            for (Metric metric : loadMetrics(connection, db, keys)) {
+                metricsByKey.put(metric.getKey(), metric);
             }
-            else {
-                connection = this.dataSource.getConnection();
+
+            // One set of buckets per metric key and result column (see batchColumn) it is requested with, counters
+            // get one set per aggregation
+            final Map<String, Map<String, TimeBuckets>> bucketsByKey = new HashMap<>();
+            final Map<String, Map<Aggregation, TimeBuckets>> counterBucketsByKey = new HashMap<>();
+            final Instant now = Instant.now();
+            for (TimeSeriesFetchRequest request : requests) {
+                final Metric metric = metricsByKey.get(request.getMetric().getKey());
+                if (metric != null && !isBatchable(metric, request, now)) {
+                    continue;
+                } else if (metric != null && isCounter(metric)) {
+                    counterBucketsByKey.computeIfAbsent(metric.getKey(), k -> new EnumMap<>(Aggregation.class))
+                            .computeIfAbsent(request.getAggregation(),
+                                    a -> new TimeBuckets(first.getStart(), first.getEnd(), first.getStep()));
+                } else if (metric != null) {
+                    bucketsByKey.computeIfAbsent(metric.getKey(), k -> new HashMap<>())
+                            .computeIfAbsent(batchColumn(request.getAggregation()),
+                                    c -> new TimeBuckets(first.getStart(), first.getEnd(), first.getStep()));
+                }
             }
-            db.watch(connection);
 
-            PreparedStatement statement = connection.prepareStatement("DELETE FROM pgtimeseries_time_series where key=?");
-            db.watch(statement);
-            statement.setString(1, metric.getKey());
-            int deletedTimeseriesEntries = statement.executeUpdate();
+            final Timestamp start = new Timestamp(first.getStart().toEpochMilli());
+            final Timestamp end = new Timestamp(first.getEnd().toEpochMilli());
+            if (!bucketsByKey.isEmpty()) {
+                PreparedStatement statement = statements.prepare(connection, fetchStatements.getBatch());
+                db.watch(statement);
+                cursor = beginCursor(connection, statement) || cursor;
+
+                final Map<Long, String> keysById = new HashMap<>();
+                final Array series = seriesArray(connection, bucketsByKey.keySet(), keysById);
+                FetchStatements.bindBatch(statement, series, start, end, first.getStep());
+                ResultSet rs = statement.executeQuery();
+                statements.executed(statement);
+                db.watch(rs);
+                while (rs.next()) {
+                    final String key = metricIds != null ? keysById.get(rs.getLong("series")) : rs.getString("series");
+                    final long timestamp = rs.getTimestamp("step").getTime();
+                    for (Map.Entry<String, TimeBuckets> column : bucketsByKey.get(key).entrySet()) {
+                        final double value = rs.getDouble(column.getKey());
+                        column.getValue().set(timestamp, rs.wasNull() ? Double.NaN : value);
+                    }
+                }
+            }
 
-            statement = connection.prepareStatement("DELETE FROM pgtimeseries_tag where fk_pgtimeseries_metric=?");
-            db.watch(statement);
-            statement.setString(1, metric.getKey());
-            int deletedTimeseriesTags = statement.executeUpdate();
+            if (!counterBucketsByKey.isEmpty()) {
+                PreparedStatement statement = statements.prepare(connection, fetchStatements.getCounterBatch());
+                db.watch(statement);
+                cursor = beginCursor(connection, statement) || cursor;
+
+                final Map<Long, String> keysById = new HashMap<>();
+                final Array series = seriesArray(connection, counterBucketsByKey.keySet(), keysById);
+                FetchStatements.bindCounterBatch(statement, series, start, end);
+                ResultSet rs = statement.executeQuery();
+                statements.executed(statement);
+                db.watch(rs);
+                // the rows are ordered by series, the rates of a series are complete once the next one starts
+                String current = null;
+                CounterRates rates = null;
+                while (rs.next()) {
+                    final String key = metricIds != null ? keysById.get(rs.getLong("series")) : rs.getString("series");
+                    if (!key.equals(current)) {
+                        writeRates(rates, counterBucketsByKey.get(current));
+                        current = key;
+                        rates = new CounterRates(counterBucketsByKey.get(key).values().iterator().next(), config.getCounterMaxRate());
+                    }
+                    final double value = rs.getDouble("value");
+                    // a NULL must not be taken as a counter reset to 0
+                    rates.add(rs.getTimestamp("time").getTime(), rs.wasNull() ? Double.NaN : value);
+                }
+                writeRates(rates, counterBucketsByKey.get(current));
+            }
 
-            log.debug("Deleted {} timeseries entries and {} timeseries tags for metric {}", deletedTimeseriesEntries, deletedTimeseriesTags, metric);
+            for (int i = 0; i < requests.size(); i++) {
+                final TimeSeriesFetchRequest request = requests.get(i);
+                final Metric metric = metricsByKey.get(request.getMetric().getKey());
+                if (metric == null) {
+                    results.set(i, Collections.emptyList());
+                    continue;
+                }
+                final TimeBuckets buckets = isCounter(metric)
+                        ? counterBucketsByKey.getOrDefault(metric.getKey(), Collections.emptyMap()).get(request.getAggregation())
+                        : bucketsByKey.getOrDefault(metric.getKey(), Collections.emptyMap()).get(batchColumn(request.getAggregation()));
+                if (buckets == null) {
+                    // not batchable, fetched below
+                    continue;
+                }
+                final List<Sample> samples = buckets.toSamples(metric);
+                samplesRead.mark(samples.size());
+                results.set(i, samples);
+            }
         } catch (SQLException e) {
             log.error("Could not retrieve FetchResults", e);
-            db.cleanUp();
             throw new StorageException(e);
         } finally {
+            if (cursor) {
+                endCursor(connection);
+            }
             db.cleanUp();
         }
+        // after the connection of the batch was returned, each fetch takes its own
+        for (int i = 0; i < requests.size(); i++) {
+            if (results.get(i) == null) {
+                results.set(i, getTimeseries(requests.get(i)));
+            }
+        }
+        return results;
     }
 
-    private String toSql(final Aggregation aggregation) {
-        if (Aggregation.AVERAGE == aggregation) {
-            return "avg";
-        } else if (Aggregation.MAX == aggregation) {
-            return "max";
-        } else if (Aggregation.MIN == aggregation) {
-            return "min";
-        } else {
-            throw new IllegalArgumentException("Unknown aggregation " + aggregation);
+    /**
+     * @return true if the plain batch query gives the same result as {@link #fetch(TimeSeriesFetchRequest)}: the
+     * batch reads neither the fetch cache nor rollups, does not downsample and does not hide tombstoned samples.
+     */
+    private boolean isBatchable(final Metric metric, final TimeSeriesFetchRequest request, final Instant now) {
+        final boolean counter = isCounter(metric);
+        return fetchCache == null
+                && !isDownsampled(request, counter)
+                && (rollups == null || rollups.choose(request, counter, now) == null)
+                && !metricDeleter.isTombstoned(metric.getKey());
+    }
+
+    private boolean isDownsampled(final TimeSeriesFetchRequest request, final boolean counter) {
+        return config.getDownsampling() != Downsampling.NONE && !counter
+                && (request.getAggregation() == Aggregation.NONE || request.getAggregation() == Aggregation.AVERAGE);
+    }
+
+    /**
+     * The PostgreSQL driver only streams a result in chunks of fetchSize rows through a cursor if autocommit is
+     * off, otherwise it buffers the whole result in memory. Returns true if a transaction was started which must
+     * be ended with {@link #endCursor(Connection)}.
+     */
+    private boolean beginCursor(final Connection connection, final PreparedStatement statement) throws SQLException {
+        if (config.getFetchSize() <= 0) {
+            return false;
+        }
+        statement.setFetchSize(config.getFetchSize());
+        if (!connection.getAutoCommit()) {
+            return false;
+        }
+        connection.setAutoCommit(false);
+        return true;
+    }
+
+    private static void endCursor(final Connection connection) {
+        try {
+            connection.commit();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            log.warn("Could not end read transaction", e);
+        }
+    }
+
+    /** The column of the batch fetch query which holds the values of a gauge for the given aggregation. */
+    private static String batchColumn(final Aggregation aggregation) {
+        switch (aggregation) {
+            case NONE:
+            case AVERAGE:
+                return "avg_value";
+            case MIN:
+                return "min_value";
+            case MAX:
+                return "max_value";
+            default:
+                throw new IllegalArgumentException("Unknown aggregation " + aggregation);
+        }
+    }
+
+    /**
+     * @param keysById filled with the metric key of each id if normalizeMetricKeys is enabled.
+     * @return the array of the series of the metric keys to bind to the batch fetch queries.
+     */
+    private Array seriesArray(final Connection connection, final Set<String> keys, final Map<Long, String> keysById) throws SQLException {
+        if (metricIds != null) {
+            metricIds.lookup(connection, keys).forEach((key, id) -> keysById.put(id, key));
+            return connection.createArrayOf("bigint", keysById.keySet().toArray());
+        }
+        return connection.createArrayOf("text", keys.toArray());
+    }
+
+    private void writeRates(final CounterRates rates, final Map<Aggregation, TimeBuckets> buckets) {
+        if (rates == null) {
+            return;
+        }
+        for (Map.Entry<Aggregation, TimeBuckets> aggregation : buckets.entrySet()) {
+            rates.writeTo(aggregation.getValue(), aggregation.getKey());
+        }
+        counted(rates);
+    }
+
+    private void counted(final CounterRates rates) {
+        counterWraps.mark(rates.getWraps());
+        counterResets.mark(rates.getResets());
+    }
+
+    private static boolean isCounter(final Metric metric) {
+        final Tag type = metric.getFirstTagByKey(MetaTagNames.mtype);
+        return type != null && (Metric.Mtype.count.name().equals(type.getValue()) || Metric.Mtype.counter.name().equals(type.getValue()));
+    }
+
+    @Override
+    public void delete(final Metric metric) throws StorageException {
+        delete(Collections.singletonList(metric));
+    }
+
+    /**
+     * Deletes the metrics in one transaction, or tombstones them if softDelete is enabled. Prefer this over
+     * deleting the metrics one by one, each delete touches every partition.
+     */
+    public void delete(final Collection<Metric> metrics) throws StorageException {
+        Objects.requireNonNull(metrics, "metrics can not be null");
+        final Set<String> keys = metrics.stream()
+                .map(Metric::getKey)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        DBUtils db = new DBUtils(this.getClass());
+        try {
+            final Connection connection = writeConnection();
+            db.watch(connection);
+            if (metricDeleter.isSoftDelete()) {
+                metricDeleter.tombstone(connection, keys);
+            } else {
+                final Map<String, Long> ids = metricIds != null ? metricIds.lookup(connection, keys) : null;
+                metricDeleter.delete(connection, keys, ids);
+            }
+            for (String key : keys) {
+                knownMetrics.invalidate(key);
+                if (fetchCache != null) {
+                    fetchCache.invalidate(key);
+                }
+                if (tagIndex != null) {
+                    tagIndex.remove(key);
+                }
+            }
+            log.debug("Deleted {} metrics", keys.size());
+        } catch (SQLException e) {
+            log.error("Could not delete metrics", e);
+            throw new StorageException(e);
+        } finally {
+            db.cleanUp();
         }
     }
 
@@ -464,20 +877,129 @@ public class PGTimeseriesStorage implements TimeSeriesStorage {
 
     public void init() throws StorageException {
         try {
-            new PGTimeseriesDatabaseInitializer(this.dataSource, this.config)
-                    .initializeIfNeeded();
+            initializer.initializeIfNeeded();
+            if (tagIndex != null) {
+                loadTagIndex();
+            }
+            if (rollups != null) {
+                loadRollupWatermarks();
+            }
+            metricDeleter.start();
         } catch (final SQLException e) {
             throw new StorageException(e);
         }
+        readRouter.start();
+        if (writeBehindQueue != null) {
+            writeBehindQueue.start();
+        }
+        if (rollupMaintainer != null) {
+            rollupMaintainer.start();
+        }
+        if (tagIndexReloader != null) {
+            tagIndexReloader.scheduleWithFixedDelay(this::reloadTagIndex, config.getTagIndexReloadSeconds(),
+                    config.getTagIndexReloadSeconds(), TimeUnit.SECONDS);
+        }
         reporter.start();
     }
 
+    private void loadTagIndex() throws SQLException {
+        final DBUtils db = new DBUtils(this.getClass());
+        Connection connection = null;
+        boolean cursor = false;
+        try {
+            connection = writeConnection();
+            db.watch(connection);
+            final PreparedStatement statement = connection.prepareStatement(LOAD_METRICS_SQL + "IS NOT NULL");
+            db.watch(statement);
+            cursor = beginCursor(connection, statement);
+            final ResultSet rs = statement.executeQuery();
+            db.watch(rs);
+            tagIndex.replaceAll(readMetrics(rs));
+            log.info("Loaded the tags of {} metrics into the tag index", tagIndex.size());
+        } finally {
+            if (cursor) {
+                endCursor(connection);
+            }
+            db.cleanUp();
+        }
+    }
+
+    private void reloadTagIndex() {
+        try {
+            loadTagIndex();
+        } catch (SQLException | RuntimeException e) {
+            log.error("Could not reload the tag index", e);
+        }
+    }
+
+    private void loadRollupWatermarks() throws SQLException {
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final Connection connection = writeConnection();
+            db.watch(connection);
+            rollups.loadWatermarks(connection);
+        } finally {
+            db.cleanUp();
+        }
+    }
+
     public void destroy() {
+        metricDeleter.stop();
+        if (tagIndexReloader != null) {
+            tagIndexReloader.shutdownNow();
+        }
+        if (rollupMaintainer != null) {
+            rollupMaintainer.stop();
+        }
+        if (writeBehindQueue != null) {
+            writeBehindQueue.stop();
+        }
+        if (writers != null) {
+            writers.shutdown();
+        }
         reporter.stop();
-        PGTimeseriesDatabaseInitializer.ExtReporter.stop(); // janky
+        readRouter.close();
+        if (readPool != null) {
+            readPool.close();
+        }
+        if (ownsDataSource) {
+            ((HikariDataSource) dataSource).close();
+        }
+    }
+
+    /** Connection for writes, deletes and everything that must see the latest state. */
+    private Connection writeConnection() throws SQLException {
+        try (Timer.Context ignored = writeConnectionWait.time()) {
+            return dataSource.getConnection();
+        }
+    }
+
+    /** Connection for fetches and tag lookups, possibly from a read replica. */
+    private Connection readConnection() throws SQLException {
+        try (Timer.Context ignored = readConnectionWait.time()) {
+            return readRouter.getConnection();
+        }
+    }
+
+    /** The data source all writes use, either the OpenNMS one or the pool for externalDatasourceURL. */
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public PGTimeseriesDatabaseInitializer getInitializer() {
+        return initializer;
     }
 
     public MetricRegistry getMetrics() {
         return metrics;
     }
+
+    /** @return the maintainer of the rollups, null unless rollupLevels are configured. */
+    public RollupMaintainer getRollupMaintainer() {
+        return rollupMaintainer;
+    }
+
+    public MetricDeleter getMetricDeleter() {
+        return metricDeleter;
+    }
 }
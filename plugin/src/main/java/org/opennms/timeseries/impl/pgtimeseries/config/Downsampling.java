@@ -0,0 +1,26 @@
+package org.opennms.timeseries.impl.pgtimeseries.config;
+
+import java.util.Locale;
+
+/**
+ * How gauges are reduced to the number of points of a fetch request.
+ */
+public enum Downsampling {
+    /** The samples of each step are aggregated in PostgreSQL. */
+    NONE,
+    /** Keeps the first, last, minimum and maximum sample of every pixel column, see M4 (Jugel et al., 2014). */
+    M4,
+    /** Keeps the samples which span the largest triangles with their neighbours, see LTTB (Steinarsson, 2013). */
+    LTTB;
+
+    public static Downsampling fromString(final String downsampling) {
+        if (downsampling == null || downsampling.trim().isEmpty()) {
+            return NONE;
+        }
+        try {
+            return Downsampling.valueOf(downsampling.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown downsampling '" + downsampling + "'");
+        }
+    }
+}
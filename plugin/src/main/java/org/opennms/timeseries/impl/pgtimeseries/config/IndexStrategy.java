@@ -0,0 +1,26 @@
+package org.opennms.timeseries.impl.pgtimeseries.config;
+
+import java.util.Locale;
+
+/**
+ * Which indexes are maintained on the pgtimeseries_time_series table.
+ */
+public enum IndexStrategy {
+    /** Separate btree indexes on (time DESC) and on the series column, the layout of earlier versions. */
+    SEPARATE,
+    /** One btree index on (series column, time), matching the filter of every fetch. */
+    COMPOSITE,
+    /** Like COMPOSITE plus a small BRIN index on time for scans over whole time ranges. */
+    COMPOSITE_BRIN;
+
+    public static IndexStrategy fromString(final String indexStrategy) {
+        if (indexStrategy == null || indexStrategy.trim().isEmpty()) {
+            return SEPARATE;
+        }
+        try {
+            return IndexStrategy.valueOf(indexStrategy.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown indexStrategy '" + indexStrategy + "'");
+        }
+    }
+}
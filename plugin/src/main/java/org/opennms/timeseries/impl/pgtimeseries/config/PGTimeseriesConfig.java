@@ -13,6 +13,44 @@ public class PGTimeseriesConfig {
     private final boolean createTablesOnInstall;
     private final int maxBatchSize;
     private final int connectionPoolSize;
+    private final WriteMode writeMode;
+    private final int knownMetricCacheSize;
+    private final int knownMetricCacheTtlSeconds;
+    private final int writeQueueSize;
+    private final int writeThreads;
+    private final int writeFlushSize;
+    private final int writeFlushIntervalMs;
+    private final QueueFullPolicy writeQueueFullPolicy;
+    private final boolean normalizeMetricKeys;
+    private final int metricIdCacheSize;
+    private final IndexStrategy indexStrategy;
+    private final int fetchSize;
+    private final long fetchCacheMaxBytes;
+    private final int fetchCacheSettleSeconds;
+    private final boolean tagIndexEnabled;
+    private final boolean tagTrigramIndex;
+    private final int connectionMinIdle;
+    private final long connectionMaxLifetimeMs;
+    private final long connectionLeakDetectionMs;
+    private final int statementCacheSize;
+    private final int readConnectionPoolSize;
+    private final String readReplicaURLs;
+    private final int prepareThreshold;
+    private final int writeShards;
+    private final int writeShardMinSamples;
+    private final String rollupLevels;
+    private final int rollupIntervalSeconds;
+    private final int rollupDelaySeconds;
+    private final int rollupThreads;
+    private final Downsampling downsampling;
+    private final int downsamplingMaxPoints;
+    private final boolean softDelete;
+    private final int purgeIntervalSeconds;
+    private final int purgeBatchSize;
+    private final int tagIndexReloadSeconds;
+    private final double counterMaxRate;
+    private final int replicaProbeIntervalSeconds;
+    private final int replicaMaxLagSeconds;
 
     public PGTimeseriesConfig() {
         this(builder());
@@ -28,6 +66,44 @@ public class PGTimeseriesConfig {
         this.createTablesOnInstall = builder.createTablesOnInstall;
         this.maxBatchSize = builder.maxBatchSize;
         this.connectionPoolSize = builder.connectionPoolSize;
+        this.writeMode = builder.writeMode;
+        this.knownMetricCacheSize = builder.knownMetricCacheSize;
+        this.knownMetricCacheTtlSeconds = builder.knownMetricCacheTtlSeconds;
+        this.writeQueueSize = builder.writeQueueSize;
+        this.writeThreads = builder.writeThreads;
+        this.writeFlushSize = builder.writeFlushSize;
+        this.writeFlushIntervalMs = builder.writeFlushIntervalMs;
+        this.writeQueueFullPolicy = builder.writeQueueFullPolicy;
+        this.normalizeMetricKeys = builder.normalizeMetricKeys;
+        this.metricIdCacheSize = builder.metricIdCacheSize;
+        this.indexStrategy = builder.indexStrategy;
+        this.fetchSize = builder.fetchSize;
+        this.fetchCacheMaxBytes = builder.fetchCacheMaxBytes;
+        this.fetchCacheSettleSeconds = builder.fetchCacheSettleSeconds;
+        this.tagIndexEnabled = builder.tagIndexEnabled;
+        this.tagTrigramIndex = builder.tagTrigramIndex;
+        this.connectionMinIdle = builder.connectionMinIdle;
+        this.connectionMaxLifetimeMs = builder.connectionMaxLifetimeMs;
+        this.connectionLeakDetectionMs = builder.connectionLeakDetectionMs;
+        this.statementCacheSize = builder.statementCacheSize;
+        this.readConnectionPoolSize = builder.readConnectionPoolSize;
+        this.readReplicaURLs = builder.readReplicaURLs;
+        this.prepareThreshold = builder.prepareThreshold;
+        this.writeShards = builder.writeShards;
+        this.writeShardMinSamples = builder.writeShardMinSamples;
+        this.rollupLevels = builder.rollupLevels;
+        this.rollupIntervalSeconds = builder.rollupIntervalSeconds;
+        this.rollupDelaySeconds = builder.rollupDelaySeconds;
+        this.rollupThreads = builder.rollupThreads;
+        this.downsampling = builder.downsampling;
+        this.downsamplingMaxPoints = builder.downsamplingMaxPoints;
+        this.softDelete = builder.softDelete;
+        this.purgeIntervalSeconds = builder.purgeIntervalSeconds;
+        this.purgeBatchSize = builder.purgeBatchSize;
+        this.tagIndexReloadSeconds = builder.tagIndexReloadSeconds;
+        this.counterMaxRate = builder.counterMaxRate;
+        this.replicaProbeIntervalSeconds = builder.replicaProbeIntervalSeconds;
+        this.replicaMaxLagSeconds = builder.replicaMaxLagSeconds;
     }
 
     /** Will be called via blueprint. The builder can be called when not running as Osgi plugin. */
@@ -40,7 +116,45 @@ public class PGTimeseriesConfig {
             final String backfillStart,
             final boolean createTablesOnInstall,
             final int maxBatchSize,
-            final int connectionPoolSize) {
+            final int connectionPoolSize,
+            final String writeMode,
+            final int knownMetricCacheSize,
+            final int knownMetricCacheTtlSeconds,
+            final int writeQueueSize,
+            final int writeThreads,
+            final int writeFlushSize,
+            final int writeFlushIntervalMs,
+            final String writeQueueFullPolicy,
+            final boolean normalizeMetricKeys,
+            final int metricIdCacheSize,
+            final String indexStrategy,
+            final int fetchSize,
+            final long fetchCacheMaxBytes,
+            final int fetchCacheSettleSeconds,
+            final boolean tagIndexEnabled,
+            final boolean tagTrigramIndex,
+            final int connectionMinIdle,
+            final long connectionMaxLifetimeMs,
+            final long connectionLeakDetectionMs,
+            final int statementCacheSize,
+            final int readConnectionPoolSize,
+            final String readReplicaURLs,
+            final int prepareThreshold,
+            final int writeShards,
+            final int writeShardMinSamples,
+            final String rollupLevels,
+            final int rollupIntervalSeconds,
+            final int rollupDelaySeconds,
+            final int rollupThreads,
+            final String downsampling,
+            final int downsamplingMaxPoints,
+            final boolean softDelete,
+            final int purgeIntervalSeconds,
+            final int purgeBatchSize,
+            final int tagIndexReloadSeconds,
+            final double counterMaxRate,
+            final int replicaProbeIntervalSeconds,
+            final int replicaMaxLagSeconds) {
         this(builder()
                 .externalDatasourceURL(externalDatasourceURL)
                 .adminDatasourceURL(adminDatasourceURL)
@@ -50,7 +164,45 @@ public class PGTimeseriesConfig {
                 .backfillStart(backfillStart)
                 .createTablesOnInstall(createTablesOnInstall)
                 .maxBatchSize(maxBatchSize)
-                .connectionPoolSize(connectionPoolSize));
+                .connectionPoolSize(connectionPoolSize)
+                .writeMode(WriteMode.fromString(writeMode))
+                .knownMetricCacheSize(knownMetricCacheSize)
+                .knownMetricCacheTtlSeconds(knownMetricCacheTtlSeconds)
+                .writeQueueSize(writeQueueSize)
+                .writeThreads(writeThreads)
+                .writeFlushSize(writeFlushSize)
+                .writeFlushIntervalMs(writeFlushIntervalMs)
+                .writeQueueFullPolicy(QueueFullPolicy.fromString(writeQueueFullPolicy))
+                .normalizeMetricKeys(normalizeMetricKeys)
+                .metricIdCacheSize(metricIdCacheSize)
+                .indexStrategy(IndexStrategy.fromString(indexStrategy))
+                .fetchSize(fetchSize)
+                .fetchCacheMaxBytes(fetchCacheMaxBytes)
+                .fetchCacheSettleSeconds(fetchCacheSettleSeconds)
+                .tagIndexEnabled(tagIndexEnabled)
+                .tagTrigramIndex(tagTrigramIndex)
+                .connectionMinIdle(connectionMinIdle)
+                .connectionMaxLifetimeMs(connectionMaxLifetimeMs)
+                .connectionLeakDetectionMs(connectionLeakDetectionMs)
+                .statementCacheSize(statementCacheSize)
+                .readConnectionPoolSize(readConnectionPoolSize)
+                .readReplicaURLs(readReplicaURLs)
+                .prepareThreshold(prepareThreshold)
+                .writeShards(writeShards)
+                .writeShardMinSamples(writeShardMinSamples)
+                .rollupLevels(rollupLevels)
+                .rollupIntervalSeconds(rollupIntervalSeconds)
+                .rollupDelaySeconds(rollupDelaySeconds)
+                .rollupThreads(rollupThreads)
+                .downsampling(Downsampling.fromString(downsampling))
+                .downsamplingMaxPoints(downsamplingMaxPoints)
+                .softDelete(softDelete)
+                .purgeIntervalSeconds(purgeIntervalSeconds)
+                .purgeBatchSize(purgeBatchSize)
+                .tagIndexReloadSeconds(tagIndexReloadSeconds)
+                .counterMaxRate(counterMaxRate)
+                .replicaProbeIntervalSeconds(replicaProbeIntervalSeconds)
+                .replicaMaxLagSeconds(replicaMaxLagSeconds));
     }
 
     public String getExternalDatasourceURL() {
@@ -89,6 +241,158 @@ public class PGTimeseriesConfig {
         return connectionPoolSize;
     }
 
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    public int getKnownMetricCacheSize() {
+        return knownMetricCacheSize;
+    }
+
+    public int getKnownMetricCacheTtlSeconds() {
+        return knownMetricCacheTtlSeconds;
+    }
+
+    public int getWriteQueueSize() {
+        return writeQueueSize;
+    }
+
+    public int getWriteThreads() {
+        return writeThreads;
+    }
+
+    public int getWriteFlushSize() {
+        return writeFlushSize;
+    }
+
+    public int getWriteFlushIntervalMs() {
+        return writeFlushIntervalMs;
+    }
+
+    public QueueFullPolicy getWriteQueueFullPolicy() {
+        return writeQueueFullPolicy;
+    }
+
+    public boolean getNormalizeMetricKeys() {
+        return normalizeMetricKeys;
+    }
+
+    public int getMetricIdCacheSize() {
+        return metricIdCacheSize;
+    }
+
+    public IndexStrategy getIndexStrategy() {
+        return indexStrategy;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public long getFetchCacheMaxBytes() {
+        return fetchCacheMaxBytes;
+    }
+
+    public int getFetchCacheSettleSeconds() {
+        return fetchCacheSettleSeconds;
+    }
+
+    public boolean getTagIndexEnabled() {
+        return tagIndexEnabled;
+    }
+
+    public boolean getTagTrigramIndex() {
+        return tagTrigramIndex;
+    }
+
+    public int getConnectionMinIdle() {
+        return connectionMinIdle;
+    }
+
+    public long getConnectionMaxLifetimeMs() {
+        return connectionMaxLifetimeMs;
+    }
+
+    public long getConnectionLeakDetectionMs() {
+        return connectionLeakDetectionMs;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public int getReadConnectionPoolSize() {
+        return readConnectionPoolSize;
+    }
+
+    public String getReadReplicaURLs() {
+        return readReplicaURLs;
+    }
+
+    public int getPrepareThreshold() {
+        return prepareThreshold;
+    }
+
+    public int getWriteShards() {
+        return writeShards;
+    }
+
+    public int getWriteShardMinSamples() {
+        return writeShardMinSamples;
+    }
+
+    public String getRollupLevels() {
+        return rollupLevels;
+    }
+
+    public int getRollupIntervalSeconds() {
+        return rollupIntervalSeconds;
+    }
+
+    public int getRollupDelaySeconds() {
+        return rollupDelaySeconds;
+    }
+
+    public int getRollupThreads() {
+        return rollupThreads;
+    }
+
+    public Downsampling getDownsampling() {
+        return downsampling;
+    }
+
+    public int getDownsamplingMaxPoints() {
+        return downsamplingMaxPoints;
+    }
+
+    public boolean getSoftDelete() {
+        return softDelete;
+    }
+
+    public int getPurgeIntervalSeconds() {
+        return purgeIntervalSeconds;
+    }
+
+    public int getPurgeBatchSize() {
+        return purgeBatchSize;
+    }
+
+    public int getTagIndexReloadSeconds() {
+        return tagIndexReloadSeconds;
+    }
+
+    public double getCounterMaxRate() {
+        return counterMaxRate;
+    }
+
+    public int getReplicaProbeIntervalSeconds() {
+        return replicaProbeIntervalSeconds;
+    }
+
+    public int getReplicaMaxLagSeconds() {
+        return replicaMaxLagSeconds;
+    }
+
     public static Builder builder() {
         return new Builder();
     }
@@ -103,6 +407,44 @@ public class PGTimeseriesConfig {
         private boolean createTablesOnInstall = true;
         private int maxBatchSize = 100;
         private int connectionPoolSize = 100;
+        private WriteMode writeMode = WriteMode.BATCH;
+        private int knownMetricCacheSize = 0;
+        private int knownMetricCacheTtlSeconds = 86400;
+        private int writeQueueSize = 0;
+        private int writeThreads = 2;
+        private int writeFlushSize = 1000;
+        private int writeFlushIntervalMs = 1000;
+        private QueueFullPolicy writeQueueFullPolicy = QueueFullPolicy.BLOCK;
+        private boolean normalizeMetricKeys = false;
+        private int metricIdCacheSize = 1000000;
+        private IndexStrategy indexStrategy = IndexStrategy.SEPARATE;
+        private int fetchSize = 0;
+        private long fetchCacheMaxBytes = 0L;
+        private int fetchCacheSettleSeconds = 300;
+        private boolean tagIndexEnabled = false;
+        private boolean tagTrigramIndex = false;
+        private int connectionMinIdle = 2;
+        private long connectionMaxLifetimeMs = 1800000L;
+        private long connectionLeakDetectionMs = 0L;
+        private int statementCacheSize = 256;
+        private int readConnectionPoolSize = 0;
+        private String readReplicaURLs = "";
+        private int prepareThreshold = 5;
+        private int writeShards = 1;
+        private int writeShardMinSamples = 1000;
+        private String rollupLevels = "";
+        private int rollupIntervalSeconds = 60;
+        private int rollupDelaySeconds = 300;
+        private int rollupThreads = 2;
+        private Downsampling downsampling = Downsampling.NONE;
+        private int downsamplingMaxPoints = 0;
+        private boolean softDelete = false;
+        private int purgeIntervalSeconds = 300;
+        private int purgeBatchSize = 1000;
+        private int tagIndexReloadSeconds = 0;
+        private double counterMaxRate = 0;
+        private int replicaProbeIntervalSeconds = 10;
+        private int replicaMaxLagSeconds = 0;
 
         public Builder externalDatasourceURL(final String externalDatasourceURL) {
             this.externalDatasourceURL = externalDatasourceURL;
@@ -149,6 +491,196 @@ public class PGTimeseriesConfig {
             return this;
         }
 
+        public Builder writeMode(final WriteMode writeMode) {
+            this.writeMode = writeMode;
+            return this;
+        }
+
+        public Builder knownMetricCacheSize(final int knownMetricCacheSize) {
+            this.knownMetricCacheSize = knownMetricCacheSize;
+            return this;
+        }
+
+        public Builder knownMetricCacheTtlSeconds(final int knownMetricCacheTtlSeconds) {
+            this.knownMetricCacheTtlSeconds = knownMetricCacheTtlSeconds;
+            return this;
+        }
+
+        public Builder writeQueueSize(final int writeQueueSize) {
+            this.writeQueueSize = writeQueueSize;
+            return this;
+        }
+
+        public Builder writeThreads(final int writeThreads) {
+            this.writeThreads = writeThreads;
+            return this;
+        }
+
+        public Builder writeFlushSize(final int writeFlushSize) {
+            this.writeFlushSize = writeFlushSize;
+            return this;
+        }
+
+        public Builder writeFlushIntervalMs(final int writeFlushIntervalMs) {
+            this.writeFlushIntervalMs = writeFlushIntervalMs;
+            return this;
+        }
+
+        public Builder writeQueueFullPolicy(final QueueFullPolicy writeQueueFullPolicy) {
+            this.writeQueueFullPolicy = writeQueueFullPolicy;
+            return this;
+        }
+
+        public Builder normalizeMetricKeys(final boolean normalizeMetricKeys) {
+            this.normalizeMetricKeys = normalizeMetricKeys;
+            return this;
+        }
+
+        public Builder metricIdCacheSize(final int metricIdCacheSize) {
+            this.metricIdCacheSize = metricIdCacheSize;
+            return this;
+        }
+
+        public Builder indexStrategy(final IndexStrategy indexStrategy) {
+            this.indexStrategy = indexStrategy;
+            return this;
+        }
+
+        public Builder fetchSize(final int fetchSize) {
+            this.fetchSize = fetchSize;
+            return this;
+        }
+
+        public Builder fetchCacheMaxBytes(final long fetchCacheMaxBytes) {
+            this.fetchCacheMaxBytes = fetchCacheMaxBytes;
+            return this;
+        }
+
+        public Builder fetchCacheSettleSeconds(final int fetchCacheSettleSeconds) {
+            this.fetchCacheSettleSeconds = fetchCacheSettleSeconds;
+            return this;
+        }
+
+        public Builder tagIndexEnabled(final boolean tagIndexEnabled) {
+            this.tagIndexEnabled = tagIndexEnabled;
+            return this;
+        }
+
+        public Builder tagTrigramIndex(final boolean tagTrigramIndex) {
+            this.tagTrigramIndex = tagTrigramIndex;
+            return this;
+        }
+
+        public Builder connectionMinIdle(final int connectionMinIdle) {
+            this.connectionMinIdle = connectionMinIdle;
+            return this;
+        }
+
+        public Builder connectionMaxLifetimeMs(final long connectionMaxLifetimeMs) {
+            this.connectionMaxLifetimeMs = connectionMaxLifetimeMs;
+            return this;
+        }
+
+        public Builder connectionLeakDetectionMs(final long connectionLeakDetectionMs) {
+            this.connectionLeakDetectionMs = connectionLeakDetectionMs;
+            return this;
+        }
+
+        public Builder statementCacheSize(final int statementCacheSize) {
+            this.statementCacheSize = statementCacheSize;
+            return this;
+        }
+
+        public Builder readConnectionPoolSize(final int readConnectionPoolSize) {
+            this.readConnectionPoolSize = readConnectionPoolSize;
+            return this;
+        }
+
+        public Builder readReplicaURLs(final String readReplicaURLs) {
+            this.readReplicaURLs = readReplicaURLs;
+            return this;
+        }
+
+        public Builder prepareThreshold(final int prepareThreshold) {
+            this.prepareThreshold = prepareThreshold;
+            return this;
+        }
+
+        public Builder writeShards(final int writeShards) {
+            this.writeShards = writeShards;
+            return this;
+        }
+
+        public Builder writeShardMinSamples(final int writeShardMinSamples) {
+            this.writeShardMinSamples = writeShardMinSamples;
+            return this;
+        }
+
+        public Builder rollupLevels(final String rollupLevels) {
+            this.rollupLevels = rollupLevels;
+            return this;
+        }
+
+        public Builder rollupIntervalSeconds(final int rollupIntervalSeconds) {
+            this.rollupIntervalSeconds = rollupIntervalSeconds;
+            return this;
+        }
+
+        public Builder rollupDelaySeconds(final int rollupDelaySeconds) {
+            this.rollupDelaySeconds = rollupDelaySeconds;
+            return this;
+        }
+
+        public Builder rollupThreads(final int rollupThreads) {
+            this.rollupThreads = rollupThreads;
+            return this;
+        }
+
+        public Builder downsampling(final Downsampling downsampling) {
+            this.downsampling = downsampling;
+            return this;
+        }
+
+        public Builder downsamplingMaxPoints(final int downsamplingMaxPoints) {
+            this.downsamplingMaxPoints = downsamplingMaxPoints;
+            return this;
+        }
+
+        public Builder softDelete(final boolean softDelete) {
+            this.softDelete = softDelete;
+            return this;
+        }
+
+        public Builder purgeIntervalSeconds(final int purgeIntervalSeconds) {
+            this.purgeIntervalSeconds = purgeIntervalSeconds;
+            return this;
+        }
+
+        public Builder purgeBatchSize(final int purgeBatchSize) {
+            this.purgeBatchSize = purgeBatchSize;
+            return this;
+        }
+
+        public Builder tagIndexReloadSeconds(final int tagIndexReloadSeconds) {
+            this.tagIndexReloadSeconds = tagIndexReloadSeconds;
+            return this;
+        }
+
+        public Builder counterMaxRate(final double counterMaxRate) {
+            this.counterMaxRate = counterMaxRate;
+            return this;
+        }
+
+        public Builder replicaProbeIntervalSeconds(final int replicaProbeIntervalSeconds) {
+            this.replicaProbeIntervalSeconds = replicaProbeIntervalSeconds;
+            return this;
+        }
+
+        public Builder replicaMaxLagSeconds(final int replicaMaxLagSeconds) {
+            this.replicaMaxLagSeconds = replicaMaxLagSeconds;
+            return this;
+        }
+
         public PGTimeseriesConfig build() {
             return new PGTimeseriesConfig(this);
         }
@@ -166,6 +698,44 @@ public class PGTimeseriesConfig {
                 .add("createTablesOnInstall=" + createTablesOnInstall)
                 .add("maxBatchSize='" + maxBatchSize + "'")
                 .add("connectionPoolSize='" + connectionPoolSize + "'" )
+                .add("writeMode=" + writeMode)
+                .add("knownMetricCacheSize=" + knownMetricCacheSize)
+                .add("knownMetricCacheTtlSeconds=" + knownMetricCacheTtlSeconds)
+                .add("writeQueueSize=" + writeQueueSize)
+                .add("writeThreads=" + writeThreads)
+                .add("writeFlushSize=" + writeFlushSize)
+                .add("writeFlushIntervalMs=" + writeFlushIntervalMs)
+                .add("writeQueueFullPolicy=" + writeQueueFullPolicy)
+                .add("normalizeMetricKeys=" + normalizeMetricKeys)
+                .add("metricIdCacheSize=" + metricIdCacheSize)
+                .add("indexStrategy=" + indexStrategy)
+                .add("fetchSize=" + fetchSize)
+                .add("fetchCacheMaxBytes=" + fetchCacheMaxBytes)
+                .add("fetchCacheSettleSeconds=" + fetchCacheSettleSeconds)
+                .add("tagIndexEnabled=" + tagIndexEnabled)
+                .add("tagTrigramIndex=" + tagTrigramIndex)
+                .add("connectionMinIdle=" + connectionMinIdle)
+                .add("connectionMaxLifetimeMs=" + connectionMaxLifetimeMs)
+                .add("connectionLeakDetectionMs=" + connectionLeakDetectionMs)
+                .add("statementCacheSize=" + statementCacheSize)
+                .add("readConnectionPoolSize=" + readConnectionPoolSize)
+                .add("readReplicaURLs='" + readReplicaURLs + "'")
+                .add("prepareThreshold=" + prepareThreshold)
+                .add("writeShards=" + writeShards)
+                .add("writeShardMinSamples=" + writeShardMinSamples)
+                .add("rollupLevels='" + rollupLevels + "'")
+                .add("rollupIntervalSeconds=" + rollupIntervalSeconds)
+                .add("rollupDelaySeconds=" + rollupDelaySeconds)
+                .add("rollupThreads=" + rollupThreads)
+                .add("downsampling=" + downsampling)
+                .add("downsamplingMaxPoints=" + downsamplingMaxPoints)
+                .add("softDelete=" + softDelete)
+                .add("purgeIntervalSeconds=" + purgeIntervalSeconds)
+                .add("purgeBatchSize=" + purgeBatchSize)
+                .add("tagIndexReloadSeconds=" + tagIndexReloadSeconds)
+                .add("counterMaxRate=" + counterMaxRate)
+                .add("replicaProbeIntervalSeconds=" + replicaProbeIntervalSeconds)
+                .add("replicaMaxLagSeconds=" + replicaMaxLagSeconds)
                 .toString();
     }
 }
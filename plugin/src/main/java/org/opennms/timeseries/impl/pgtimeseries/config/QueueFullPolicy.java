@@ -0,0 +1,24 @@
+package org.opennms.timeseries.impl.pgtimeseries.config;
+
+import java.util.Locale;
+
+/**
+ * What store() does when the write-behind queue is full.
+ */
+public enum QueueFullPolicy {
+    /** Wait until the flusher threads made room. Slows down the caller. */
+    BLOCK,
+    /** Drop the samples that do not fit and count them as lost. */
+    DROP;
+
+    public static QueueFullPolicy fromString(final String policy) {
+        if (policy == null || policy.trim().isEmpty()) {
+            return BLOCK;
+        }
+        try {
+            return QueueFullPolicy.valueOf(policy.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown writeQueueFullPolicy '" + policy + "'");
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.opennms.timeseries.impl.pgtimeseries.config;
+
+import java.util.Locale;
+
+/**
+ * How samples are pushed into the pgtimeseries_time_series table.
+ */
+public enum WriteMode {
+    /** JDBC batch of single row INSERT statements. */
+    BATCH,
+    /** Binary COPY ... FROM STDIN stream. */
+    COPY,
+    /** One INSERT ... SELECT FROM unnest() statement per batch with the columns bound as arrays. */
+    UNNEST;
+
+    public static WriteMode fromString(final String writeMode) {
+        if (writeMode == null || writeMode.trim().isEmpty()) {
+            return BATCH;
+        }
+        try {
+            return WriteMode.valueOf(writeMode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown writeMode '" + writeMode + "'");
+        }
+    }
+}
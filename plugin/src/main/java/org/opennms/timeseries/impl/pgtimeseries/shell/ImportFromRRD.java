@@ -1,6 +1,5 @@
 package org.opennms.timeseries.impl.pgtimeseries.shell;
 
-import com.google.common.collect.Lists;
 import org.apache.commons.io.FilenameUtils;
 
 import com.google.common.base.Throwables;
@@ -14,15 +13,11 @@ import org.apache.karaf.shell.api.action.lifecycle.Reference;
 import org.apache.karaf.shell.api.action.lifecycle.Service;
 
 import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
-import org.opennms.integration.api.v1.timeseries.Metric;
 import org.opennms.integration.api.v1.timeseries.Sample;
 import org.opennms.integration.api.v1.timeseries.StorageException;
-import org.opennms.integration.api.v1.timeseries.Tag;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
 import org.opennms.timeseries.impl.pgtimeseries.PGTimeseriesStorage;
-import org.opennms.timeseries.impl.pgtimeseries.util.DBUtils;
-import org.opennms.timeseries.impl.pgtimeseries.util.PGTimeseriesDatabaseInitializer;
 import org.opennms.timeseries.impl.pgtimeseries.util.rrd.ResourcePath;
 import org.opennms.timeseries.impl.pgtimeseries.util.rrd.AbstractDS;
 import org.opennms.timeseries.impl.pgtimeseries.util.rrd.AbstractRRA;
@@ -64,6 +59,9 @@ public class ImportFromRRD implements Action {
     @Reference
     private DataSource dataSource;
 
+    @Reference
+    private PGTimeseriesStorage pgts;
+
     //private final Path onmsHome = Paths.get(System.getProperty("opennms.home"));
     private final Path rrdDir = Paths.get(System.getProperty("rrd.base.dir"));
     private final Boolean StoreByGroup = Boolean.parseBoolean(System.getProperty("org.opennms.rrd.storeByGroup"));
@@ -366,14 +364,15 @@ public class ImportFromRRD implements Action {
                 }
 
                 if (batch.size() >= this.batchSize) {
-                    store(batch);
+                    // not through the write-behind queue, which may drop samples
+                    pgts.storeSynchronously(batch);
                     batch = new ArrayList<>(this.batchSize);
                 }
             }
         }
 
         if (!batch.isEmpty()) {
-            store(batch);
+            pgts.storeSynchronously(batch);
         }
     }
 
@@ -527,56 +526,4 @@ public class ImportFromRRD implements Action {
             this.foreignId = foreignId;
         }
     }
-    public void store(List<Sample> entries) throws StorageException, SQLException {
-        String sql = "INSERT INTO pgtimeseries_time_series(time, key, value)  values (?, ?, ?)";
-
-        final DBUtils db = new DBUtils(this.getClass());
-        Connection connection = null;
-        try {
-            if (PGTimeseriesDatabaseInitializer.isExternalDatasourceURLAvailable()) {
-                connection = PGTimeseriesDatabaseInitializer.getWhichDataSourceConnection();
-            } else {
-                connection = this.dataSource.getConnection();
-            }
-            db.watch(connection);
-            PreparedStatement ps = connection.prepareStatement(sql);
-            db.watch(ps);
-            // Partition the samples into collections smaller than max_batch_size
-            for (List<Sample> batch : Lists.partition(entries, batchSize)) {
-                for (Sample sample : batch) {
-                    ps.setTimestamp(1, new Timestamp(sample.getTime().toEpochMilli()));
-                    ps.setString(2, sample.getMetric().getKey());
-                    ps.setDouble(3, sample.getValue());
-                    ps.addBatch();
-                    storeTags(connection, sample.getMetric(), ImmutableMetric.TagType.intrinsic, sample.getMetric().getIntrinsicTags());
-                    storeTags(connection, sample.getMetric(), ImmutableMetric.TagType.meta, sample.getMetric().getMetaTags());
-                    storeTags(connection, sample.getMetric(), ImmutableMetric.TagType.external, sample.getMetric().getExternalTags());
-                }
-                ps.executeBatch();
-                }
-        } catch (SQLException e) {
-            throw new StorageException(e);
-        } finally {
-            db.cleanUp();
-        }
-    }
-        private void storeTags(final Connection connection, final Metric metric, final ImmutableMetric.TagType tagType, final Collection<Tag> tags) throws SQLException {
-        final String sql = "INSERT INTO pgtimeseries_tag(fk_pgtimeseries_metric, key, value, type)  values (?, ?, ?, ?) ON CONFLICT (fk_pgtimeseries_metric, key, value, type) DO NOTHING;";
-        final DBUtils db = new DBUtils(this.getClass());
-        try {
-            PreparedStatement ps = connection.prepareStatement(sql);
-            db.watch(ps);
-            for (Tag tag : tags) {
-                ps.setString(1, metric.getKey());
-                ps.setString(2, tag.getKey());
-                ps.setString(3, tag.getValue());
-                ps.setString(4, tagType.name());
-                ps.addBatch();
-            }
-            ps.executeBatch();
-            ps.close();
-        } finally {
-            db.cleanUp();
-        }
-    }
 }
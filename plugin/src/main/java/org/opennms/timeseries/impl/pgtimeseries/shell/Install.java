@@ -4,33 +4,34 @@ import org.apache.karaf.shell.api.action.Action;
 import org.apache.karaf.shell.api.action.Command;
 import org.apache.karaf.shell.api.action.lifecycle.Reference;
 import org.apache.karaf.shell.api.action.lifecycle.Service;
-import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+import org.opennms.timeseries.impl.pgtimeseries.PGTimeseriesStorage;
 import org.opennms.timeseries.impl.pgtimeseries.util.PGTimeseriesDatabaseInitializer;
 
-import javax.sql.DataSource;
 import java.sql.SQLException;
 
 @Command(scope = "opennms-pgtimeseries", name = "install", description = "Create database infrastructure for the pg_timeseries plugin if it does not exist.")
 @Service
 public class Install implements Action {
     @Reference
-    private DataSource dataSource;
+    private PGTimeseriesStorage pgts;
 
     @Override
     public Object execute() throws SQLException {
+        final PGTimeseriesDatabaseInitializer initializer = pgts.getInitializer();
 
         // Check Plugin
-        if (!PGTimeseriesDatabaseInitializer.isPGTimeseriesExtensionInstalled()) {
+        if (!initializer.isPGTimeseriesExtensionInstalled()) {
             System.out.println("It looks like pg_timeseries extension is not installed. Attempting to install the extension....");
-            PGTimeseriesDatabaseInitializer.installExtension();
+            initializer.installExtension();
         }
 
         // Check and create tables
-        if (PGTimeseriesDatabaseInitializer.isPGTimeseriesTablesExisting()) {
+        if (initializer.isPGTimeseriesTablesExisting()) {
+            initializer.upgradeTablesIfNeeded();
             System.out.println("pg_timeseries tables exist. We are ready to rock 'n roll!");
         } else {
             System.out.println("pg_timeseries tables are missing. Will attempt to create them now.");
-            PGTimeseriesDatabaseInitializer.createTables();
+            initializer.createTables();
             System.out.println("pg_timeseries tables created.");
         }
         return null;
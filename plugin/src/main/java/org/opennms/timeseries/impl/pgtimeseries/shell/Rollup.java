@@ -0,0 +1,88 @@
+package org.opennms.timeseries.impl.pgtimeseries.shell;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Reference;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.apache.karaf.shell.support.table.ShellTable;
+import org.opennms.timeseries.impl.pgtimeseries.PGTimeseriesStorage;
+import org.opennms.timeseries.impl.pgtimeseries.util.RollupLevel;
+import org.opennms.timeseries.impl.pgtimeseries.util.RollupMaintainer;
+
+@Command(scope = "opennms-pgtimeseries", name = "rollup", description = "Display the state of the rollup tables, roll up the closed time windows now or backfill them.")
+@Service
+public class Rollup implements Action {
+
+    @Option(name = "-l", aliases = "--level", description = "Only this rollup level, e.g. 1h. Default: all levels", required = false, multiValued = false)
+    String levelName;
+
+    @Option(name = "-r", aliases = "--run", description = "Roll up the time windows which closed since the last run now instead of waiting for the next scheduled run.", required = false, multiValued = false)
+    boolean run;
+
+    @Option(name = "-b", aliases = "--backfill-from", description = "Roll up all time windows from this time on again, e.g. after importing samples. ISO-8601 instant, example: 2024-01-01T00:00:00Z", required = false, multiValued = false)
+    String backfillFrom;
+
+    @Reference
+    private PGTimeseriesStorage pgts;
+
+    @Override
+    public Object execute() throws SQLException {
+        final RollupMaintainer maintainer = pgts.getRollupMaintainer();
+        if (maintainer == null) {
+            System.out.println("No rollupLevels are configured.");
+            return null;
+        }
+        final List<RollupLevel> levels = new ArrayList<>();
+        for (RollupLevel level : maintainer.getRollups().getLevels()) {
+            if (levelName == null || level.getName().equals(levelName)) {
+                levels.add(level);
+            }
+        }
+        if (levels.isEmpty()) {
+            System.out.println("Unknown rollup level " + levelName);
+            return null;
+        }
+
+        Instant from = null;
+        if (backfillFrom != null && !backfillFrom.isEmpty()) {
+            try {
+                from = Instant.parse(backfillFrom);
+            } catch (DateTimeParseException e) {
+                System.out.println("Invalid backfill time " + backfillFrom + ", expected e.g. 2024-01-01T00:00:00Z");
+                return null;
+            }
+        }
+        for (RollupLevel level : levels) {
+            if (from != null) {
+                System.out.print("Backfilling " + level.getTable() + " from " + from + "...");
+                System.out.println("...Done! " + maintainer.backfill(level, from) + " rows written.");
+            } else if (run) {
+                System.out.print("Rolling up " + level.getTable() + "...");
+                System.out.println("...Done! " + maintainer.run(level) + " rows written.");
+            }
+        }
+
+        ShellTable table = new ShellTable();
+        table.column("Level");
+        table.column("Table");
+        table.column("Retention");
+        table.column("Watermark");
+        table.column("Lag (s)");
+        for (RollupLevel level : levels) {
+            final Instant watermark = maintainer.getRollups().getWatermark(level);
+            table.addRow().addContent(level.getName(), level.getTable(), level.getRetention(),
+                    watermark == null ? "-" : watermark,
+                    watermark == null ? "-" : Duration.between(watermark, Instant.now()).getSeconds());
+        }
+        table.print(System.out);
+        return null;
+    }
+}
@@ -6,22 +6,20 @@ import org.apache.karaf.shell.api.action.Command;
 import org.apache.karaf.shell.api.action.lifecycle.Reference;
 import org.apache.karaf.shell.api.action.lifecycle.Service;
 import org.apache.karaf.shell.support.table.ShellTable;
+import org.opennms.timeseries.impl.pgtimeseries.PGTimeseriesStorage;
 import org.opennms.timeseries.impl.pgtimeseries.util.DBUtils;
-import org.opennms.timeseries.impl.pgtimeseries.util.PGTimeseriesDatabaseInitializer;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
-import javax.sql.DataSource;
-
 @Command(scope = "opennms-pgtimeseries", name = "show-partition-info", description = "Display information about postgresql's time-series table partitions.")
 @Service
 public class ShowPartitionInfo implements Action {
 
     @Reference
-    private DataSource dataSource;
+    private PGTimeseriesStorage pgts;
 
     @Override
     public Object execute() throws SQLException {
@@ -36,7 +34,7 @@ public class ShowPartitionInfo implements Action {
         table.column("Total Size");
         table.column("Access Method");
         try {
-            Connection conn = PGTimeseriesDatabaseInitializer.getWhichDataSourceConnection();
+            Connection conn = pgts.getDataSource().getConnection();
             db.watch(conn);
             sql = "select table_id, part_id, part_range, pg_size_pretty(table_size_bytes), pg_size_pretty(index_size_bytes), pg_size_pretty(total_size_bytes), access_method FROM ts_part_info";
             PreparedStatement statement = conn.prepareStatement(sql);
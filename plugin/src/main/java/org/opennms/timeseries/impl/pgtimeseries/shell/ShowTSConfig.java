@@ -6,10 +6,9 @@ import org.apache.karaf.shell.api.action.Option;
 import org.apache.karaf.shell.api.action.lifecycle.Reference;
 import org.apache.karaf.shell.api.action.lifecycle.Service;
 import org.apache.karaf.shell.support.table.ShellTable;
+import org.opennms.timeseries.impl.pgtimeseries.PGTimeseriesStorage;
 import org.opennms.timeseries.impl.pgtimeseries.util.DBUtils;
-import org.opennms.timeseries.impl.pgtimeseries.util.PGTimeseriesDatabaseInitializer;
 
-import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -29,7 +28,7 @@ public class ShowTSConfig implements Action {
     String partitionInterval;
 
     @Reference
-    private DataSource dataSource;
+    private PGTimeseriesStorage pgts;
 
     @Override
     public Object execute() throws SQLException {
@@ -40,7 +39,7 @@ public class ShowTSConfig implements Action {
             return null;
         }
         try {
-            Connection conn = PGTimeseriesDatabaseInitializer.getWhichDataSourceConnection();
+            Connection conn = pgts.getDataSource().getConnection();
             db.watch(conn);
             PreparedStatement statement = null;
             // configure retention
@@ -6,22 +6,20 @@ import org.apache.karaf.shell.api.action.Command;
 import org.apache.karaf.shell.api.action.lifecycle.Reference;
 import org.apache.karaf.shell.api.action.lifecycle.Service;
 import org.apache.karaf.shell.support.table.ShellTable;
+import org.opennms.timeseries.impl.pgtimeseries.PGTimeseriesStorage;
 import org.opennms.timeseries.impl.pgtimeseries.util.DBUtils;
-import org.opennms.timeseries.impl.pgtimeseries.util.PGTimeseriesDatabaseInitializer;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
-import javax.sql.DataSource;
-
 @Command(scope = "opennms-pgtimeseries", name = "show-table-info", description = "Display information about postgresql's time-series tables.")
 @Service
 public class ShowTableInfo implements Action {
 
     @Reference
-    private DataSource dataSource;
+    private PGTimeseriesStorage pgts;
 
     @Override
     public Object execute() throws SQLException {
@@ -33,7 +31,7 @@ public class ShowTableInfo implements Action {
         table.column("Index Size");
         table.column("Total Size");
         try {
-            Connection conn = PGTimeseriesDatabaseInitializer.getWhichDataSourceConnection();
+            Connection conn = pgts.getDataSource().getConnection();
             db.watch(conn);
             sql = "select table_id as table_name, pg_size_pretty(table_size_bytes), pg_size_pretty(index_size_bytes), pg_size_pretty(total_size_bytes) from ts_table_info";
             PreparedStatement statement = conn.prepareStatement(sql);
@@ -0,0 +1,80 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+
+/**
+ * Encodes samples in the PostgreSQL binary COPY format for the column list (time, key, value)
+ * or (time, metric_id, value) if metric keys are normalized.
+ * See https://www.postgresql.org/docs/current/sql-copy.html#id-1.9.3.55.9.4
+ */
+public class BinaryCopyEncoder {
+
+    public static final String COPY_SQL = "COPY pgtimeseries_time_series(time, key, value) FROM STDIN (FORMAT BINARY)";
+    public static final String COPY_BY_ID_SQL = "COPY pgtimeseries_time_series(time, metric_id, value) FROM STDIN (FORMAT BINARY)";
+
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+
+    /** 2000-01-01T00:00:00Z, the epoch of the binary timestamptz representation. */
+    private static final long PG_EPOCH_SECONDS = 946684800L;
+
+    private static final short FIELD_COUNT = 3;
+
+    private BinaryCopyEncoder() {
+    }
+
+    public static byte[] encode(final List<Sample> samples) {
+        return encode(samples, null);
+    }
+
+    /**
+     * @param metricIds if not null the id of each sample's metric key is written instead of the key itself.
+     */
+    public static byte[] encode(final List<Sample> samples, final Map<String, Long> metricIds) {
+        // header (19 bytes) + per row ~ 2 + 12 + 12 + 4 + key length, trailer (2 bytes)
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(21 + samples.size() * 96);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(SIGNATURE);
+            out.writeInt(0); // flags
+            out.writeInt(0); // header extension length
+            for (Sample sample : samples) {
+                out.writeShort(FIELD_COUNT);
+                out.writeInt(Long.BYTES);
+                out.writeLong(toPostgresMicros(sample.getTime()));
+                if (metricIds != null) {
+                    out.writeInt(Long.BYTES);
+                    out.writeLong(metricIds.get(sample.getMetric().getKey()));
+                } else {
+                    final byte[] key = sample.getMetric().getKey().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(key.length);
+                    out.write(key);
+                }
+                if (sample.getValue() == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(Double.BYTES);
+                    out.writeDouble(sample.getValue());
+                }
+            }
+            out.writeShort(-1); // trailer
+            out.flush();
+        } catch (IOException e) {
+            // can not happen for an in-memory stream
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static long toPostgresMicros(final Instant time) {
+        return (time.getEpochSecond() - PG_EPOCH_SECONDS) * 1_000_000L + time.getNano() / 1_000L;
+    }
+}
@@ -0,0 +1,157 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+
+/**
+ * Turns the raw samples of a counter, given in time order, into per second rates for each bucket of a fetch
+ * request in a single pass. Each sample contributes the increase since the previous sample to its bucket, the
+ * increases of a bucket are aggregated and divided by the step.
+ * A counter which went down either wrapped around at 2^32 or 2^64, or was reset (e.g. the device restarted):
+ * it is considered wrapped if the increase across the wrap is less than half the counter range and the rate it
+ * implies is plausible, otherwise it was reset and the increase is its current value, the amount counted since the
+ * reset. A rate is plausible if it is at most the configured counterMaxRate and at most
+ * {@link #WRAP_RATE_FACTOR} times the rate of the previous increase, so a counter which was at 3e9 and restarts
+ * does not turn into a spike of over 1e9.
+ */
+public class CounterRates {
+
+    static final double COUNTER32 = 4294967296.0;
+    static final double COUNTER64 = 18446744073709551616.0;
+    /** How much faster than before a counter may have counted for a drop to be taken as a wrap. */
+    static final double WRAP_RATE_FACTOR = 10;
+
+    private final TimeBuckets buckets;
+    private final double stepSeconds;
+    private final double maxRate;
+    private final double[] sum;
+    private final double[] min;
+    private final double[] max;
+    private final int[] count;
+    /** Buckets with at least one sample, with or without an increase. */
+    private final BitSet seen = new BitSet();
+    private double previous = Double.NaN;
+    private long previousTimeMs;
+    /** The per second rate of the last increase, NaN if unknown. */
+    private double previousRate = Double.NaN;
+    private int wraps;
+    private int resets;
+
+    /** @param buckets the samples are assigned to buckets like those, the buckets themselves are not changed. */
+    public CounterRates(final TimeBuckets buckets) {
+        this(buckets, 0);
+    }
+
+    /**
+     * @param buckets the samples are assigned to buckets like those, the buckets themselves are not changed.
+     * @param maxRate the highest per second rate a wrapped counter may imply, 0 for no limit.
+     */
+    public CounterRates(final TimeBuckets buckets, final double maxRate) {
+        this.buckets = buckets;
+        this.stepSeconds = buckets.getStepMs() / 1000.0;
+        this.maxRate = maxRate;
+        this.sum = new double[buckets.size()];
+        this.min = new double[buckets.size()];
+        this.max = new double[buckets.size()];
+        this.count = new int[buckets.size()];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    }
+
+    /** Sets the sample preceding the first one passed to {@link #add}, it does not contribute to any bucket. */
+    public void seed(final long timeMs, final double value) {
+        previous = value;
+        previousTimeMs = timeMs;
+    }
+
+    /** Adds the next sample, samples must be added in time order. */
+    public void add(final long timeMs, final double value) {
+        add(timeMs, value, 1);
+    }
+
+    /**
+     * Adds the last sample of a rollup bucket. The increase since the previous sample is the sum of the increases
+     * of all samples of the bucket, which counts as that many increases for the average.
+     */
+    public void add(final long timeMs, final double value, final int samples) {
+        final int index = buckets.indexOf(timeMs);
+        if (index >= 0) {
+            seen.set(index);
+        }
+        if (Double.isNaN(previous) || Double.isNaN(value)) {
+            previous = value;
+            previousTimeMs = timeMs;
+            return;
+        }
+        final double delta = increase(previous, value, Math.max(timeMs - previousTimeMs, 1) / 1000.0);
+        previous = value;
+        previousTimeMs = timeMs;
+        if (index < 0) {
+            return;
+        }
+        sum[index] += delta;
+        min[index] = Math.min(min[index], delta);
+        max[index] = Math.max(max[index], delta);
+        count[index] += samples;
+    }
+
+    /**
+     * Sets the rate of every bucket with samples. A bucket whose only sample is the first one has no increase
+     * and becomes NaN, buckets without samples are left untouched.
+     *
+     * @param target buckets with the same start, end and step as those given to the constructor.
+     */
+    public void writeTo(final TimeBuckets target, final Aggregation aggregation) {
+        for (int i = seen.nextSetBit(0); i >= 0; i = seen.nextSetBit(i + 1)) {
+            target.set(target.getTime(i), count[i] == 0 ? Double.NaN : aggregate(i, aggregation) / stepSeconds);
+        }
+    }
+
+    /** Number of samples which were taken as a wrapped counter. */
+    public int getWraps() {
+        return wraps;
+    }
+
+    /** Number of samples which were taken as a reset counter. */
+    public int getResets() {
+        return resets;
+    }
+
+    private double aggregate(final int i, final Aggregation aggregation) {
+        switch (aggregation) {
+            case NONE:
+                return sum[i];
+            case AVERAGE:
+                return sum[i] / count[i];
+            case MIN:
+                return min[i];
+            case MAX:
+                return max[i];
+            default:
+                throw new IllegalArgumentException("Unknown aggregation " + aggregation);
+        }
+    }
+
+    private double increase(final double previous, final double value, final double seconds) {
+        if (value >= previous) {
+            previousRate = (value - previous) / seconds;
+            return value - previous;
+        }
+        // near 2^64 doubles are only exact to a few thousand, so are increases across a 64 bit wrap
+        final double range = previous < COUNTER32 ? COUNTER32 : COUNTER64;
+        final double wrapped = range - previous + value;
+        final double rate = wrapped / seconds;
+        if (value >= 0 && wrapped < range / 2
+                && (maxRate <= 0 || rate <= maxRate)
+                && (Double.isNaN(previousRate) || rate <= WRAP_RATE_FACTOR * previousRate)) {
+            wraps++;
+            previousRate = rate;
+            return wrapped;
+        }
+        resets++;
+        previousRate = Double.NaN;
+        return Math.max(value, 0);
+    }
+}
@@ -0,0 +1,88 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import javax.sql.DataSource;
+
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+import com.codahale.metrics.MetricRegistry;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Decides once which database the plugin talks to: a pool of its own for the externalDatasourceURL, or the data
+ * source of OpenNMS which is already pooled and configured by OpenNMS.
+ */
+public class DataSourceFactory {
+
+    /** Replicas which are down should not stall a fetch for the default 30 seconds before falling back. */
+    private static final long REPLICA_CONNECTION_TIMEOUT_MS = 5000;
+
+    private DataSourceFactory() {
+    }
+
+    /**
+     * @param opennmsDataSource used if no externalDatasourceURL is configured.
+     * @param metrics the pool reports its metrics here.
+     * @return the data source to use for all operations. If it is a {@link HikariDataSource} the caller owns it
+     * and must close it.
+     */
+    public static DataSource create(final PGTimeseriesConfig config, final DataSource opennmsDataSource, final MetricRegistry metrics) {
+        Objects.requireNonNull(opennmsDataSource);
+        if (config.getExternalDatasourceURL() == null || config.getExternalDatasourceURL().isEmpty()) {
+            return opennmsDataSource;
+        }
+        return pool(config, "pgtimeseries-external", config.getExternalDatasourceURL(), config.getConnectionPoolSize(), metrics);
+    }
+
+    /**
+     * @return a separate pool for reads from the externalDatasourceURL, null if readConnectionPoolSize is not set
+     * or there is no externalDatasourceURL, reads then share the pool returned by {@link #create}.
+     */
+    public static HikariDataSource createReadPool(final PGTimeseriesConfig config, final MetricRegistry metrics) {
+        if (config.getReadConnectionPoolSize() <= 0 || config.getExternalDatasourceURL() == null || config.getExternalDatasourceURL().isEmpty()) {
+            return null;
+        }
+        return pool(config, "pgtimeseries-read", config.getExternalDatasourceURL(), config.getReadConnectionPoolSize(), metrics);
+    }
+
+    /** @return one pool per comma separated URL of readReplicaURLs. */
+    public static List<HikariDataSource> createReplicaPools(final PGTimeseriesConfig config, final MetricRegistry metrics) {
+        final List<HikariDataSource> replicas = new ArrayList<>();
+        if (config.getReadReplicaURLs() == null) {
+            return replicas;
+        }
+        final int size = config.getReadConnectionPoolSize() > 0 ? config.getReadConnectionPoolSize() : config.getConnectionPoolSize();
+        for (String url : config.getReadReplicaURLs().split(",")) {
+            if (!url.trim().isEmpty()) {
+                final HikariDataSource replica = pool(config, "pgtimeseries-replica-" + replicas.size(), url.trim(), size, metrics);
+                replica.setConnectionTimeout(REPLICA_CONNECTION_TIMEOUT_MS);
+                // start even if the replica is down, ReadRouter falls back to the primary
+                replica.setInitializationFailTimeout(-1);
+                replicas.add(replica);
+            }
+        }
+        return replicas;
+    }
+
+    private static HikariDataSource pool(final PGTimeseriesConfig config, final String name, final String url, final int size, final MetricRegistry metrics) {
+        // the no-arg constructor starts the pool on the first getConnection() instead of failing at startup
+        final HikariDataSource pool = new HikariDataSource();
+        pool.setJdbcUrl(url);
+        pool.setPoolName(name);
+        pool.setMaximumPoolSize(size);
+        pool.setMinimumIdle(Math.min(config.getConnectionMinIdle(), size));
+        pool.setMaxLifetime(config.getConnectionMaxLifetimeMs());
+        pool.setLeakDetectionThreshold(config.getConnectionLeakDetectionMs());
+        // size of the driver's per connection cache of prepared statements
+        pool.addDataSourceProperty("preparedStatementCacheQueries", config.getStatementCacheSize());
+        pool.addDataSourceProperty("prepareThreshold", config.getPrepareThreshold());
+        // lets the driver send the JDBC batches of the batch writeMode as multi-row INSERTs
+        pool.addDataSourceProperty("reWriteBatchedInserts", true);
+        // exports <name>.pool.Wait, the histogram of the time spent waiting for a connection
+        pool.setMetricRegistry(metrics);
+        return pool;
+    }
+}
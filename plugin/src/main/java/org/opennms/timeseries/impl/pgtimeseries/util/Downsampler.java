@@ -0,0 +1,286 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.timeseries.impl.pgtimeseries.config.Downsampling;
+
+/**
+ * Reduces the raw samples of a gauge, given in time order, to at most a given number of samples in a single pass.
+ * Unlike the average of a step the selected samples keep spikes visible. The samples keep their original time,
+ * so they are not spaced evenly.
+ */
+public abstract class Downsampler {
+
+    /** The selected samples in time order. */
+    protected final Points selected = new Points();
+
+    /**
+     * @param startMs the start of the range, samples are expected after it.
+     * @param endMs the end of the range, samples are expected before it.
+     * @param points the maximum number of samples to return, at least 4.
+     */
+    public static Downsampler create(final Downsampling downsampling, final long startMs, final long endMs, final int points) {
+        switch (downsampling) {
+            case M4:
+                return new M4(startMs, endMs, Math.max(4, points));
+            case LTTB:
+                return new Lttb(startMs, endMs, Math.max(4, points));
+            default:
+                throw new IllegalArgumentException("Not a downsampling method: " + downsampling);
+        }
+    }
+
+    /** Adds the next sample, samples must be added in time order. NaN values are skipped. */
+    public abstract void add(long timeMs, double value);
+
+    /** Ends the pass, no samples can be added afterwards. */
+    protected abstract void finish();
+
+    public List<Sample> toSamples(final Metric metric) {
+        finish();
+        final List<Sample> samples = new ArrayList<>(selected.size);
+        for (int i = 0; i < selected.size; i++) {
+            samples.add(ImmutableSample.builder()
+                    .metric(metric)
+                    .time(Instant.ofEpochMilli(selected.times[i]))
+                    .value(selected.values[i])
+                    .build());
+        }
+        return samples;
+    }
+
+    /**
+     * Divides the range into points / 4 columns of equal duration and keeps the first, last, smallest and
+     * largest sample of each column, which is all a line chart with that many pixel columns can show.
+     */
+    static class M4 extends Downsampler {
+        private final long startMs;
+        private final long durationMs;
+        private final int columns;
+        private final long[] firstTime;
+        private final double[] firstValue;
+        private final long[] lastTime;
+        private final double[] lastValue;
+        private final long[] minTime;
+        private final double[] minValue;
+        private final long[] maxTime;
+        private final double[] maxValue;
+        private final boolean[] seen;
+
+        M4(final long startMs, final long endMs, final int points) {
+            this.startMs = startMs;
+            this.durationMs = Math.max(1, endMs - startMs + 1);
+            this.columns = Math.max(1, points / 4);
+            this.firstTime = new long[columns];
+            this.firstValue = new double[columns];
+            this.lastTime = new long[columns];
+            this.lastValue = new double[columns];
+            this.minTime = new long[columns];
+            this.minValue = new double[columns];
+            this.maxTime = new long[columns];
+            this.maxValue = new double[columns];
+            this.seen = new boolean[columns];
+        }
+
+        @Override
+        public void add(final long timeMs, final double value) {
+            if (Double.isNaN(value)) {
+                return;
+            }
+            final int c = (int) Math.min(columns - 1, Math.max(0, (timeMs - startMs) * columns / durationMs));
+            if (!seen[c]) {
+                seen[c] = true;
+                firstTime[c] = timeMs;
+                firstValue[c] = value;
+                minTime[c] = timeMs;
+                minValue[c] = value;
+                maxTime[c] = timeMs;
+                maxValue[c] = value;
+            } else if (value < minValue[c]) {
+                minTime[c] = timeMs;
+                minValue[c] = value;
+            } else if (value > maxValue[c]) {
+                maxTime[c] = timeMs;
+                maxValue[c] = value;
+            }
+            lastTime[c] = timeMs;
+            lastValue[c] = value;
+        }
+
+        @Override
+        protected void finish() {
+            if (selected.size > 0) {
+                return;
+            }
+            final long[] times = new long[4];
+            final double[] values = new double[4];
+            for (int c = 0; c < columns; c++) {
+                if (!seen[c]) {
+                    continue;
+                }
+                times[0] = firstTime[c];
+                values[0] = firstValue[c];
+                times[1] = minTime[c];
+                values[1] = minValue[c];
+                times[2] = maxTime[c];
+                values[2] = maxValue[c];
+                times[3] = lastTime[c];
+                values[3] = lastValue[c];
+                // in time order, each sample once
+                for (int k = 0; k < 4; k++) {
+                    int next = -1;
+                    for (int j = 0; j < 4; j++) {
+                        if ((next < 0 || times[j] < times[next]) && (selected.size == 0 || times[j] > selected.lastTime())) {
+                            next = j;
+                        }
+                    }
+                    if (next < 0) {
+                        break;
+                    }
+                    selected.add(times[next], values[next]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets: keeps the first and the last sample and divides the range in between into
+     * points - 2 buckets of equal duration. From each bucket the sample is kept which spans the largest triangle
+     * with the sample kept from the previous bucket and the average of the next bucket. Only the samples of two
+     * buckets are held in memory at a time.
+     */
+    static class Lttb extends Downsampler {
+        private final long startMs;
+        private final long durationMs;
+        private final int buckets;
+        /** The bucket to select a sample from once the next bucket is complete. */
+        private Points pending = new Points();
+        private int pendingBucket = -1;
+        private Points next = new Points();
+        private int nextBucket = -1;
+        private boolean finished;
+
+        Lttb(final long startMs, final long endMs, final int points) {
+            this.startMs = startMs;
+            this.durationMs = Math.max(1, endMs - startMs + 1);
+            this.buckets = Math.max(1, points - 2);
+        }
+
+        @Override
+        public void add(final long timeMs, final double value) {
+            if (Double.isNaN(value)) {
+                return;
+            }
+            if (selected.size == 0) {
+                // the first sample is always kept
+                selected.add(timeMs, value);
+                return;
+            }
+            final int bucket = (int) Math.min(buckets - 1, Math.max(0, (timeMs - startMs) * buckets / durationMs));
+            if (bucket != nextBucket && next.size > 0) {
+                if (pending.size > 0) {
+                    select(pending, next.averageTime(), next.averageValue());
+                }
+                final Points free = pending;
+                pending = next;
+                pendingBucket = nextBucket;
+                next = free;
+                next.clear();
+            }
+            nextBucket = bucket;
+            next.add(timeMs, value);
+        }
+
+        @Override
+        protected void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            // the last sample is always kept, it is the last one of the last non-empty bucket
+            final Points last = next.size > 0 ? next : pending;
+            if (last.size == 0) {
+                return;
+            }
+            final long lastTime = last.lastTime();
+            final double lastValue = last.values[last.size - 1];
+            last.size--;
+            if (pending.size > 0 && pending != last) {
+                if (next.size > 0) {
+                    select(pending, next.averageTime(), next.averageValue());
+                } else {
+                    select(pending, lastTime, lastValue);
+                }
+            }
+            if (next.size > 0) {
+                select(next, lastTime, lastValue);
+            }
+            selected.add(lastTime, lastValue);
+        }
+
+        private void select(final Points bucket, final double nextTime, final double nextValue) {
+            final double aTime = selected.lastTime();
+            final double aValue = selected.values[selected.size - 1];
+            int best = 0;
+            double bestArea = -1;
+            for (int i = 0; i < bucket.size; i++) {
+                // twice the area of the triangle, only compared
+                final double area = Math.abs((aTime - nextTime) * (bucket.values[i] - aValue)
+                        - (aTime - bucket.times[i]) * (nextValue - aValue));
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = i;
+                }
+            }
+            selected.add(bucket.times[best], bucket.values[best]);
+        }
+    }
+
+    /** A growable list of samples in their primitive representation. */
+    protected static class Points {
+        long[] times = new long[16];
+        double[] values = new double[16];
+        int size;
+
+        void add(final long time, final double value) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            times[size] = time;
+            values[size] = value;
+            size++;
+        }
+
+        long lastTime() {
+            return times[size - 1];
+        }
+
+        double averageTime() {
+            // relative to the first sample, the sum of epoch millis could lose precision
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += times[i] - times[0];
+            }
+            return times[0] + sum / size;
+        }
+
+        double averageValue() {
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += values[i];
+            }
+            return sum / size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import lombok.Value;
+
+/**
+ * Caches the buckets of getTimeseries() results. A bucket is final once it ended more than fetchCacheSettleSeconds
+ * before it was fetched; final buckets are served from the cache, only the trailing ones which may still receive
+ * samples are fetched again.
+ * Fetches which use the cache start at a multiple of the step, see {@link #alignedStart}, so requests relative to
+ * now share their buckets. Entries are kept per metric, step and aggregation, a request is served from the settled
+ * buckets the cached range has in common with it.
+ */
+public class FetchResultCache {
+
+    /** Rough per entry overhead of key, entry and array header. */
+    private static final int ENTRY_OVERHEAD_BYTES = 200;
+
+    private final Cache<Key, Entry> cache;
+    private final long settleMs;
+    private final AtomicLong bytes = new AtomicLong();
+    private final Meter hits;
+    private final Meter partialHits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    public FetchResultCache(final PGTimeseriesConfig config, final MetricRegistry metrics) {
+        this.settleMs = TimeUnit.SECONDS.toMillis(Math.max(0, config.getFetchCacheSettleSeconds()));
+        this.hits = metrics.meter("fetchCacheHits");
+        this.partialHits = metrics.meter("fetchCachePartialHits");
+        this.misses = metrics.meter("fetchCacheMisses");
+        this.evictions = metrics.meter("fetchCacheEvictions");
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(config.getFetchCacheMaxBytes())
+                .weigher((Key key, Entry entry) -> entry.getWeight())
+                .removalListener(notification -> {
+                    bytes.addAndGet(-notification.getValue().getWeight());
+                    if (notification.wasEvicted()) {
+                        evictions.mark();
+                    }
+                })
+                .build();
+        metrics.register("fetchCacheBytes", (Gauge<Long>) bytes::get);
+        metrics.register("fetchCacheHitRatio", new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(hits.getCount() + partialHits.getCount(), hits.getCount() + partialHits.getCount() + misses.getCount());
+            }
+        });
+    }
+
+    /** @return the start of the request rounded down to a multiple of its step. */
+    public static Instant alignedStart(final TimeSeriesFetchRequest request) {
+        final long startMs = request.getStart().toEpochMilli();
+        return Instant.ofEpochMilli(startMs - Math.floorMod(startMs, request.getStep().toMillis()));
+    }
+
+    /**
+     * @return new buckets from the {@link #alignedStart} of the request to its end, filled with the cached settled
+     * buckets up to {@link Entry#getFirstOpenIndex()}. The buckets from there on are NaN and must be fetched.
+     * Returns null if the first bucket of the request is not cached.
+     */
+    public Entry get(final TimeSeriesFetchRequest request) {
+        final Entry cached = cache.getIfPresent(Key.of(request));
+        final TimeBuckets buckets = new TimeBuckets(alignedStart(request), request.getEnd(), request.getStep());
+        int firstOpenIndex = 0;
+        if (cached != null) {
+            while (firstOpenIndex < buckets.size()) {
+                final long time = buckets.getTime(firstOpenIndex);
+                final int index = cached.getBuckets().indexOf(time);
+                if (index < 0 || index >= cached.getFirstOpenIndex() || cached.getBuckets().getTime(index) != time) {
+                    break;
+                }
+                buckets.set(time, cached.getBuckets().getValue(index));
+                firstOpenIndex++;
+            }
+        }
+        if (firstOpenIndex == 0) {
+            misses.mark();
+            return null;
+        }
+        final Entry entry = new Entry(buckets, firstOpenIndex, cached.getWeight());
+        if (entry.isComplete()) {
+            hits.mark();
+        } else {
+            partialHits.mark();
+        }
+        return entry;
+    }
+
+    /**
+     * Caches the buckets, which must not be modified afterwards. They replace the buckets cached for an earlier
+     * range of the same metric, step and aggregation.
+     *
+     * @param fetchedAt the time the buckets were read from the database
+     */
+    public void put(final TimeSeriesFetchRequest request, final TimeBuckets buckets, final Instant fetchedAt) {
+        // the first bucket that did not end settleMs before the fetch
+        final long finalBefore = fetchedAt.toEpochMilli() - settleMs;
+        int firstOpenIndex = 0;
+        while (firstOpenIndex < buckets.size() && buckets.getTime(firstOpenIndex) + buckets.getStepMs() <= finalBefore) {
+            firstOpenIndex++;
+        }
+        if (firstOpenIndex == 0) {
+            // nothing worth caching
+            return;
+        }
+        final Entry entry = new Entry(buckets, firstOpenIndex, ENTRY_OVERHEAD_BYTES + buckets.size() * Double.BYTES);
+        bytes.addAndGet(entry.getWeight());
+        cache.put(Key.of(request), entry);
+    }
+
+    public void invalidate(final String metricKey) {
+        cache.asMap().keySet().removeIf(key -> key.getMetricKey().equals(metricKey));
+    }
+
+    @Value
+    public static class Entry {
+        TimeBuckets buckets;
+        int firstOpenIndex;
+        int weight;
+
+        public boolean isComplete() {
+            return firstOpenIndex >= buckets.size();
+        }
+    }
+
+    @Value
+    private static class Key {
+        String metricKey;
+        Duration step;
+        Aggregation aggregation;
+
+        static Key of(final TimeSeriesFetchRequest request) {
+            return new Key(request.getMetric().getKey(), request.getStep(), request.getAggregation());
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+
+/**
+ * The SQL of all fetch queries. Start, end and step are always bound as parameters, only the aggregate function
+ * is part of the text, so there is a small fixed set of statements which PostgreSQL can plan once per connection
+ * and the driver can turn into server side prepared statements.
+ */
+public class FetchStatements {
+
+    private final Map<String, String> statements = new HashMap<>();
+    private final String raw;
+    private final String rawPartial;
+    private final String batch;
+    private final String counterBatch;
+
+    public FetchStatements(final String seriesColumn) {
+        this(seriesColumn, Collections.emptyList());
+    }
+
+    public FetchStatements(final String seriesColumn, final List<RollupLevel> levels) {
+        for (Aggregation aggregation : Aggregation.values()) {
+            for (boolean partial : new boolean[]{false, true}) {
+                statements.put(name(aggregation, partial), gaugeSql(seriesColumn, aggregate(aggregation), partial));
+            }
+            for (RollupLevel level : levels) {
+                statements.put(level.getName() + "_" + aggregation.name(), rollupSql(seriesColumn, level, rollupAggregate(aggregation)));
+            }
+        }
+        for (RollupLevel level : levels) {
+            statements.put(level.getName() + "_counter", counterRollupSql(seriesColumn, level));
+        }
+        raw = rawSql(seriesColumn, false);
+        rawPartial = rawSql(seriesColumn, true);
+        batch = batchSql(seriesColumn);
+        counterBatch = counterBatchSql(seriesColumn);
+    }
+
+    /**
+     * @param partial if true, only the buckets from a given time on are fetched, see {@link #bind}.
+     */
+    public String get(final Aggregation aggregation, final boolean partial) {
+        final String sql = statements.get(name(aggregation, partial));
+        if (sql == null) {
+            throw new IllegalArgumentException("Unknown aggregation " + aggregation);
+        }
+        return sql;
+    }
+
+    /**
+     * Binds the parameters of a statement returned by {@link #get}.
+     *
+     * @param from the time of the first bucket to fetch for partial statements, ignored otherwise.
+     */
+    public static void bind(final PreparedStatement statement, final boolean partial, final Object series,
+                            final Timestamp start, final Timestamp from, final Timestamp end, final Duration step) throws SQLException {
+        int i = 1;
+        statement.setDouble(i++, step.getSeconds());
+        statement.setTimestamp(i++, start);
+        statement.setObject(i++, series);
+        statement.setTimestamp(i++, partial ? from : start);
+        statement.setTimestamp(i, end);
+    }
+
+    /**
+     * The raw samples of a series ordered by time, e.g. for the rates of a counter computed by {@link CounterRates}.
+     *
+     * @param partial if true, only the samples from a given time on and the last sample before it are fetched,
+     *                see {@link #bindRaw}.
+     */
+    public String getRaw(final boolean partial) {
+        return partial ? rawPartial : raw;
+    }
+
+    /** Binds the parameters of a statement returned by {@link #getRaw}. */
+    public static void bindRaw(final PreparedStatement statement, final boolean partial, final Object series,
+                                   final Timestamp start, final Timestamp from, final Timestamp end) throws SQLException {
+        int i = 1;
+        statement.setObject(i++, series);
+        statement.setTimestamp(i++, start);
+        if (partial) {
+            statement.setTimestamp(i++, from);
+            statement.setObject(i++, series);
+            statement.setTimestamp(i++, from);
+        }
+        statement.setTimestamp(i, end);
+    }
+
+    /**
+     * Aggregates a gauge from the rollup of the level up to its watermark and from the raw samples after it.
+     */
+    public String getRollup(final RollupLevel level, final Aggregation aggregation) {
+        final String sql = statements.get(level.getName() + "_" + aggregation.name());
+        if (sql == null) {
+            throw new IllegalArgumentException("Unknown rollup level " + level.getName() + " or aggregation " + aggregation);
+        }
+        return sql;
+    }
+
+    /** Binds the parameters of a statement returned by {@link #getRollup}. */
+    public static void bindRollup(final PreparedStatement statement, final RollupLevel level, final Object series, final Timestamp start,
+                                  final Timestamp watermark, final Timestamp end, final Duration step) throws SQLException {
+        statement.setDouble(1, step.getSeconds());
+        statement.setTimestamp(2, start);
+        bindRollupRows(statement, 3, level, series, start, watermark, end);
+    }
+
+    /**
+     * The last sample of each rollup bucket up to the watermark, followed by the raw samples after it, ordered by
+     * time. The samples column holds the number of samples a row stands for.
+     */
+    public String getCounterRollup(final RollupLevel level) {
+        final String sql = statements.get(level.getName() + "_counter");
+        if (sql == null) {
+            throw new IllegalArgumentException("Unknown rollup level " + level.getName());
+        }
+        return sql;
+    }
+
+    /** Binds the parameters of a statement returned by {@link #getCounterRollup}. */
+    public static void bindCounterRollup(final PreparedStatement statement, final RollupLevel level, final Object series, final Timestamp start,
+                                         final Timestamp watermark, final Timestamp end) throws SQLException {
+        bindRollupRows(statement, 1, level, series, start, watermark, end);
+    }
+
+    private static void bindRollupRows(final PreparedStatement statement, int i, final RollupLevel level, final Object series,
+                                       final Timestamp start, final Timestamp watermark, final Timestamp end) throws SQLException {
+        final Timestamp rolledUpTo = watermark.before(end) ? watermark : end;
+        // the first rollup window after the start, the samples before it are read raw
+        final Timestamp head = Timestamp.from(Rollups.align(start.toInstant(), level.getResolution()).plus(level.getResolution()));
+        statement.setObject(i++, series);
+        statement.setTimestamp(i++, start);
+        statement.setTimestamp(i++, rolledUpTo);
+        statement.setObject(i++, series);
+        statement.setTimestamp(i++, start);
+        statement.setTimestamp(i++, head.before(rolledUpTo) ? head : rolledUpTo);
+        statement.setObject(i++, series);
+        statement.setTimestamp(i++, start);
+        // the last instant covered by the rollup, PostgreSQL timestamps have microsecond precision
+        statement.setTimestamp(i++, Timestamp.from(watermark.toInstant().minusNanos(1000)));
+        statement.setTimestamp(i, end);
+    }
+
+    /** Aggregates the gauges of several series at once. */
+    public String getBatch() {
+        return batch;
+    }
+
+    /** Binds the parameters of {@link #getBatch()}. */
+    public static void bindBatch(final PreparedStatement statement, final Array series, final Timestamp start,
+                                 final Timestamp end, final Duration step) throws SQLException {
+        int i = 1;
+        statement.setDouble(i++, step.getSeconds());
+        statement.setTimestamp(i++, start);
+        statement.setArray(i++, series);
+        statement.setTimestamp(i++, start);
+        statement.setTimestamp(i, end);
+    }
+
+    /** The raw samples of several counters ordered by series and time. */
+    public String getCounterBatch() {
+        return counterBatch;
+    }
+
+    /** Binds the parameters of {@link #getCounterBatch()}. */
+    public static void bindCounterBatch(final PreparedStatement statement, final Array series, final Timestamp start,
+                                        final Timestamp end) throws SQLException {
+        statement.setArray(1, series);
+        statement.setTimestamp(2, start);
+        statement.setTimestamp(3, end);
+    }
+
+    private static String name(final Aggregation aggregation, final boolean partial) {
+        return aggregation.name() + (partial ? "_partial" : "");
+    }
+
+    private static String aggregate(final Aggregation aggregation) {
+        switch (aggregation) {
+            case NONE:
+                // Without aggregation there is usually at most one gauge sample per bucket, avg() returns it as is.
+            case AVERAGE:
+                return "avg";
+            case MIN:
+                return "min";
+            case MAX:
+                return "max";
+            default:
+                throw new IllegalArgumentException("Unknown aggregation " + aggregation);
+        }
+    }
+
+    private static String rollupAggregate(final Aggregation aggregation) {
+        switch (aggregation) {
+            case NONE:
+            case AVERAGE:
+                return "sum( value_sum ) / NULLIF( sum( value_count ), 0 )";
+            case MIN:
+                return "min( value_min )";
+            case MAX:
+                return "max( value_max )";
+            default:
+                throw new IllegalArgumentException("Unknown aggregation " + aggregation);
+        }
+    }
+
+    // The rollup rows up to the watermark and the raw samples after it, raw samples are turned into rows which
+    // look like a rollup of a single sample. Like the raw fetches, the start itself is excluded: the rollup rows
+    // start after it and the samples between the start and the first of them are read raw as well.
+    private static String rollupRows(final String seriesColumn, final RollupLevel level, final String rollupColumns, final String rawColumns) {
+        return "( SELECT time, " + rollupColumns + " FROM " + level.getTable() + " " +
+                    "WHERE " + seriesColumn + " = ? AND time > ? AND time < ? ) " +
+                "UNION ALL " +
+                "( SELECT time, " + rawColumns + " FROM pgtimeseries_time_series " +
+                    "WHERE " + seriesColumn + " = ? AND time > ? AND time < ? ) " +
+                "UNION ALL " +
+                "( SELECT time, " + rawColumns + " FROM pgtimeseries_time_series " +
+                    "WHERE " + seriesColumn + " = ? AND time > greatest( ?, ? ) AND time < ? ) ";
+    }
+
+    private static String rollupSql(final String seriesColumn, final RollupLevel level, final String aggr) {
+        return "SELECT " +
+                "date_bin( make_interval( secs => ? ), time, ? ) AS step, " +
+                aggr + " AS aggregation " +
+            "FROM ( " +
+                rollupRows(seriesColumn, level,
+                        "value_min, value_max, value_sum, value_count",
+                        "value, value, value, ( value IS NOT NULL )::int") +
+            ") AS r " +
+            "GROUP BY " +
+                "1 " +
+            "ORDER BY " +
+                "1";
+    }
+
+    private static String counterRollupSql(final String seriesColumn, final RollupLevel level) {
+        return rollupRows(seriesColumn, level, "value_last AS value, value_count AS samples", "value, 1") +
+            "ORDER BY " +
+                "time";
+    }
+
+    // Counters are not aggregated by PostgreSQL: a lag() window would sort the rows once more and can not tell a
+    // wrapped or reset counter from a decreasing one. The rows are read in index order instead.
+    private static String rawSql(final String seriesColumn, final boolean partial) {
+        if (partial) {
+            // the last row before the first fetched bucket is needed to compute the first delta
+            return "( SELECT time, value FROM pgtimeseries_time_series " +
+                        "WHERE " + seriesColumn + " = ? AND time > ? AND time < ? ORDER BY time DESC LIMIT 1 ) " +
+                    "UNION ALL " +
+                    "( SELECT time, value FROM pgtimeseries_time_series " +
+                        "WHERE " + seriesColumn + " = ? AND time >= ? AND time < ? ORDER BY time ) " +
+                    "ORDER BY " +
+                        "time";
+        }
+        return "SELECT " +
+                "time, " +
+                "value " +
+            "FROM " +
+                "pgtimeseries_time_series " +
+            "WHERE " +
+                seriesColumn + " = ? AND " +
+                "time > ? AND " +
+                "time < ? " +
+            "ORDER BY " +
+                "time";
+    }
+
+    // Each row is assigned to its bucket with date_bin() in a single pass, buckets without rows are
+    // filled with NaN by TimeBuckets instead of joining against a generated series of intervals.
+    private static String gaugeSql(final String seriesColumn, final String aggr, final boolean partial) {
+        return "SELECT " +
+                "date_bin( make_interval( secs => ? ), time, ? ) AS step, " +
+                aggr + "( value ) AS aggregation " +
+            "FROM " +
+                "pgtimeseries_time_series " +
+            "WHERE " +
+                seriesColumn + " = ? AND " +
+                (partial ? "time >= ? AND " : "time > ? AND ") +
+                "time < ? " +
+            "GROUP BY " +
+                "1 " +
+            "ORDER BY " +
+                "1";
+    }
+
+    private static String batchSql(final String seriesColumn) {
+        return "SELECT " +
+                seriesColumn + " AS series, " +
+                "date_bin( make_interval( secs => ? ), time, ? ) AS step, " +
+                "avg( value ) AS avg_value, " +
+                "min( value ) AS min_value, " +
+                "max( value ) AS max_value " +
+            "FROM " +
+                "pgtimeseries_time_series " +
+            "WHERE " +
+                seriesColumn + " = ANY( ? ) AND " +
+                "time > ? AND " +
+                "time < ? " +
+            "GROUP BY " +
+                "1, 2 " +
+            "ORDER BY " +
+                "1, 2";
+    }
+
+    private static String counterBatchSql(final String seriesColumn) {
+        return "SELECT " +
+                seriesColumn + " AS series, " +
+                "time, " +
+                "value " +
+            "FROM " +
+                "pgtimeseries_time_series " +
+            "WHERE " +
+                seriesColumn + " = ANY( ? ) AND " +
+                "time > ? AND " +
+                "time < ? " +
+            "ORDER BY " +
+                "1, 2";
+    }
+}
@@ -0,0 +1,93 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import lombok.Value;
+
+/**
+ * Remembers which metrics already have their tags persisted in pgtimeseries_tag, so that store() only
+ * writes tags for new metrics or metrics whose tag set changed. Keyed by metric key, the value holds the
+ * intrinsic, meta and external tags themselves, a hash of them could collide and skip a needed tag write.
+ * <p>
+ * The cache assumes this storage instance is the only writer of pgtimeseries_tag. Tag rows deleted behind its
+ * back (by another instance or by hand) are not noticed and only written again once the entry expires after
+ * knownMetricCacheTtlSeconds, which is why the cache is off by default.
+ */
+public class KnownMetricCache {
+
+    private final Cache<String, TagSets> cache;
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    public KnownMetricCache(final PGTimeseriesConfig config, final MetricRegistry metrics) {
+        this.hits = metrics.meter("knownMetricCacheHits");
+        this.misses = metrics.meter("knownMetricCacheMisses");
+        this.evictions = metrics.meter("knownMetricCacheEvictions");
+        if (config.getKnownMetricCacheSize() > 0) {
+            CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                    .maximumSize(config.getKnownMetricCacheSize())
+                    .removalListener(notification -> {
+                        if (notification.wasEvicted()) {
+                            evictions.mark();
+                        }
+                    });
+            if (config.getKnownMetricCacheTtlSeconds() > 0) {
+                builder.expireAfterWrite(config.getKnownMetricCacheTtlSeconds(), TimeUnit.SECONDS);
+            }
+            this.cache = builder.build();
+            metrics.register("knownMetricCacheSize", (Gauge<Long>) cache::size);
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /** @return true if the tags of this metric were already written in their current form. */
+    public boolean isKnown(final Metric metric) {
+        if (cache == null) {
+            return false;
+        }
+        final TagSets tags = cache.getIfPresent(metric.getKey());
+        if (tags != null && tags.equals(TagSets.of(metric))) {
+            hits.mark();
+            return true;
+        }
+        misses.mark();
+        return false;
+    }
+
+    /** Must only be called after the tags of the metric were successfully written. */
+    public void markKnown(final Metric metric) {
+        if (cache != null) {
+            cache.put(metric.getKey(), TagSets.of(metric));
+        }
+    }
+
+    public void invalidate(final String metricKey) {
+        if (cache != null) {
+            cache.invalidate(metricKey);
+        }
+    }
+
+    @Value
+    private static class TagSets {
+        Set<Tag> intrinsic;
+        Set<Tag> meta;
+        Set<Tag> external;
+
+        static TagSets of(final Metric metric) {
+            return new TagSets(metric.getIntrinsicTags(), metric.getMetaTags(), metric.getExternalTags());
+        }
+    }
+}
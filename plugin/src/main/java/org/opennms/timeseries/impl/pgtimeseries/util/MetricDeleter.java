@@ -0,0 +1,357 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Deletes many metrics at once in a single transaction. The samples are deleted with one statement per partition
+ * of pgtimeseries_time_series and of the rollup tables, so each statement only touches one partition and the
+ * progress can be followed while a large delete runs.
+ * With softDelete the metrics are only tombstoned: their tags are deleted right away, samples up to the time of
+ * the deletion are hidden from fetches and removed later by a background purger, batch by batch.
+ * With normalizeMetricKeys the ids in pgtimeseries_metric are kept by both: writers cache them and would
+ * otherwise store samples under an id which no longer exists.
+ */
+@Slf4j
+public class MetricDeleter {
+
+    private static final String TOMBSTONE_SQL = "INSERT INTO pgtimeseries_tombstone(key, deleted_at) SELECT unnest( ? ), now() "
+            + "ON CONFLICT (key) DO UPDATE SET deleted_at = EXCLUDED.deleted_at RETURNING key, deleted_at";
+    private static final String LOAD_TOMBSTONES_SQL = "SELECT key, deleted_at FROM pgtimeseries_tombstone";
+    private static final String LOCK_TOMBSTONES_SQL = "SELECT key, deleted_at FROM pgtimeseries_tombstone ORDER BY deleted_at LIMIT ? FOR UPDATE SKIP LOCKED";
+    private static final String DELETE_TOMBSTONES_SQL = "DELETE FROM pgtimeseries_tombstone WHERE key = ANY( ? )";
+    private static final String DELETE_TAGS_SQL = "DELETE FROM pgtimeseries_tag WHERE fk_pgtimeseries_metric = ANY( ? )";
+    private static final String PARTITIONS_SQL = "SELECT inhrelid::regclass::text FROM pg_inherits WHERE inhparent = cast( ? as regclass ) ORDER BY 1";
+
+    private final String seriesColumn;
+    /** pgtimeseries_time_series and the rollup tables. */
+    private final List<String> tables = new ArrayList<>();
+    private final DataSource dataSource;
+    private final boolean softDelete;
+    private final long purgeIntervalSeconds;
+    private final int purgeBatchSize;
+    /** The time each tombstoned metric was deleted at, by metric key. */
+    private final Map<String, Instant> tombstones = new ConcurrentHashMap<>();
+    private final Meter metricsDeleted;
+    private final Meter samplesDeleted;
+    private final Meter tombstonesPurged;
+    private final Timer deleteDuration;
+
+    private ScheduledExecutorService purger;
+
+    public MetricDeleter(final PGTimeseriesConfig config, final String seriesColumn, final List<RollupLevel> levels,
+                         final DataSource dataSource, final MetricRegistry metrics) {
+        this.seriesColumn = Objects.requireNonNull(seriesColumn);
+        this.tables.add(TableNames.PGTIMESERIES_TIME_SERIES);
+        for (RollupLevel level : levels) {
+            this.tables.add(level.getTable());
+        }
+        this.dataSource = Objects.requireNonNull(dataSource);
+        this.softDelete = config.getSoftDelete();
+        this.purgeIntervalSeconds = Math.max(1, config.getPurgeIntervalSeconds());
+        this.purgeBatchSize = Math.max(1, config.getPurgeBatchSize());
+        this.metricsDeleted = metrics.meter("metricsDeleted");
+        this.samplesDeleted = metrics.meter("samplesDeleted");
+        this.tombstonesPurged = metrics.meter("tombstonesPurged");
+        this.deleteDuration = metrics.timer("deleteDuration");
+        metrics.register("tombstones", (Gauge<Integer>) tombstones::size);
+    }
+
+    public boolean isSoftDelete() {
+        return softDelete;
+    }
+
+    /** Loads the tombstones and starts purging them, does nothing unless softDelete is enabled. */
+    public void start() throws SQLException {
+        if (!softDelete) {
+            return;
+        }
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final Connection connection = dataSource.getConnection();
+            db.watch(connection);
+            loadTombstones(connection);
+        } finally {
+            db.cleanUp();
+        }
+        purger = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("pgtimeseries-purger-%d")
+                .setDaemon(true)
+                .build());
+        purger.scheduleWithFixedDelay(this::scheduledPurge, purgeIntervalSeconds, purgeIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (purger != null) {
+            purger.shutdownNow();
+        }
+    }
+
+    /**
+     * Deletes the samples, rollups and tags of the metrics in one transaction.
+     *
+     * @param ids the ids of the metrics by key if the series are keyed by metric id, null otherwise.
+     * @return the number of samples deleted.
+     */
+    public long delete(final Connection connection, final Collection<String> keys, final Map<String, Long> ids) throws SQLException {
+        final DBUtils db = new DBUtils(this.getClass());
+        final boolean autoCommit = connection.getAutoCommit();
+        try (Timer.Context ignored = deleteDuration.time()) {
+            connection.setAutoCommit(false);
+            final Object[] series = ids != null ? ids.values().toArray() : keys.toArray();
+            long samples = 0;
+            if (series.length > 0) {
+                final Array seriesArray = connection.createArrayOf(ids != null ? "bigint" : "text", series);
+                for (String table : tables) {
+                    samples += deleteFromPartitions(connection, table, false, seriesArray);
+                }
+            }
+            final Array keyArray = connection.createArrayOf("text", keys.toArray());
+            final PreparedStatement tags = connection.prepareStatement(DELETE_TAGS_SQL);
+            db.watch(tags);
+            tags.setArray(1, keyArray);
+            final int tagRows = tags.executeUpdate();
+            connection.commit();
+            metricsDeleted.mark(keys.size());
+            samplesDeleted.mark(samples);
+            log.debug("Deleted {} samples and {} tags of {} metrics", samples, tagRows, keys.size());
+            return samples;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+            db.cleanUp();
+        }
+    }
+
+    /**
+     * Tombstones the metrics and deletes their tags in one transaction. Their samples are hidden from fetches
+     * right away and purged later.
+     */
+    public void tombstone(final Connection connection, final Collection<String> keys) throws SQLException {
+        final DBUtils db = new DBUtils(this.getClass());
+        final boolean autoCommit = connection.getAutoCommit();
+        final Map<String, Instant> deleted = new HashMap<>();
+        try (Timer.Context ignored = deleteDuration.time()) {
+            connection.setAutoCommit(false);
+            final Array keyArray = connection.createArrayOf("text", keys.toArray());
+            final PreparedStatement tombstone = connection.prepareStatement(TOMBSTONE_SQL);
+            db.watch(tombstone);
+            tombstone.setArray(1, keyArray);
+            final ResultSet rs = tombstone.executeQuery();
+            db.watch(rs);
+            while (rs.next()) {
+                deleted.put(rs.getString("key"), rs.getTimestamp("deleted_at").toInstant());
+            }
+            final PreparedStatement tags = connection.prepareStatement(DELETE_TAGS_SQL);
+            db.watch(tags);
+            tags.setArray(1, keyArray);
+            tags.executeUpdate();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+            db.cleanUp();
+        }
+        tombstones.putAll(deleted);
+        metricsDeleted.mark(keys.size());
+        log.debug("Tombstoned {} metrics", keys.size());
+    }
+
+    /** @return true if the metric was tombstoned and its samples up to the deletion are not purged yet. */
+    public boolean isTombstoned(final String key) {
+        return tombstones.containsKey(key);
+    }
+
+    /**
+     * @return the samples with the values of a tombstoned metric from up to its deletion replaced by NaN. The
+     *         timestamps are kept, so the buckets before the deletion look like buckets without samples.
+     */
+    public List<Sample> filter(final String key, final List<Sample> samples) {
+        final Instant deletedAt = tombstones.get(key);
+        if (deletedAt == null) {
+            return samples;
+        }
+        return samples.stream()
+                .map(s -> s.getTime().isAfter(deletedAt) ? s : ImmutableSample.builder()
+                        .metric(s.getMetric())
+                        .time(s.getTime())
+                        .value(Double.NaN)
+                        .build())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Purges the samples and rollups of the oldest purgeBatchSize tombstones in one transaction and removes the
+     * tombstones. Tombstones which are purged concurrently, e.g. by another OpenNMS instance, are skipped.
+     *
+     * @return the number of tombstones purged.
+     */
+    public int purge(final Connection connection) throws SQLException {
+        final DBUtils db = new DBUtils(this.getClass());
+        final boolean autoCommit = connection.getAutoCommit();
+        final Map<String, Instant> purged = new HashMap<>();
+        long samples = 0;
+        try (Timer.Context ignored = deleteDuration.time()) {
+            connection.setAutoCommit(false);
+            final PreparedStatement lock = connection.prepareStatement(LOCK_TOMBSTONES_SQL);
+            db.watch(lock);
+            lock.setInt(1, purgeBatchSize);
+            final ResultSet rs = lock.executeQuery();
+            db.watch(rs);
+            while (rs.next()) {
+                purged.put(rs.getString("key"), rs.getTimestamp("deleted_at").toInstant());
+            }
+            if (purged.isEmpty()) {
+                connection.commit();
+                return 0;
+            }
+            final Array keyArray = connection.createArrayOf("text", purged.keySet().toArray());
+            for (String table : tables) {
+                samples += deleteFromPartitions(connection, table, true, keyArray);
+            }
+            final PreparedStatement delete = connection.prepareStatement(DELETE_TOMBSTONES_SQL);
+            db.watch(delete);
+            delete.setArray(1, keyArray);
+            delete.executeUpdate();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+            db.cleanUp();
+        }
+        // a metric deleted again in the meantime keeps its newer tombstone
+        purged.forEach(tombstones::remove);
+        samplesDeleted.mark(samples);
+        tombstonesPurged.mark(purged.size());
+        log.debug("Purged {} samples of {} tombstoned metrics", samples, purged.size());
+        return purged.size();
+    }
+
+    /** Replaces the tombstones kept in memory with those in the database, including ones of other instances. */
+    public void loadTombstones(final Connection connection) throws SQLException {
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final PreparedStatement statement = connection.prepareStatement(LOAD_TOMBSTONES_SQL);
+            db.watch(statement);
+            final ResultSet rs = statement.executeQuery();
+            db.watch(rs);
+            final Map<String, Instant> loaded = new HashMap<>();
+            while (rs.next()) {
+                loaded.put(rs.getString("key"), rs.getTimestamp("deleted_at").toInstant());
+            }
+            tombstones.putAll(loaded);
+            tombstones.keySet().retainAll(loaded.keySet());
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    private void scheduledPurge() {
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final Connection connection = dataSource.getConnection();
+            db.watch(connection);
+            loadTombstones(connection);
+            while (purge(connection) == purgeBatchSize) {
+                log.debug("{} tombstones left to purge", tombstones.size());
+            }
+        } catch (SQLException | RuntimeException e) {
+            log.error("Could not purge tombstoned metrics", e);
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    private long deleteFromPartitions(final Connection connection, final String table, final boolean tombstoned, final Array keys) throws SQLException {
+        long samples = 0;
+        for (String partition : partitions(connection, table)) {
+            final DBUtils db = new DBUtils(this.getClass());
+            try {
+                final PreparedStatement statement = connection.prepareStatement(deleteSql(partition, seriesColumn, tombstoned));
+                db.watch(statement);
+                statement.setArray(1, keys);
+                final int rows = statement.executeUpdate();
+                samples += rows;
+                log.debug("Deleted {} rows from {}", rows, partition);
+            } finally {
+                db.cleanUp();
+            }
+        }
+        return samples;
+    }
+
+    /** @return the partitions of the table, or the table itself if it is not partitioned. */
+    static List<String> partitions(final Connection connection, final String table) throws SQLException {
+        final List<String> partitions = new ArrayList<>();
+        final DBUtils db = new DBUtils(MetricDeleter.class);
+        try {
+            final PreparedStatement statement = connection.prepareStatement(PARTITIONS_SQL);
+            db.watch(statement);
+            statement.setString(1, table);
+            final ResultSet rs = statement.executeQuery();
+            db.watch(rs);
+            while (rs.next()) {
+                partitions.add(rs.getString(1));
+            }
+        } finally {
+            db.cleanUp();
+        }
+        if (partitions.isEmpty()) {
+            partitions.add(table);
+        }
+        return partitions;
+    }
+
+    /**
+     * @param tombstoned whether the statement deletes the samples of tombstoned metrics up to their deletion,
+     *                   bound to an array of metric keys, or all samples of the series bound to an array.
+     */
+    static String deleteSql(final String table, final String seriesColumn, final boolean tombstoned) {
+        if (!tombstoned) {
+            return "DELETE FROM " + table + " WHERE " + seriesColumn + " = ANY( ? )";
+        }
+        if ("metric_id".equals(seriesColumn)) {
+            return "DELETE FROM " + table + " s " +
+                    "USING pgtimeseries_tombstone t JOIN pgtimeseries_metric m ON m.key = t.key " +
+                    "WHERE s.metric_id = m.id AND s.time <= t.deleted_at AND t.key = ANY( ? )";
+        }
+        return "DELETE FROM " + table + " s " +
+                "USING pgtimeseries_tombstone t " +
+                "WHERE s.key = t.key AND s.time <= t.deleted_at AND t.key = ANY( ? )";
+    }
+}
@@ -0,0 +1,129 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Resolves metric keys to the compact ids assigned by pgtimeseries_metric. Only used when
+ * normalizeMetricKeys is enabled and pgtimeseries_time_series is keyed by metric_id.
+ */
+public class MetricIdCache {
+
+    private static final String INSERT_SQL = "INSERT INTO pgtimeseries_metric(key) SELECT unnest(?::text[]) ON CONFLICT (key) DO NOTHING";
+    private static final String SELECT_SQL = "SELECT key, id FROM pgtimeseries_metric WHERE key = ANY(?)";
+
+    private final Cache<String, Long> ids;
+    private final Meter hits;
+    private final Meter misses;
+    private final StatementStats statements;
+
+    public MetricIdCache(final PGTimeseriesConfig config, final MetricRegistry metrics, final StatementStats statements) {
+        this.ids = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(1, config.getMetricIdCacheSize()))
+                .build();
+        this.hits = metrics.meter("metricIdCacheHits");
+        this.misses = metrics.meter("metricIdCacheMisses");
+        this.statements = statements;
+    }
+
+    /**
+     * Returns the ids for all given (distinct) keys, registering keys which are not yet known in pgtimeseries_metric.
+     */
+    public Map<String, Long> resolve(final Connection connection, final Collection<String> keys) throws SQLException {
+        final Map<String, Long> result = new HashMap<>();
+        final List<String> missing = new ArrayList<>();
+        for (String key : keys) {
+            final Long id = ids.getIfPresent(key);
+            if (id != null) {
+                result.put(key, id);
+            } else {
+                missing.add(key);
+            }
+        }
+        hits.mark(result.size());
+        if (missing.isEmpty()) {
+            return result;
+        }
+        misses.mark(missing.size());
+
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final PreparedStatement insert = statements.prepare(connection, INSERT_SQL);
+            db.watch(insert);
+            insert.setArray(1, connection.createArrayOf("text", missing.toArray()));
+            insert.executeUpdate();
+            statements.executed(insert);
+            result.putAll(select(connection, db, missing));
+        } finally {
+            db.cleanUp();
+        }
+        return result;
+    }
+
+    /**
+     * @return the id of the given key or null if the key was never stored.
+     */
+    public Long lookup(final Connection connection, final String key) throws SQLException {
+        return lookup(connection, Collections.singletonList(key)).get(key);
+    }
+
+    /**
+     * Returns the ids for the given keys without registering unknown keys. Unknown keys are absent from the result.
+     */
+    public Map<String, Long> lookup(final Connection connection, final Collection<String> keys) throws SQLException {
+        final Map<String, Long> result = new HashMap<>();
+        final List<String> missing = new ArrayList<>();
+        for (String key : keys) {
+            final Long id = ids.getIfPresent(key);
+            if (id != null) {
+                result.put(key, id);
+            } else {
+                missing.add(key);
+            }
+        }
+        hits.mark(result.size());
+        if (missing.isEmpty()) {
+            return result;
+        }
+        misses.mark(missing.size());
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            result.putAll(select(connection, db, missing));
+        } finally {
+            db.cleanUp();
+        }
+        return result;
+    }
+
+    private Map<String, Long> select(final Connection connection, final DBUtils db, final List<String> keys) throws SQLException {
+        final Map<String, Long> result = new HashMap<>();
+        final PreparedStatement select = statements.prepare(connection, SELECT_SQL);
+        db.watch(select);
+        select.setArray(1, connection.createArrayOf("text", keys.toArray()));
+        final ResultSet rs = select.executeQuery();
+        statements.executed(select);
+        db.watch(rs);
+        while (rs.next()) {
+            final String key = rs.getString(1);
+            final long id = rs.getLong(2);
+            ids.put(key, id);
+            result.put(key, id);
+        }
+        return result;
+    }
+}
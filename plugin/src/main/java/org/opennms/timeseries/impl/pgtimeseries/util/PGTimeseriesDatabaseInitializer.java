@@ -6,91 +6,53 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
-import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.jmx.JmxReporter;
 import com.zaxxer.hikari.HikariDataSource;
 
 import javax.sql.DataSource;
 
-import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.opennms.timeseries.impl.pgtimeseries.config.IndexStrategy;
 import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
 
 /**
  * The pgtimeseries plugin uses the opennms database. But it needs extra tables.
  * This class offers helper methods to check for and create the tables.
  */
-@AllArgsConstructor
 @Slf4j
 public class PGTimeseriesDatabaseInitializer {
 
-    private static DataSource dataSource;
-
-    private static PGTimeseriesConfig config;
-
-    private static HikariDataSource hikariExtDs = new HikariDataSource();
-    private static HikariDataSource hikariAdmDs = new HikariDataSource();
-    private static final MetricRegistry extMetrics = new MetricRegistry();
-    public static final JmxReporter ExtReporter = JmxReporter.forRegistry(extMetrics).inDomain("org.opennms.timeseries.impl.pgtimeseries").build();
+    private final DataSource dataSource;
 
+    private final PGTimeseriesConfig config;
 
+    /**
+     * @param dataSource the data source chosen by the storage, see {@link DataSourceFactory}.
+     */
     public PGTimeseriesDatabaseInitializer(final DataSource dataSource, final PGTimeseriesConfig config) {
         this.dataSource = Objects.requireNonNull(dataSource);
         this.config =  Objects.requireNonNull(config);
     }
 
-    public static boolean isAdminDatasourceURLAvailable() throws SQLException {
-        try {
-            if (config.getAdminDatasourceURL() != null && !config.getAdminDatasourceURL().isEmpty()) {
-                if (hikariAdmDs.getJdbcUrl() == null || !hikariAdmDs.getJdbcUrl().equals(config.getAdminDatasourceURL())) {
-                    hikariAdmDs.setJdbcUrl(config.getAdminDatasourceURL());
-                    hikariAdmDs.setPoolName("pgtimeseries-admin");
-                    return true;
-                }
-                else {
-                    return true;
-                }
-            }
-        } catch ( Exception e) {
-            throw new RuntimeException(e);
-        }
-        return false;
-    }
-
-    public static boolean isExternalDatasourceURLAvailable() throws SQLException {
-        try {
-            if (config.getExternalDatasourceURL() != null && !config.getExternalDatasourceURL().isEmpty()) {
-                if (hikariExtDs.getJdbcUrl() == null || !hikariExtDs.getJdbcUrl().equals(config.getExternalDatasourceURL())) {
-                    hikariExtDs.setJdbcUrl(config.getExternalDatasourceURL());
-                    hikariExtDs.setPoolName("pgtimeseries-external");
-                    hikariExtDs.setMaximumPoolSize(config.getConnectionPoolSize());
-                    hikariExtDs.setMetricRegistry(extMetrics);
-                    ExtReporter.start();
-                    return true;
-                }
-                else {
-                    return true;
-                }
-            }
-        } catch ( Exception e) {
-            log.debug("Something threw an exception? : " + e);
-            return false;
-        }
-        return false;
+    private boolean isAdminDatasourceURLAvailable() {
+        return config.getAdminDatasourceURL() != null && !config.getAdminDatasourceURL().isEmpty();
     }
 
-    public static Connection getWhichDataSourceConnection() throws SQLException {
-        if (isExternalDatasourceURLAvailable()) {
-            return hikariExtDs.getConnection();
-        }
-        else {
-            return dataSource.getConnection();
-        }
+    /**
+     * @return a connection of the data source the storage uses, the pool for externalDatasourceURL if configured.
+     */
+    private Connection getWhichDataSourceConnection() throws SQLException {
+        return dataSource.getConnection();
     }
 
-    public static boolean isPGTimeseriesExtensionInstalled() throws SQLException {
+    public boolean isPGTimeseriesExtensionInstalled() throws SQLException {
         DBUtils db = new DBUtils();
         try {
             Connection conn = getWhichDataSourceConnection();
@@ -110,7 +72,7 @@ public class PGTimeseriesDatabaseInitializer {
         }
     }
 
-    static boolean doesPGTimeseriesTableExist(String tableName) throws SQLException {
+    boolean doesPGTimeseriesTableExist(String tableName) throws SQLException {
         DBUtils db = new DBUtils();
         try {
             Connection conn = getWhichDataSourceConnection();
@@ -124,13 +86,13 @@ public class PGTimeseriesDatabaseInitializer {
         }
     }
 
-    public static boolean isPGTimeseriesTablesExisting() throws SQLException {
+    public boolean isPGTimeseriesTablesExisting() throws SQLException {
         return doesPGTimeseriesTableExist(TableNames.PGTIMESERIES_TIME_SERIES)
                 && doesPGTimeseriesTableExist(TableNames.PGTIMESERIES_METRIC)
                 && doesPGTimeseriesTableExist(TableNames.PGTIMESERIES_TAG);
     }
 
-    public static void createTables() throws SQLException {
+    public void createTables() throws SQLException {
         DBUtils db = new DBUtils();
         String sql;
         PreparedStatement statement;
@@ -149,10 +111,14 @@ public class PGTimeseriesDatabaseInitializer {
             db.watch(conn);
             Statement stmt = conn.createStatement();
             db.watch(stmt);
-            // Create the table to hold the series
-            executeQuery(stmt, "CREATE TABLE IF NOT EXISTS pgtimeseries_time_series(key TEXT NOT NULL, time TIMESTAMPTZ NOT NULL, value DOUBLE PRECISION NULL) PARTITION BY RANGE (time)");
+            // Create the table to hold the series, either keyed by the metric key or by the id assigned in pgtimeseries_metric
+            if (config.getNormalizeMetricKeys()) {
+                executeQuery(stmt, "CREATE TABLE IF NOT EXISTS pgtimeseries_time_series(metric_id BIGINT NOT NULL, time TIMESTAMPTZ NOT NULL, value DOUBLE PRECISION NULL) PARTITION BY RANGE (time)");
+            } else {
+                executeQuery(stmt, "CREATE TABLE IF NOT EXISTS pgtimeseries_time_series(key TEXT NOT NULL, time TIMESTAMPTZ NOT NULL, value DOUBLE PRECISION NULL) PARTITION BY RANGE (time)");
+            }
             // Metrics table
-            executeQuery(stmt, "CREATE TABLE IF NOT EXISTS pgtimeseries_metric(key TEXT NOT NULL PRIMARY KEY)");
+            executeQuery(stmt, "CREATE TABLE IF NOT EXISTS pgtimeseries_metric(key TEXT NOT NULL PRIMARY KEY, id BIGSERIAL NOT NULL UNIQUE)");
             // tag table
             executeQuery(stmt, "CREATE TABLE IF NOT EXISTS pgtimeseries_tag(fk_pgtimeseries_metric TEXT NOT NULL, key TEXT, value TEXT NOT NULL, type TEXT NOT NULL, UNIQUE (fk_pgtimeseries_metric, key, value, type))");
             // let pg_timseries take over the table; default partition for 1 week duration
@@ -187,23 +153,269 @@ public class PGTimeseriesDatabaseInitializer {
             statement.setString(1, config.getcompressionPolicy());
             statement.executeQuery();
 
-            //Indexes.  This is a WAG.
-            executeQuery(stmt, "CREATE INDEX ON pgtimeseries_time_series(time DESC)");
-            executeQuery(stmt, "CREATE INDEX ON pgtimeseries_time_series(key)");
+            syncIndexes(conn);
+            syncRollups(conn);
+            syncTombstones(conn);
         } finally {
             db.cleanUp();
         }
     }
 
-    public static void installExtension() throws SQLException {
+    boolean doesColumnExist(String tableName, String columnName) throws SQLException {
         DBUtils db = new DBUtils();
         try {
             Connection conn = getWhichDataSourceConnection();
+            db.watch(conn);
+            ResultSet columns = conn.getMetaData().getColumns(null, null, tableName, columnName);
+            db.watch(columns);
+            return columns.next();
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    /**
+     * Brings existing tables in line with the configuration: converts a pgtimeseries_time_series table keyed by
+     * TEXT metric keys to one keyed by metric ids if normalizeMetricKeys was switched on, and rebuilds the indexes
+     * if the indexStrategy changed.
+     */
+    public void upgradeTablesIfNeeded() throws SQLException {
+        final boolean keyedByText = doesColumnExist(TableNames.PGTIMESERIES_TIME_SERIES, "key");
+        if (config.getNormalizeMetricKeys() && keyedByText) {
+            log.info("pgtimeseries_time_series is keyed by metric key but normalizeMetricKeys is enabled. Migrating to metric ids, this can take a while.");
+            migrateToMetricIds();
+            log.info("pgtimeseries_time_series migrated to metric ids.");
+        } else if (!config.getNormalizeMetricKeys() && !keyedByText) {
+            throw new SQLException("pgtimeseries_time_series is keyed by metric id, normalizeMetricKeys must be enabled.");
+        }
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = getWhichDataSourceConnection();
+            db.watch(conn);
+            syncIndexes(conn);
+            syncRollups(conn);
+            syncTombstones(conn);
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    /**
+     * Creates the indexes required by the configured {@link IndexStrategy} and drops the ones maintained by
+     * this plugin which are no longer wanted. Indexes created by someone else are left alone.
+     */
+    void syncIndexes(final Connection conn) throws SQLException {
+        final Map<String, String> wanted = indexDefinitions(config.getIndexStrategy(), seriesColumn());
+        final Set<String> managed = new HashSet<>();
+        for (IndexStrategy strategy : IndexStrategy.values()) {
+            managed.addAll(indexDefinitions(strategy, "key").keySet());
+            managed.addAll(indexDefinitions(strategy, "metric_id").keySet());
+        }
+
+        DBUtils db = new DBUtils();
+        try {
+            final Set<String> existing = new HashSet<>();
+            PreparedStatement statement = conn.prepareStatement("SELECT indexname FROM pg_indexes WHERE tablename = ?");
+            db.watch(statement);
+            statement.setString(1, TableNames.PGTIMESERIES_TIME_SERIES);
+            ResultSet rs = statement.executeQuery();
+            db.watch(rs);
+            while (rs.next()) {
+                existing.add(rs.getString(1));
+            }
+
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            for (Map.Entry<String, String> index : wanted.entrySet()) {
+                if (!existing.contains(index.getKey())) {
+                    log.info("Creating index {}", index.getKey());
+                    executeQuery(stmt, index.getValue());
+                }
+            }
+            for (String index : existing) {
+                if (managed.contains(index) && !wanted.containsKey(index)) {
+                    log.info("Dropping index {} which is not used by index strategy {}", index, config.getIndexStrategy());
+                    executeQuery(stmt, "DROP INDEX IF EXISTS " + index);
+                }
+            }
+            // drives findMetrics(): the most selective matcher is looked up by (key, value), the metric key is
+            // included so the lookup does not need to visit the table. text_pattern_ops allows range scans for the
+            // literal prefix of anchored regular expressions, and equality lookups as well.
+            executeQuery(stmt, "CREATE INDEX IF NOT EXISTS pgtimeseries_tag_key_value_pattern_idx ON pgtimeseries_tag(key, value text_pattern_ops, fk_pgtimeseries_metric)");
+            // the same index with the default operator class, as created by earlier versions
+            executeQuery(stmt, "DROP INDEX IF EXISTS pgtimeseries_tag_key_value_idx");
+            if (config.getTagTrigramIndex()) {
+                // lets PostgreSQL use an index for unanchored regular expressions as well
+                executeQuery(stmt, "CREATE EXTENSION IF NOT EXISTS pg_trgm");
+                executeQuery(stmt, "CREATE INDEX IF NOT EXISTS pgtimeseries_tag_value_trgm_idx ON pgtimeseries_tag USING GIN (value gin_trgm_ops)");
+            } else {
+                executeQuery(stmt, "DROP INDEX IF EXISTS pgtimeseries_tag_value_trgm_idx");
+            }
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    /** Creates the table of the metrics deleted with softDelete which are not purged yet. */
+    void syncTombstones(final Connection conn) throws SQLException {
+        if (!config.getSoftDelete()) {
+            return;
+        }
+        DBUtils db = new DBUtils();
+        try {
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            executeQuery(stmt, "CREATE TABLE IF NOT EXISTS pgtimeseries_tombstone(key TEXT NOT NULL PRIMARY KEY, deleted_at TIMESTAMPTZ NOT NULL)");
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    /**
+     * Creates the tables of the configured rollup levels which do not exist yet, each with its own retention
+     * policy, and the watermark from which it is populated: the start of the retention period. Tables of levels
+     * which are no longer configured are left alone.
+     */
+    void syncRollups(final Connection conn) throws SQLException {
+        final String seriesType = config.getNormalizeMetricKeys() ? "BIGINT" : "TEXT";
+        DBUtils db = new DBUtils();
+        try {
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            executeQuery(stmt, "CREATE TABLE IF NOT EXISTS pgtimeseries_rollup_state(level TEXT NOT NULL PRIMARY KEY, watermark TIMESTAMPTZ NOT NULL)");
+            for (RollupLevel level : RollupLevel.parse(config.getRollupLevels())) {
+                if (doesPGTimeseriesTableExist(level.getTable())) {
+                    continue;
+                }
+                log.info("Creating rollup table {} with a retention of {}", level.getTable(), level.getRetention());
+                executeQuery(stmt, "CREATE TABLE " + level.getTable() + "(" + seriesColumn() + " " + seriesType + " NOT NULL, time TIMESTAMPTZ NOT NULL, "
+                        + "value_min DOUBLE PRECISION NULL, value_max DOUBLE PRECISION NULL, value_sum DOUBLE PRECISION NULL, "
+                        + "value_count BIGINT NOT NULL, value_last DOUBLE PRECISION NULL, "
+                        + "PRIMARY KEY (" + seriesColumn() + ", time)) PARTITION BY RANGE (time)");
+
+                // older windows would be dropped by the retention policy right away
+                final String start = "date_bin(cast(? as interval), now() - cast(? as interval), to_timestamp(0))";
+                PreparedStatement statement = conn.prepareStatement("SELECT enable_ts_table(?, partition_duration := cast(? as interval), initial_table_start := " + start + ")");
+                db.watch(statement);
+                statement.setString(1, level.getTable());
+                statement.setString(2, level.getPartitionInterval());
+                statement.setString(3, level.getResolutionInterval());
+                statement.setString(4, level.getRetentionInterval());
+                statement.executeQuery();
+
+                statement = conn.prepareStatement("SELECT set_ts_retention_policy(?, cast(? as interval))");
+                db.watch(statement);
+                statement.setString(1, level.getTable());
+                statement.setString(2, level.getRetentionInterval());
+                statement.executeQuery();
+
+                statement = conn.prepareStatement("INSERT INTO pgtimeseries_rollup_state(level, watermark) VALUES (?, " + start + ") "
+                        + "ON CONFLICT (level) DO UPDATE SET watermark = EXCLUDED.watermark");
+                db.watch(statement);
+                statement.setString(1, level.getName());
+                statement.setString(2, level.getResolutionInterval());
+                statement.setString(3, level.getRetentionInterval());
+                statement.executeUpdate();
+            }
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    static Map<String, String> indexDefinitions(final IndexStrategy strategy, final String seriesColumn) {
+        final String table = TableNames.PGTIMESERIES_TIME_SERIES;
+        final Map<String, String> indexes = new LinkedHashMap<>();
+        switch (strategy) {
+            case SEPARATE:
+                // the names postgres generates for unnamed indexes, as created by earlier versions
+                indexes.put(table + "_time_idx", "CREATE INDEX IF NOT EXISTS " + table + "_time_idx ON " + table + "(time DESC)");
+                indexes.put(table + "_" + seriesColumn + "_idx", "CREATE INDEX IF NOT EXISTS " + table + "_" + seriesColumn + "_idx ON " + table + "(" + seriesColumn + ")");
+                break;
+            case COMPOSITE_BRIN:
+                indexes.put(table + "_time_brin_idx", "CREATE INDEX IF NOT EXISTS " + table + "_time_brin_idx ON " + table + " USING BRIN (time)");
+                // fall through
+            case COMPOSITE:
+                indexes.put(table + "_" + seriesColumn + "_time_idx", "CREATE INDEX IF NOT EXISTS " + table + "_" + seriesColumn + "_time_idx ON " + table + "(" + seriesColumn + ", time)");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown IndexStrategy " + strategy);
+        }
+        return indexes;
+    }
+
+    /**
+     * Fills in the metric ids of pgtimeseries_time_series and the rollup tables in one transaction per partition,
+     * so no transaction spans a whole table and an interrupted migration continues with the rows which have no id
+     * yet. Only the final switch from the key to the metric_id column runs in one transaction.
+     */
+    void migrateToMetricIds() throws SQLException {
+        final List<String> rollupTables = new ArrayList<>();
+        for (RollupLevel level : RollupLevel.parse(config.getRollupLevels())) {
+            if (doesColumnExist(level.getTable(), "key")) {
+                rollupTables.add(level.getTable());
+            }
+        }
+        final List<String> tables = new ArrayList<>();
+        tables.add(TableNames.PGTIMESERIES_TIME_SERIES);
+        tables.addAll(rollupTables);
+
+        DBUtils db = new DBUtils();
+        Connection conn = getWhichDataSourceConnection();
+        db.watch(conn);
+        try {
+            conn.setAutoCommit(false);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            executeQuery(stmt, "ALTER TABLE pgtimeseries_metric ADD COLUMN IF NOT EXISTS id BIGSERIAL NOT NULL UNIQUE");
+            for (String table : tables) {
+                executeQuery(stmt, "ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS metric_id BIGINT");
+            }
+            conn.commit();
+            for (String table : tables) {
+                for (String partition : MetricDeleter.partitions(conn, table)) {
+                    executeQuery(stmt, "INSERT INTO pgtimeseries_metric(key) SELECT DISTINCT key FROM " + partition + " WHERE metric_id IS NULL ON CONFLICT (key) DO NOTHING");
+                    executeQuery(stmt, "UPDATE " + partition + " t SET metric_id = m.id FROM pgtimeseries_metric m WHERE m.key = t.key AND t.metric_id IS NULL");
+                    conn.commit();
+                    log.info("Migrated {} to metric ids", partition);
+                }
+            }
+            for (String table : tables) {
+                executeQuery(stmt, "ALTER TABLE " + table + " ALTER COLUMN metric_id SET NOT NULL");
+                // drops the indexes on key as well, upgradeTablesIfNeeded() recreates them for metric_id
+                executeQuery(stmt, "ALTER TABLE " + table + " DROP COLUMN key");
+            }
+            for (String table : rollupTables) {
+                executeQuery(stmt, "ALTER TABLE " + table + " ADD PRIMARY KEY (metric_id, time)");
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+            db.cleanUp();
+        }
+    }
+
+    private String seriesColumn() {
+        return config.getNormalizeMetricKeys() ? "metric_id" : "key";
+    }
+
+    public void installExtension() throws SQLException {
+        DBUtils db = new DBUtils();
+        // the admin pool is only needed for this one statement
+        HikariDataSource hikariAdmDs = null;
+        try {
+            Connection conn;
             if (isAdminDatasourceURLAvailable()) {
+                hikariAdmDs = new HikariDataSource();
+                hikariAdmDs.setJdbcUrl(config.getAdminDatasourceURL());
+                hikariAdmDs.setPoolName("pgtimeseries-admin");
                 log.info("Using admin datasource to install extension: " + hikariAdmDs.toString());
                 conn = hikariAdmDs.getConnection();
             }
             else {
+                conn = getWhichDataSourceConnection();
                 log.info("Using configured datasource to install extension: " + conn.toString());
             }
             if (conn == null) {
@@ -215,10 +427,13 @@ public class PGTimeseriesDatabaseInitializer {
             executeQuery(stmt, "CREATE EXTENSION timeseries CASCADE");
         } finally {
             db.cleanUp();
+            if (hikariAdmDs != null) {
+                hikariAdmDs.close();
+            }
         }
     }
 
-    private static void executeQuery(Statement stmt, final String sql) throws SQLException {
+    private void executeQuery(Statement stmt, final String sql) throws SQLException {
         log.debug(sql);
         stmt.execute(sql);
     }
@@ -234,6 +449,7 @@ public class PGTimeseriesDatabaseInitializer {
 
             // Check and create tables
             if (isPGTimeseriesTablesExisting()) {
+                upgradeTablesIfNeeded();
                 log.info("pg_timeseries tables exist. We are good to go.");
             } else {
                 log.info("pg_timeseries tables are missing. Will create them now.");
@@ -0,0 +1,158 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zaxxer.hikari.HikariDataSource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hands out the connections for reads. Reads are spread round robin over the read replicas; a replica which fails
+ * to provide a connection is skipped. With replicaProbeIntervalSeconds every replica is probed in the background:
+ * a replica which does not answer, or lags more than replicaMaxLagSeconds behind the primary, is skipped until a
+ * later probe finds it healthy again. Without the probe a failed replica is tried again after 30 seconds.
+ * Without replicas, or if none is healthy, the primary is used.
+ */
+@Slf4j
+public class ReadRouter {
+
+    private static final long RETRY_DOWN_REPLICA_NANOS = TimeUnit.SECONDS.toNanos(30);
+    /** Seconds since the last replayed transaction, 0 if the replica replayed all WAL it received, NULL on a primary. */
+    private static final String LAG_SQL = "SELECT CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+            + "ELSE extract(epoch FROM now() - pg_last_xact_replay_timestamp()) END";
+
+    private final DataSource primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final Meter replicaReads;
+    private final Meter replicaFailures;
+    private final int probeIntervalSeconds;
+    private final int maxLagSeconds;
+
+    private ScheduledExecutorService prober;
+
+    public ReadRouter(final PGTimeseriesConfig config, final DataSource primary, final List<HikariDataSource> replicas, final MetricRegistry metrics) {
+        this.primary = Objects.requireNonNull(primary);
+        for (HikariDataSource dataSource : replicas) {
+            final Replica replica = new Replica(dataSource);
+            metrics.register("replicaLag." + this.replicas.size(), (Gauge<Double>) () -> replica.lagSeconds);
+            this.replicas.add(replica);
+        }
+        this.replicaReads = metrics.meter("replicaReads");
+        this.replicaFailures = metrics.meter("replicaFailures");
+        this.probeIntervalSeconds = config.getReplicaProbeIntervalSeconds();
+        this.maxLagSeconds = config.getReplicaMaxLagSeconds();
+    }
+
+    /** Starts probing the replicas, does nothing without replicas or with replicaProbeIntervalSeconds 0. */
+    public void start() {
+        if (replicas.isEmpty() || probeIntervalSeconds <= 0) {
+            return;
+        }
+        prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("pgtimeseries-replica-probe-%d")
+                .setDaemon(true)
+                .build());
+        prober.scheduleWithFixedDelay(this::probe, 0, probeIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public Connection getConnection() throws SQLException {
+        final int start = next.getAndIncrement();
+        for (int i = 0; i < replicas.size(); i++) {
+            final Replica replica = replicas.get(Math.floorMod(start + i, replicas.size()));
+            if (replica.down && (prober != null || System.nanoTime() - replica.downSince < RETRY_DOWN_REPLICA_NANOS)) {
+                continue;
+            }
+            try {
+                final Connection connection = replica.dataSource.getConnection();
+                replica.down = false;
+                replicaReads.mark();
+                return connection;
+            } catch (SQLException | RuntimeException e) {
+                markDown(replica, "is not available", e);
+            }
+        }
+        return primary.getConnection();
+    }
+
+    public void close() {
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+        for (Replica replica : replicas) {
+            replica.dataSource.close();
+        }
+    }
+
+    private void probe() {
+        for (Replica replica : replicas) {
+            final DBUtils db = new DBUtils(this.getClass());
+            try {
+                final Connection connection = replica.dataSource.getConnection();
+                db.watch(connection);
+                final PreparedStatement statement = connection.prepareStatement(LAG_SQL);
+                db.watch(statement);
+                final ResultSet rs = statement.executeQuery();
+                db.watch(rs);
+                rs.next();
+                replica.lagSeconds = rs.getDouble(1);
+                if (maxLagSeconds > 0 && replica.lagSeconds > maxLagSeconds) {
+                    markDown(replica, "lags " + Math.round(replica.lagSeconds) + "s behind the primary", null);
+                } else if (replica.down) {
+                    log.info("Read replica {} is available again", replica.dataSource.getPoolName());
+                    replica.down = false;
+                }
+            } catch (SQLException | RuntimeException e) {
+                markDown(replica, "is not available", e);
+            } finally {
+                db.cleanUp();
+            }
+        }
+    }
+
+    private void markDown(final Replica replica, final String reason, final Exception e) {
+        replica.downSince = System.nanoTime();
+        final boolean wasDown = replica.down;
+        replica.down = true;
+        replicaFailures.mark();
+        if (!wasDown) {
+            if (prober != null) {
+                log.warn("Read replica {} {}, skipping it until it recovers", replica.dataSource.getPoolName(), reason, e);
+            } else {
+                log.warn("Read replica {} {}, skipping it for {}s", replica.dataSource.getPoolName(), reason,
+                        TimeUnit.NANOSECONDS.toSeconds(RETRY_DOWN_REPLICA_NANOS), e);
+            }
+        }
+    }
+
+    private static class Replica {
+        private final HikariDataSource dataSource;
+        private volatile boolean down;
+        /** System.nanoTime() of the last failure. */
+        private volatile long downSince;
+        /** Replication lag found by the last probe. */
+        private volatile double lagSeconds;
+
+        private Replica(final HikariDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.Value;
+
+/**
+ * A table of samples pre-aggregated to a fixed resolution, e.g. 1h, which is kept for its own retention.
+ * Buckets are aligned to the epoch, each row holds min, max, sum and count of the samples of its bucket and
+ * the last sample, from which counter rates are computed.
+ */
+@Value
+public class RollupLevel {
+
+    private static final Pattern DURATION = Pattern.compile("(\\d+)([smhd])");
+
+    /** The resolution as configured, e.g. 5m. */
+    String name;
+    Duration resolution;
+    Duration retention;
+
+    public String getTable() {
+        return "pgtimeseries_rollup_" + name;
+    }
+
+    /** Resolution and retention as PostgreSQL intervals. */
+    public String getResolutionInterval() {
+        return resolution.getSeconds() + " seconds";
+    }
+
+    public String getRetentionInterval() {
+        return retention.getSeconds() + " seconds";
+    }
+
+    /** Rows older than the retention are dropped partition by partition, so partitions should not be too large. */
+    public String getPartitionInterval() {
+        final Duration partition = resolution.multipliedBy(2000).compareTo(retention.dividedBy(4)) < 0
+                ? resolution.multipliedBy(2000)
+                : retention.dividedBy(4);
+        return Math.max(partition.getSeconds(), resolution.getSeconds()) + " seconds";
+    }
+
+    /**
+     * @param levels comma separated resolution:retention pairs, e.g. "5m:90d,1h:365d,1d:3650d". Durations are
+     *               numbers followed by s, m, h or d.
+     * @return the levels ordered from the finest to the coarsest resolution, empty if levels is empty.
+     */
+    public static List<RollupLevel> parse(final String levels) {
+        final List<RollupLevel> result = new ArrayList<>();
+        if (levels == null) {
+            return result;
+        }
+        for (String level : levels.split(",")) {
+            if (level.trim().isEmpty()) {
+                continue;
+            }
+            final String[] parts = level.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Rollup level must be <resolution>:<retention>, got " + level);
+            }
+            final Duration resolution = duration(parts[0].trim());
+            final Duration retention = duration(parts[1].trim());
+            if (retention.compareTo(resolution) < 0) {
+                throw new IllegalArgumentException("Rollup retention must not be shorter than its resolution, got " + level);
+            }
+            for (RollupLevel other : result) {
+                if (other.getResolution().equals(resolution)) {
+                    throw new IllegalArgumentException("Duplicate rollup resolution " + parts[0].trim());
+                }
+            }
+            result.add(new RollupLevel(parts[0].trim(), resolution, retention));
+        }
+        result.sort(Comparator.comparing(RollupLevel::getResolution));
+        return result;
+    }
+
+    private static Duration duration(final String value) {
+        final Matcher matcher = DURATION.matcher(value);
+        if (!matcher.matches() || Long.parseLong(matcher.group(1)) <= 0) {
+            throw new IllegalArgumentException("Invalid duration " + value + ", expected a positive number followed by s, m, h or d");
+        }
+        final long amount = Long.parseLong(matcher.group(1));
+        switch (matcher.group(2)) {
+            case "s":
+                return Duration.ofSeconds(amount);
+            case "m":
+                return Duration.ofMinutes(amount);
+            case "h":
+                return Duration.ofHours(amount);
+            default:
+                return Duration.ofDays(amount);
+        }
+    }
+}
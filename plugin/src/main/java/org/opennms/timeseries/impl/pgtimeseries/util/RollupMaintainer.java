@@ -0,0 +1,226 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps the rollups fresh: every rollupIntervalSeconds the time windows which closed since the last run are
+ * rolled up, level by level and chunk by chunk. The series are split into rollupThreads key ranges which are
+ * rolled up concurrently, each on its own connection. The watermark of a level only moves once all key ranges of
+ * a chunk succeeded; a failed chunk is retried by the next run.
+ */
+@Slf4j
+public class RollupMaintainer {
+
+    /** Key ranges are computed again after this long, to follow the metrics which were added in between. */
+    private static final Duration KEY_RANGES_TTL = Duration.ofHours(1);
+
+    private final Rollups rollups;
+    private final DataSource dataSource;
+    private final int threads;
+    private final long intervalSeconds;
+    private final Meter rowsWritten;
+    private final Meter failures;
+    private final Timer runDuration;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService workers;
+    private List<Rollups.KeyRange> keyRanges;
+    private Instant keyRangesComputed;
+
+    public RollupMaintainer(final PGTimeseriesConfig config, final Rollups rollups, final DataSource dataSource, final MetricRegistry metrics) {
+        this.rollups = Objects.requireNonNull(rollups);
+        this.dataSource = Objects.requireNonNull(dataSource);
+        this.threads = Math.max(1, config.getRollupThreads());
+        this.intervalSeconds = Math.max(1, config.getRollupIntervalSeconds());
+        this.rowsWritten = metrics.meter("rollupRowsWritten");
+        this.failures = metrics.meter("rollupFailures");
+        this.runDuration = metrics.timer("rollupRunDuration");
+        for (RollupLevel level : rollups.getLevels()) {
+            // seconds the level is behind, including the rollupDelaySeconds it always lags
+            metrics.register(MetricRegistry.name("rollupLag", level.getName()), (Gauge<Long>) () -> {
+                final Instant watermark = rollups.getWatermark(level);
+                return watermark == null ? -1 : Duration.between(watermark, Instant.now()).getSeconds();
+            });
+        }
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("pgtimeseries-rollup-%d")
+                .setDaemon(true)
+                .build());
+        if (threads > 1) {
+            workers = Executors.newFixedThreadPool(threads - 1, new ThreadFactoryBuilder()
+                    .setNameFormat("pgtimeseries-rollup-worker-%d")
+                    .setDaemon(true)
+                    .build());
+        }
+        scheduler.scheduleWithFixedDelay(this::scheduledRun, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    public Rollups getRollups() {
+        return rollups;
+    }
+
+    /**
+     * Rolls up all closed windows of the level which are not rolled up yet. Runs of the scheduler and of the
+     * shell are serialized.
+     *
+     * @return the number of rollup rows written.
+     */
+    public synchronized long run(final RollupLevel level) throws SQLException {
+        long rows = 0;
+        try (Timer.Context ignored = runDuration.time()) {
+            Instant watermark = rollups.getWatermark(level);
+            if (watermark == null) {
+                log.warn("No watermark for rollup level {}, was the table created?", level.getName());
+                return 0;
+            }
+            final Instant closed = rollups.closedUpTo(level, Instant.now());
+            final List<Rollups.KeyRange> ranges = keyRanges();
+            while (watermark.isBefore(closed)) {
+                final Instant to = watermark.plus(rollups.chunk(level)).isBefore(closed) ? watermark.plus(rollups.chunk(level)) : closed;
+                rows += rollup(level, watermark, to, ranges);
+                final DBUtils db = new DBUtils(this.getClass());
+                try {
+                    final Connection connection = dataSource.getConnection();
+                    db.watch(connection);
+                    rollups.advance(connection, level, to);
+                } finally {
+                    db.cleanUp();
+                }
+                watermark = to;
+            }
+        } catch (SQLException | RuntimeException e) {
+            failures.mark();
+            throw e;
+        } finally {
+            rowsWritten.mark(rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Moves the watermark of the level back to the given time and rolls up everything from there again, e.g. after
+     * samples were imported.
+     *
+     * @return the number of rollup rows written.
+     */
+    public synchronized long backfill(final RollupLevel level, final Instant from) throws SQLException {
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final Connection connection = dataSource.getConnection();
+            db.watch(connection);
+            rollups.rewind(connection, level, from);
+        } finally {
+            db.cleanUp();
+        }
+        return run(level);
+    }
+
+    private void scheduledRun() {
+        for (RollupLevel level : rollups.getLevels()) {
+            try {
+                run(level);
+            } catch (SQLException | RuntimeException e) {
+                log.error("Could not refresh rollup level {}", level.getName(), e);
+            }
+        }
+    }
+
+    /** Rolls up one window, the first key range on the calling thread and the others on the workers. */
+    private long rollup(final RollupLevel level, final Instant from, final Instant to, final List<Rollups.KeyRange> ranges) throws SQLException {
+        final List<Future<Integer>> futures = new ArrayList<>(ranges.size() - 1);
+        for (Rollups.KeyRange range : ranges.subList(1, ranges.size())) {
+            futures.add(workers.submit(() -> rollup(level, from, to, range)));
+        }
+        SQLException failure = null;
+        long rows = 0;
+        try {
+            rows += rollup(level, from, to, ranges.get(0));
+        } catch (SQLException e) {
+            failure = e;
+        }
+        for (Future<Integer> future : futures) {
+            try {
+                rows += future.get();
+            } catch (ExecutionException e) {
+                final SQLException cause = e.getCause() instanceof SQLException
+                        ? (SQLException) e.getCause()
+                        : new SQLException(e.getCause());
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while rolling up " + level.getTable(), e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return rows;
+    }
+
+    private int rollup(final RollupLevel level, final Instant from, final Instant to, final Rollups.KeyRange range) throws SQLException {
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final Connection connection = dataSource.getConnection();
+            db.watch(connection);
+            return rollups.rollup(connection, level, from, to, range);
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    private List<Rollups.KeyRange> keyRanges() throws SQLException {
+        if (keyRanges == null || keyRangesComputed.plus(KEY_RANGES_TTL).isBefore(Instant.now())) {
+            final DBUtils db = new DBUtils(this.getClass());
+            try {
+                final Connection connection = dataSource.getConnection();
+                db.watch(connection);
+                keyRanges = rollups.keyRanges(connection, workers != null ? threads : 1);
+                keyRangesComputed = Instant.now();
+                log.debug("Rolling up {} key ranges: {}", keyRanges.size(), keyRanges);
+            } finally {
+                db.cleanUp();
+            }
+        }
+        return keyRanges;
+    }
+}
@@ -0,0 +1,267 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The configured rollup levels and how far each of them is populated. Everything before the watermark of a level
+ * has been aggregated into its table, fetches read the rollup up to the watermark and the raw samples after it.
+ * A watermark which is behind the one in the database only means more raw samples are read, so the watermarks
+ * kept here do not need to be exact.
+ */
+@Slf4j
+public class Rollups {
+
+    /** Windows are rolled up in chunks of at most this size, each in its own transaction. */
+    private static final Duration CHUNK = Duration.ofDays(1);
+
+    private static final String LOAD_SQL = "SELECT level, watermark FROM pgtimeseries_rollup_state";
+    private static final String ADVANCE_SQL = "UPDATE pgtimeseries_rollup_state SET watermark = ? WHERE level = ? AND watermark < ?";
+    private static final String REWIND_SQL = "UPDATE pgtimeseries_rollup_state SET watermark = ? WHERE level = ? AND watermark > ?";
+
+    private final List<RollupLevel> levels;
+    private final String seriesColumn;
+    private final Duration delay;
+    private final Map<String, Instant> watermarks = new ConcurrentHashMap<>();
+
+    public Rollups(final PGTimeseriesConfig config, final String seriesColumn) {
+        this.levels = Collections.unmodifiableList(RollupLevel.parse(config.getRollupLevels()));
+        this.seriesColumn = seriesColumn;
+        this.delay = Duration.ofSeconds(config.getRollupDelaySeconds());
+    }
+
+    /** @return the levels from the finest to the coarsest resolution. */
+    public List<RollupLevel> getLevels() {
+        return levels;
+    }
+
+    public void loadWatermarks(final Connection connection) throws SQLException {
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final PreparedStatement statement = connection.prepareStatement(LOAD_SQL);
+            db.watch(statement);
+            final ResultSet rs = statement.executeQuery();
+            db.watch(rs);
+            while (rs.next()) {
+                watermarks.put(rs.getString("level"), rs.getTimestamp("watermark").toInstant());
+            }
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    /** @return the time up to which the level is populated, null if it is not known. */
+    public Instant getWatermark(final RollupLevel level) {
+        return watermarks.get(level.getName());
+    }
+
+    void setWatermark(final RollupLevel level, final Instant watermark) {
+        watermarks.merge(level.getName(), watermark, (a, b) -> a.isAfter(b) ? a : b);
+    }
+
+    /**
+     * Picks the coarsest level whose resolution evenly divides the step of the request, which still holds the
+     * start of the request and which is populated beyond it. Rollup buckets are aligned to the epoch, fetch
+     * buckets to the start of the request: unless the start is aligned to the resolution the rollup buckets at
+     * the edges of a fetch bucket are attributed to the fetch bucket they start in.
+     * Rollups keep the last sample of each bucket but not the single increases, so MIN and MAX of counters are
+     * always computed from raw samples.
+     *
+     * @return the level to read, null if the raw samples must be read.
+     */
+    public RollupLevel choose(final TimeSeriesFetchRequest request, final boolean counter, final Instant now) {
+        if (counter && (request.getAggregation() == Aggregation.MIN || request.getAggregation() == Aggregation.MAX)) {
+            return null;
+        }
+        final long stepMs = request.getStep().toMillis();
+        for (int i = levels.size() - 1; i >= 0; i--) {
+            final RollupLevel level = levels.get(i);
+            final long resolutionMs = level.getResolution().toMillis();
+            final Instant watermark = getWatermark(level);
+            if (resolutionMs <= stepMs && stepMs % resolutionMs == 0
+                    && !request.getStart().isBefore(now.minus(level.getRetention()))
+                    && watermark != null && watermark.isAfter(request.getStart())) {
+                return level;
+            }
+        }
+        return null;
+    }
+
+    /** @return the end of the last window of the level which was closed for at least rollupDelaySeconds. */
+    public Instant closedUpTo(final RollupLevel level, final Instant now) {
+        return align(now.minus(delay), level.getResolution());
+    }
+
+    /** @return the size of the time windows which are rolled up at once, a multiple of the resolution. */
+    public Duration chunk(final RollupLevel level) {
+        return CHUNK.compareTo(level.getResolution()) < 0 ? level.getResolution() : CHUNK;
+    }
+
+    /**
+     * Splits the series into ranges with about the same number of metrics, so they can be rolled up
+     * concurrently. The ranges cover all series, including ones which do not exist yet.
+     */
+    public List<KeyRange> keyRanges(final Connection connection, final int ranges) throws SQLException {
+        final List<KeyRange> result = new ArrayList<>();
+        if (ranges <= 1) {
+            result.add(new KeyRange(null, null));
+            return result;
+        }
+        final Double[] fractions = new Double[ranges - 1];
+        for (int i = 0; i < fractions.length; i++) {
+            fractions[i] = (i + 1) / (double) ranges;
+        }
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final PreparedStatement statement = connection.prepareStatement("metric_id".equals(seriesColumn)
+                    ? "SELECT percentile_disc(?) WITHIN GROUP (ORDER BY id) FROM pgtimeseries_metric"
+                    : "SELECT percentile_disc(?) WITHIN GROUP (ORDER BY fk_pgtimeseries_metric) FROM pgtimeseries_tag");
+            db.watch(statement);
+            statement.setArray(1, connection.createArrayOf("float8", fractions));
+            final ResultSet rs = statement.executeQuery();
+            db.watch(rs);
+            Object lower = null;
+            if (rs.next() && rs.getArray(1) != null) {
+                for (Object boundary : (Object[]) rs.getArray(1).getArray()) {
+                    if (boundary != null && !boundary.equals(lower)) {
+                        result.add(new KeyRange(lower, boundary));
+                        lower = boundary;
+                    }
+                }
+            }
+            result.add(new KeyRange(lower, null));
+            return result;
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    /**
+     * Aggregates the samples of the series in the range from one time window into the rollup of the level in its
+     * own transaction. Rolling up a window again replaces its rows, so repeated or concurrent runs do no harm.
+     *
+     * @return the number of rollup rows written.
+     */
+    public int rollup(final Connection connection, final RollupLevel level, final Instant from, final Instant to, final KeyRange range) throws SQLException {
+        final DBUtils db = new DBUtils(this.getClass());
+        final boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false);
+            final PreparedStatement insert = connection.prepareStatement(rollupSql(level, seriesColumn, range));
+            db.watch(insert);
+            int i = 1;
+            insert.setDouble(i++, level.getResolution().getSeconds());
+            insert.setTimestamp(i++, Timestamp.from(from));
+            insert.setTimestamp(i++, Timestamp.from(to));
+            if (range.getLower() != null) {
+                insert.setObject(i++, range.getLower());
+            }
+            if (range.getUpper() != null) {
+                insert.setObject(i, range.getUpper());
+            }
+            final int rows = insert.executeUpdate();
+            connection.commit();
+            log.debug("Rolled up {} rows of {} into {} from {} to {}", rows, range, level.getTable(), from, to);
+            return rows;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+            db.cleanUp();
+        }
+    }
+
+    /** Moves the watermark of the level forward to the given time, once all series are rolled up to it. */
+    public void advance(final Connection connection, final RollupLevel level, final Instant to) throws SQLException {
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final PreparedStatement advance = connection.prepareStatement(ADVANCE_SQL);
+            db.watch(advance);
+            advance.setTimestamp(1, Timestamp.from(to));
+            advance.setString(2, level.getName());
+            advance.setTimestamp(3, Timestamp.from(to));
+            advance.executeUpdate();
+        } finally {
+            db.cleanUp();
+        }
+        setWatermark(level, to);
+    }
+
+    /**
+     * Moves the watermark of the level back, so all windows from the given time on are rolled up again, e.g. after
+     * samples were imported. Until they are, fetches read the raw samples of these windows.
+     */
+    public void rewind(final Connection connection, final RollupLevel level, final Instant from) throws SQLException {
+        final Instant aligned = align(from, level.getResolution());
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final PreparedStatement rewind = connection.prepareStatement(REWIND_SQL);
+            db.watch(rewind);
+            rewind.setTimestamp(1, Timestamp.from(aligned));
+            rewind.setString(2, level.getName());
+            rewind.setTimestamp(3, Timestamp.from(aligned));
+            rewind.executeUpdate();
+        } finally {
+            db.cleanUp();
+        }
+        watermarks.computeIfPresent(level.getName(), (name, watermark) -> watermark.isAfter(aligned) ? aligned : watermark);
+    }
+
+    /** @return the start of the bucket of the resolution which contains the time. */
+    static Instant align(final Instant time, final Duration resolution) {
+        final long resolutionMs = resolution.toMillis();
+        return Instant.ofEpochMilli(Math.floorDiv(time.toEpochMilli(), resolutionMs) * resolutionMs);
+    }
+
+    static String rollupSql(final RollupLevel level, final String seriesColumn, final KeyRange range) {
+        return "INSERT INTO " + level.getTable() + "(" + seriesColumn + ", time, value_min, value_max, value_sum, value_count, value_last) " +
+                "SELECT " +
+                    seriesColumn + ", " +
+                    "date_bin( make_interval( secs => ? ), time, to_timestamp( 0 ) ), " +
+                    "min( value ), " +
+                    "max( value ), " +
+                    "sum( value ), " +
+                    "count( value ), " +
+                    "( array_agg( value ORDER BY time DESC ) FILTER ( WHERE value IS NOT NULL ) )[1] " +
+                "FROM " +
+                    "pgtimeseries_time_series " +
+                "WHERE " +
+                    "time >= ? AND " +
+                    "time < ? " +
+                    (range.getLower() != null ? "AND " + seriesColumn + " >= ? " : "") +
+                    (range.getUpper() != null ? "AND " + seriesColumn + " < ? " : "") +
+                "GROUP BY " +
+                    "1, 2 " +
+                "ON CONFLICT ( " + seriesColumn + ", time ) DO UPDATE SET " +
+                    "value_min = EXCLUDED.value_min, " +
+                    "value_max = EXCLUDED.value_max, " +
+                    "value_sum = EXCLUDED.value_sum, " +
+                    "value_count = EXCLUDED.value_count, " +
+                    "value_last = EXCLUDED.value_last";
+    }
+
+    /** The series from lower (inclusive) to upper (exclusive), null bounds are open. */
+    @Value
+    public static class KeyRange {
+        Object lower;
+        Object upper;
+    }
+}
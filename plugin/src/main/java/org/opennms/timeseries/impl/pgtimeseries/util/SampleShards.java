@@ -0,0 +1,33 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+
+/**
+ * Splits samples by the hash of their metric key. All samples of a metric end up in the same shard, in the order
+ * they were given, so shards can be written concurrently without reordering the samples of a metric.
+ */
+public class SampleShards {
+
+    private SampleShards() {
+    }
+
+    /** @return exactly {@code shards} lists, some of them may be empty. */
+    public static List<List<Sample>> byMetric(final List<Sample> samples, final int shards) {
+        final List<List<Sample>> result = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            result.add(new ArrayList<>(samples.size() / shards + 1));
+        }
+        for (Sample sample : samples) {
+            result.get(shardOf(sample, shards)).add(sample);
+        }
+        return result;
+    }
+
+    /** @return the shard in {@code [0, shards)} all samples of the metric of this sample belong to. */
+    public static int shardOf(final Sample sample, final int shards) {
+        return Math.floorMod(sample.getMetric().getKey().hashCode(), shards);
+    }
+}
@@ -0,0 +1,22 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import org.opennms.integration.api.v1.timeseries.StorageException;
+
+/**
+ * Writing samples failed part way: the batches before the failure were written, the remaining samples were not.
+ * The samples are not accounted as lost yet, whoever catches this decides whether they are retried or lost.
+ */
+public class SamplesLostException extends StorageException {
+
+    private final int lost;
+
+    public SamplesLostException(final int lost, final Throwable cause) {
+        super(lost + " samples were not written", cause);
+        this.lost = lost;
+    }
+
+    /** @return the number of samples which were not written. */
+    public int getLost() {
+        return lost;
+    }
+}
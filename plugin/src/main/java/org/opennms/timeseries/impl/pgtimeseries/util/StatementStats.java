@@ -0,0 +1,53 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+import org.postgresql.PGStatement;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Prepares the statements of the hot paths and counts how many of their executions used a server side prepared
+ * statement. The driver caches prepared statements per connection by their SQL, after prepareThreshold executions
+ * of the same SQL on a connection it switches to a named server side statement which PostgreSQL neither parses nor
+ * plans again. In steady state serverPreparedExecutions should therefore be close to statementsExecuted.
+ */
+public class StatementStats {
+
+    private final int prepareThreshold;
+    private final Meter prepared;
+    private final Meter executed;
+    private final Meter serverPrepared;
+
+    public StatementStats(final PGTimeseriesConfig config, final MetricRegistry metrics) {
+        this.prepareThreshold = config.getPrepareThreshold();
+        this.prepared = metrics.meter("statementsPrepared");
+        this.executed = metrics.meter("statementsExecuted");
+        this.serverPrepared = metrics.meter("serverPreparedExecutions");
+    }
+
+    /**
+     * Prepares the statement with the configured prepareThreshold. The threshold is set on the statement rather
+     * than the connection, so connections borrowed from the OpenNMS pool are left as they are.
+     */
+    public PreparedStatement prepare(final Connection connection, final String sql) throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement(sql);
+        prepared.mark();
+        if (statement.isWrapperFor(PGStatement.class)) {
+            statement.unwrap(PGStatement.class).setPrepareThreshold(prepareThreshold);
+        }
+        return statement;
+    }
+
+    /** To be called after each execution of a statement returned by {@link #prepare}. */
+    public void executed(final PreparedStatement statement) throws SQLException {
+        executed.mark();
+        if (statement.isWrapperFor(PGStatement.class) && statement.unwrap(PGStatement.class).isUseServerPrepare()) {
+            serverPrepared.mark();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+import lombok.Value;
+
+/**
+ * Collects the tag rows of all metrics seen in a store() call so they can be upserted into
+ * pgtimeseries_tag with a single statement. Rows that are added more than once are only written once.
+ * The rows are written sorted by metric, key, value and type: concurrent upserts then lock the conflicting
+ * index entries in the same order and can not deadlock each other.
+ */
+public class TagBatch {
+
+    private static final String SQL = "INSERT INTO pgtimeseries_tag(fk_pgtimeseries_metric, key, value, type) " +
+            "SELECT * FROM unnest(?::text[], ?::text[], ?::text[], ?::text[]) " +
+            "ON CONFLICT (fk_pgtimeseries_metric, key, value, type) DO NOTHING";
+
+    private static final Comparator<String> NULLS_FIRST = Comparator.nullsFirst(Comparator.naturalOrder());
+    private static final Comparator<TagRow> ORDER = Comparator.comparing(TagRow::getMetricKey, NULLS_FIRST)
+            .thenComparing(TagRow::getKey, NULLS_FIRST)
+            .thenComparing(TagRow::getValue, NULLS_FIRST)
+            .thenComparing(TagRow::getType, NULLS_FIRST);
+
+    private final Set<TagRow> rows = new TreeSet<>(ORDER);
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+    private int duplicates;
+
+    public void add(final Metric metric) {
+        metrics.put(metric.getKey(), metric);
+        add(metric, ImmutableMetric.TagType.intrinsic, metric.getIntrinsicTags());
+        add(metric, ImmutableMetric.TagType.meta, metric.getMetaTags());
+        add(metric, ImmutableMetric.TagType.external, metric.getExternalTags());
+    }
+
+    private void add(final Metric metric, final ImmutableMetric.TagType type, final Collection<Tag> tags) {
+        for (Tag tag : tags) {
+            if (!rows.add(new TagRow(metric.getKey(), tag.getKey(), tag.getValue(), type.name()))) {
+                duplicates++;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    /** The distinct metrics whose tags are part of this batch. */
+    public Collection<Metric> getMetrics() {
+        return metrics.values();
+    }
+
+    /** Number of distinct tag rows in this batch. */
+    public int size() {
+        return rows.size();
+    }
+
+    /** Number of rows that were added more than once and will not be sent to the database. */
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Upserts all distinct rows in one round trip, in their sort order.
+     *
+     * @return the number of rows actually inserted, rows which already existed are not counted.
+     */
+    public int write(final Connection connection, final StatementStats statements) throws SQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        final String[] metricKeys = new String[rows.size()];
+        final String[] keys = new String[rows.size()];
+        final String[] values = new String[rows.size()];
+        final String[] types = new String[rows.size()];
+        int i = 0;
+        for (TagRow row : rows) {
+            metricKeys[i] = row.getMetricKey();
+            keys[i] = row.getKey();
+            values[i] = row.getValue();
+            types[i] = row.getType();
+            i++;
+        }
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            PreparedStatement ps = statements.prepare(connection, SQL);
+            db.watch(ps);
+            ps.setArray(1, connection.createArrayOf("text", metricKeys));
+            ps.setArray(2, connection.createArrayOf("text", keys));
+            ps.setArray(3, connection.createArrayOf("text", values));
+            ps.setArray(4, connection.createArrayOf("text", types));
+            final int inserted = ps.executeUpdate();
+            statements.executed(ps);
+            return inserted;
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    @Value
+    private static class TagRow {
+        String metricKey;
+        String key;
+        String value;
+        String type;
+    }
+}
@@ -0,0 +1,227 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * In-memory copy of pgtimeseries_tag which answers findMetrics() without a database round trip. Every metric gets
+ * a small ordinal and each distinct tag key and value maps to the set of ordinals of the metrics carrying it, so
+ * equality matchers are a single lookup and all matchers are combined by intersecting bit sets. Regular
+ * expressions only need to be evaluated against the distinct values of their tag key.
+ * Like pgtimeseries_tag, the tags of a metric which is stored again are added to the ones already known.
+ * The index only sees the tags written and deleted by this instance, tags written by other instances show up once
+ * the index is reloaded from pgtimeseries_tag, see {@link #replaceAll}.
+ */
+public class TagIndex {
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final List<Metric> metrics = new ArrayList<>();
+    private final Deque<Integer> freeOrdinals = new ArrayDeque<>();
+    /** tag key -> tag value -> ordinals of the metrics with this tag */
+    private final Map<String, Map<String, BitSet>> postings = new HashMap<>();
+
+    public TagIndex(final MetricRegistry registry) {
+        registry.register("tagIndexSize", (Gauge<Integer>) this::size);
+    }
+
+    /** Adds the metric's tags, merging them with the tags already known for the metric key. */
+    public void add(final Metric metric) {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinals.get(metric.getKey());
+            Metric merged = metric;
+            if (ordinal == null) {
+                ordinal = freeOrdinals.isEmpty() ? metrics.size() : freeOrdinals.pop();
+                ordinals.put(metric.getKey(), ordinal);
+            } else {
+                merged = merge(metrics.get(ordinal), metric);
+            }
+            if (ordinal == metrics.size()) {
+                metrics.add(merged);
+            } else {
+                metrics.set(ordinal, merged);
+            }
+            for (Tag tag : tags(metric)) {
+                postings.computeIfAbsent(tag.getKey(), k -> new HashMap<>())
+                        .computeIfAbsent(tag.getValue(), v -> new BitSet())
+                        .set(ordinal);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addAll(final Collection<Metric> metrics) {
+        for (Metric metric : metrics) {
+            add(metric);
+        }
+    }
+
+    /** Replaces all metrics of the index, e.g. with the ones loaded from pgtimeseries_tag. */
+    public void replaceAll(final Collection<Metric> metrics) {
+        lock.writeLock().lock();
+        try {
+            ordinals.clear();
+            this.metrics.clear();
+            freeOrdinals.clear();
+            postings.clear();
+            addAll(metrics);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(final String metricKey) {
+        lock.writeLock().lock();
+        try {
+            final Integer ordinal = ordinals.remove(metricKey);
+            if (ordinal == null) {
+                return;
+            }
+            for (Tag tag : tags(metrics.get(ordinal))) {
+                final Map<String, BitSet> values = postings.get(tag.getKey());
+                final BitSet set = values.get(tag.getValue());
+                set.clear(ordinal);
+                if (set.isEmpty()) {
+                    values.remove(tag.getValue());
+                    if (values.isEmpty()) {
+                        postings.remove(tag.getKey());
+                    }
+                }
+            }
+            metrics.set(ordinal, null);
+            freeOrdinals.push(ordinal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Same result as the {@link TagQuery} for the matchers, except that regular expressions are evaluated by
+     * java.util.regex instead of PostgreSQL's ~. Both agree on the common syntax, but Java reads POSIX classes
+     * like [[:digit:]] and the word boundaries \m and \M differently, and PostgreSQL does not know possessive
+     * quantifiers or \p{...} classes.
+     *
+     * @throws StorageException if a regular expression is not valid.
+     */
+    public List<Metric> find(final Collection<TagMatcher> matchers) throws StorageException {
+        Objects.requireNonNull(matchers, "matchers collection can not be null");
+        final List<TagMatcher> ordered = TagQuery.orderBySelectivity(matchers);
+        lock.readLock().lock();
+        try {
+            BitSet result = null;
+            for (TagMatcher matcher : ordered) {
+                final BitSet matching = match(matcher);
+                if (result == null) {
+                    result = matching;
+                } else {
+                    result.and(matching);
+                }
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            final List<Metric> found = new ArrayList<>(result == null ? 0 : result.cardinality());
+            if (result != null) {
+                for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+                    found.add(metrics.get(i));
+                }
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ordinals.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return a new set of the ordinals of all metrics matching the matcher. */
+    private BitSet match(final TagMatcher matcher) throws StorageException {
+        final Map<String, BitSet> values = postings.get(matcher.getKey());
+        if (values == null) {
+            return new BitSet();
+        }
+        final Predicate<String> predicate;
+        switch (matcher.getType()) {
+            case EQUALS:
+                final BitSet set = values.get(matcher.getValue());
+                return set == null ? new BitSet() : (BitSet) set.clone();
+            case NOT_EQUALS:
+                predicate = value -> !value.equals(matcher.getValue());
+                break;
+            case EQUALS_REGEX:
+                // like PostgreSQL's ~ the pattern may match any part of the value
+                final Pattern pattern = compile(matcher);
+                predicate = value -> pattern.matcher(value).find();
+                break;
+            case NOT_EQUALS_REGEX:
+                final Pattern negated = compile(matcher);
+                predicate = value -> !negated.matcher(value).find();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown TagMatcher.Type " + matcher.getType().name());
+        }
+        final BitSet result = new BitSet();
+        for (Map.Entry<String, BitSet> value : values.entrySet()) {
+            if (predicate.test(value.getKey())) {
+                result.or(value.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static Pattern compile(final TagMatcher matcher) throws StorageException {
+        try {
+            return Pattern.compile(matcher.getValue());
+        } catch (PatternSyntaxException e) {
+            throw new StorageException("Invalid regular expression for tag " + matcher.getKey() + ": " + matcher.getValue(), e);
+        }
+    }
+
+    private static List<Tag> tags(final Metric metric) {
+        final List<Tag> tags = new ArrayList<>(metric.getIntrinsicTags());
+        tags.addAll(metric.getMetaTags());
+        tags.addAll(metric.getExternalTags());
+        return tags;
+    }
+
+    private static Metric merge(final Metric known, final Metric metric) {
+        return ImmutableMetric.builder()
+                .intrinsicTags(known.getIntrinsicTags())
+                .intrinsicTags(metric.getIntrinsicTags())
+                .metaTags(known.getMetaTags())
+                .metaTags(metric.getMetaTags())
+                .externalTags(known.getExternalTags())
+                .externalTags(metric.getExternalTags())
+                .build();
+    }
+}
@@ -0,0 +1,204 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+
+/**
+ * Compiles tag matchers into a parameterized query for the keys of the matching metrics. The most selective
+ * matcher drives the query through the (key, value) index on pgtimeseries_tag, every other matcher is a semi-join
+ * (EXISTS) on the same metric. Matchers are ordered by their expected selectivity: equality first, regular
+ * expressions last. Matcher keys and values are always bound, never part of the SQL text.
+ * Regular expressions anchored with a literal prefix additionally get a range condition on the value, so the
+ * (key, value text_pattern_ops) index can be range scanned even with a generic plan where PostgreSQL can not
+ * derive the prefix from the bound pattern itself.
+ */
+public class TagQuery {
+
+    private final String sql;
+    private final List<String> parameters;
+
+    private TagQuery(final String sql, final List<String> parameters) {
+        this.sql = sql;
+        this.parameters = Collections.unmodifiableList(parameters);
+    }
+
+    public static TagQuery compile(final Collection<TagMatcher> matchers) {
+        Objects.requireNonNull(matchers, "matchers collection can not be null");
+        if (matchers.isEmpty()) {
+            throw new IllegalArgumentException("Collection<TagMatcher> can not be empty");
+        }
+        final List<TagMatcher> ordered = orderBySelectivity(matchers);
+
+        final List<String> parameters = new ArrayList<>();
+        final StringBuilder b = new StringBuilder("SELECT DISTINCT t0.fk_pgtimeseries_metric FROM pgtimeseries_tag t0 WHERE ");
+        condition(b, parameters, "t0", ordered.get(0));
+        for (int i = 1; i < ordered.size(); i++) {
+            final String alias = "t" + i;
+            b.append(" AND EXISTS ( SELECT 1 FROM pgtimeseries_tag ").append(alias)
+                    .append(" WHERE ").append(alias).append(".fk_pgtimeseries_metric = t0.fk_pgtimeseries_metric AND ");
+            condition(b, parameters, alias, ordered.get(i));
+            b.append(" )");
+        }
+        return new TagQuery(b.toString(), parameters);
+    }
+
+    /** @return the matchers with the most selective one first. */
+    static List<TagMatcher> orderBySelectivity(final Collection<TagMatcher> matchers) {
+        final List<TagMatcher> ordered = new ArrayList<>(matchers);
+        ordered.sort(Comparator.comparingInt(TagQuery::selectivity));
+        return ordered;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    /** The values of the placeholders of {@link #getSql()} in order. */
+    public List<String> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Binds the parameters of this query.
+     *
+     * @param offset the number of placeholders preceding this query in the statement.
+     */
+    public void bind(final PreparedStatement statement, final int offset) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            statement.setString(offset + i + 1, parameters.get(i));
+        }
+    }
+
+    private static void condition(final StringBuilder b, final List<String> parameters, final String alias, final TagMatcher matcher) {
+        b.append(alias).append(".key = ? AND ").append(alias).append(".value ").append(comparator(matcher)).append(" ?");
+        parameters.add(matcher.getKey());
+        parameters.add(matcher.getValue());
+        if (matcher.getType() == TagMatcher.Type.EQUALS_REGEX) {
+            final String prefix = literalPrefix(matcher.getValue());
+            if (!prefix.isEmpty()) {
+                // ~>=~ and ~<~ compare byte wise like the text_pattern_ops index
+                b.append(" AND ").append(alias).append(".value ~>=~ ?");
+                parameters.add(prefix);
+                final String upper = upperBound(prefix);
+                if (upper != null) {
+                    b.append(" AND ").append(alias).append(".value ~<~ ?");
+                    parameters.add(upper);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the literal text every value matching the regular expression must start with, empty if the
+     * expression is not anchored or starts with something other than a literal.
+     */
+    static String literalPrefix(final String regex) {
+        if (!regex.startsWith("^") || hasTopLevelAlternative(regex)) {
+            // the alternative would not be anchored
+            return "";
+        }
+        final StringBuilder prefix = new StringBuilder();
+        int i = 1;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int next = i + 1;
+            if (c == '\\') {
+                if (next >= regex.length() || Character.isLetterOrDigit(regex.charAt(next))) {
+                    // class shorthand or back reference
+                    break;
+                }
+                c = regex.charAt(next);
+                next++;
+            } else if (".[]()*+?{}^$".indexOf(c) >= 0) {
+                break;
+            }
+            if (next < regex.length() && "*?{".indexOf(regex.charAt(next)) >= 0) {
+                // the character is optional
+                break;
+            }
+            prefix.append(c);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    private static boolean hasTopLevelAlternative(final String regex) {
+        int depth = 0;
+        boolean bracket = false;
+        for (int i = 0; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (bracket) {
+                bracket = c != ']';
+            } else if (c == '[') {
+                bracket = true;
+                // a ] right after [ or [^ is a literal
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the smallest string greater than all strings starting with the prefix, null if there is none. */
+    private static String upperBound(final String prefix) {
+        final char last = prefix.charAt(prefix.length() - 1);
+        if (last >= Character.MIN_SURROGATE - 1) {
+            // incrementing would not preserve the order of the UTF-8 encoding
+            return null;
+        }
+        return prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+    }
+
+    private static String comparator(final TagMatcher matcher) {
+        // see https://www.postgresql.org/docs/11/functions-matching.html#FUNCTIONS-POSIX-REGEXP
+        Objects.requireNonNull(matcher);
+        switch (matcher.getType()) {
+            case EQUALS:
+                return "=";
+            case NOT_EQUALS:
+                return "!=";
+            case EQUALS_REGEX:
+                return "~";
+            case NOT_EQUALS_REGEX:
+                return "!~";
+            default:
+                throw new IllegalArgumentException("Unknown TagMatcher.Type " + matcher.getType().name());
+        }
+    }
+
+    /** Lower is more selective. */
+    private static int selectivity(final TagMatcher matcher) {
+        switch (matcher.getType()) {
+            case EQUALS:
+                return 0;
+            case EQUALS_REGEX:
+                return 1;
+            case NOT_EQUALS:
+                return 2;
+            case NOT_EQUALS_REGEX:
+                return 3;
+            default:
+                throw new IllegalArgumentException("Unknown TagMatcher.Type " + matcher.getType().name());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+/**
+ * The buckets of a fetch request: one every step from start up to and including end, the same series
+ * generate_series(start, end, step) produces. Buckets without a value are NaN.
+ */
+public class TimeBuckets {
+
+    private final long startMs;
+    private final long stepMs;
+    private final double[] values;
+
+    public TimeBuckets(final Instant start, final Instant end, final Duration step) {
+        this.startMs = start.toEpochMilli();
+        this.stepMs = step.toMillis();
+        if (stepMs <= 0) {
+            throw new IllegalArgumentException("step must be positive, got " + step);
+        }
+        final long endMs = end.toEpochMilli();
+        final int size = endMs < startMs ? 0 : Math.toIntExact((endMs - startMs) / stepMs + 1);
+        this.values = new double[size];
+        Arrays.fill(values, Double.NaN);
+    }
+
+    private TimeBuckets(final TimeBuckets other) {
+        this.startMs = other.startMs;
+        this.stepMs = other.stepMs;
+        this.values = other.values.clone();
+    }
+
+    public TimeBuckets copy() {
+        return new TimeBuckets(this);
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    /** @return the bucket index for the given time or -1 if it is outside of the requested range. */
+    public int indexOf(final long timeMs) {
+        if (timeMs < startMs) {
+            return -1;
+        }
+        final long index = (timeMs - startMs) / stepMs;
+        return index < values.length ? (int) index : -1;
+    }
+
+    /** Sets the value of the bucket which contains the given time. Times outside of the range are ignored. */
+    public void set(final long timeMs, final double value) {
+        final int index = indexOf(timeMs);
+        if (index >= 0) {
+            values[index] = value;
+        }
+    }
+
+    public long getTime(final int index) {
+        return startMs + index * stepMs;
+    }
+
+    public long getStepMs() {
+        return stepMs;
+    }
+
+    public double getValue(final int index) {
+        return values[index];
+    }
+
+    /**
+     * A read-only view of the buckets as samples. The samples are only created when they are accessed, until then
+     * the values stay in their primitive representation.
+     */
+    public List<Sample> toSamples(final Metric metric) {
+        return new SampleList(metric);
+    }
+
+    private class SampleList extends AbstractList<Sample> implements RandomAccess {
+        private final Metric metric;
+
+        private SampleList(final Metric metric) {
+            this.metric = metric;
+        }
+
+        @Override
+        public Sample get(final int index) {
+            return ImmutableSample.builder()
+                    .metric(metric)
+                    .time(Instant.ofEpochMilli(getTime(index)))
+                    .value(getValue(index))
+                    .build();
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+    }
+}
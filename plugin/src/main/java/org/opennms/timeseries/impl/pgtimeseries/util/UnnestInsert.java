@@ -0,0 +1,46 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+
+/**
+ * Inserts a whole batch of samples with a single statement: the columns are bound as three arrays and turned back
+ * into rows by unnest(). Unlike a JDBC batch this is one Bind/Execute round trip, and unlike multi-row VALUES the
+ * statement text does not depend on the batch size, so it is prepared only once per connection.
+ */
+public class UnnestInsert {
+
+    private UnnestInsert() {
+    }
+
+    public static String sql(final String seriesColumn) {
+        final String seriesType = "metric_id".equals(seriesColumn) ? "bigint" : "text";
+        return "INSERT INTO pgtimeseries_time_series(time, " + seriesColumn + ", value) " +
+                "SELECT * FROM unnest(?::timestamptz[], ?::" + seriesType + "[], ?::float8[])";
+    }
+
+    /**
+     * @param metricIds if not null the id of each sample's metric key is bound instead of the key itself.
+     */
+    public static void bind(final Connection connection, final PreparedStatement statement, final List<Sample> samples,
+                            final Map<String, Long> metricIds) throws SQLException {
+        final Timestamp[] times = new Timestamp[samples.size()];
+        final Object[] series = new Object[samples.size()];
+        final Double[] values = new Double[samples.size()];
+        for (int i = 0; i < samples.size(); i++) {
+            final Sample sample = samples.get(i);
+            times[i] = new Timestamp(sample.getTime().toEpochMilli());
+            series[i] = metricIds != null ? metricIds.get(sample.getMetric().getKey()) : sample.getMetric().getKey();
+            values[i] = sample.getValue();
+        }
+        statement.setArray(1, connection.createArrayOf("timestamptz", times));
+        statement.setArray(2, connection.createArrayOf(metricIds != null ? "bigint" : "text", series));
+        statement.setArray(3, connection.createArrayOf("float8", values));
+    }
+}
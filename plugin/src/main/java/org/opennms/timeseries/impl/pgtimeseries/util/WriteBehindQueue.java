@@ -0,0 +1,219 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+import org.opennms.timeseries.impl.pgtimeseries.config.QueueFullPolicy;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bounded buffer between the callers of store() and the database. A configurable number of flusher
+ * threads take samples off the queue and hand them to the {@link Flusher} in batches of up to
+ * writeFlushSize samples, or whatever arrived within writeFlushIntervalMs.
+ * <p>
+ * The queue is split into one shard per flusher thread, keyed by metric like {@link SampleShards#byMetric},
+ * so the samples of a metric are always written by the same thread, in the order they were enqueued.
+ */
+@Slf4j
+public class WriteBehindQueue {
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    @FunctionalInterface
+    public interface Flusher {
+        /** @throws SamplesLostException if only some of the samples were written. */
+        void flush(List<Sample> samples) throws StorageException;
+    }
+
+    /** One queue per flusher thread, see {@link SampleShards#shardOf}. */
+    private final List<BlockingQueue<Sample>> queues;
+    private final Flusher flusher;
+    private final QueueFullPolicy policy;
+    private final int threads;
+    private final int flushSize;
+    private final long flushIntervalNanos;
+    private final Meter samplesLost;
+    private final Timer flushLatency;
+
+    private ExecutorService executor;
+    private volatile boolean running;
+    /** Held shared by enqueue() and exclusively by stop(), so no sample is added after stop() drained the queue. */
+    private final ReadWriteLock stopLock = new ReentrantReadWriteLock();
+
+    public WriteBehindQueue(final PGTimeseriesConfig config, final Flusher flusher, final MetricRegistry metrics, final Meter samplesLost) {
+        this.flusher = Objects.requireNonNull(flusher);
+        this.policy = config.getWriteQueueFullPolicy();
+        this.threads = Math.max(1, config.getWriteThreads());
+        this.queues = new ArrayList<>(threads);
+        final int capacity = Math.max(1, (config.getWriteQueueSize() + threads - 1) / threads);
+        for (int i = 0; i < threads; i++) {
+            queues.add(new ArrayBlockingQueue<>(capacity));
+        }
+        this.flushSize = Math.max(1, config.getWriteFlushSize());
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getWriteFlushIntervalMs()));
+        this.samplesLost = Objects.requireNonNull(samplesLost);
+        this.flushLatency = metrics.timer("writeFlushLatency");
+        metrics.register("writeQueueDepth", (Gauge<Integer>) this::size);
+    }
+
+    public void start() {
+        running = true;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("pgtimeseries-flusher-%d")
+                .setDaemon(true)
+                .build());
+        for (BlockingQueue<Sample> queue : queues) {
+            executor.execute(() -> run(queue));
+        }
+    }
+
+    /** Stops accepting samples and waits for the flusher threads to drain the queue. */
+    public void stop() {
+        running = false;
+        // waits for the enqueue() calls in flight, they give up on their remaining samples once running is false
+        stopLock.writeLock().lock();
+        stopLock.writeLock().unlock();
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        final int remaining = size();
+        if (remaining > 0) {
+            log.warn("Discarding {} samples that could not be flushed during shutdown.", remaining);
+            samplesLost.mark(remaining);
+            queues.forEach(BlockingQueue::clear);
+        }
+    }
+
+    public void enqueue(final List<Sample> samples) throws StorageException {
+        stopLock.readLock().lock();
+        try {
+            if (!running) {
+                throw new StorageException("Write-behind queue is not running");
+            }
+            int dropped = 0;
+            int rejected = 0;
+            for (int i = 0; i < samples.size(); i++) {
+                if (!running) {
+                    rejected = samples.size() - i;
+                    break;
+                }
+                final Sample sample = samples.get(i);
+                final BlockingQueue<Sample> queue = queues.get(SampleShards.shardOf(sample, threads));
+                if (policy == QueueFullPolicy.BLOCK) {
+                    try {
+                        if (!put(queue, sample)) {
+                            rejected = samples.size() - i;
+                            break;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped += samples.size() - i;
+                        break;
+                    }
+                } else if (!queue.offer(sample)) {
+                    dropped++;
+                }
+            }
+            if (dropped > 0) {
+                samplesLost.mark(dropped);
+                log.warn("Write-behind queue is full, dropped {} samples.", dropped);
+            }
+            if (rejected > 0) {
+                samplesLost.mark(rejected);
+                log.warn("Write-behind queue was stopped, dropped {} samples.", rejected);
+            }
+        } finally {
+            stopLock.readLock().unlock();
+        }
+    }
+
+    /** Waits for room in the queue, but gives up once the queue is stopped. */
+    private boolean put(final BlockingQueue<Sample> queue, final Sample sample) throws InterruptedException {
+        while (running) {
+            if (queue.offer(sample, flushIntervalNanos, TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int size() {
+        return queues.stream().mapToInt(BlockingQueue::size).sum();
+    }
+
+    private void run(final BlockingQueue<Sample> queue) {
+        final List<Sample> batch = new ArrayList<>(flushSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                final Sample first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                final long deadline = System.nanoTime() + flushIntervalNanos;
+                while (batch.size() < flushSize) {
+                    queue.drainTo(batch, flushSize - batch.size());
+                    final long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= flushSize || remaining <= 0 || !running) {
+                        break;
+                    }
+                    final Sample next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                flush(batch);
+                return;
+            }
+            flush(batch);
+        }
+    }
+
+    private void flush(final List<Sample> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try (Timer.Context ignored = flushLatency.time()) {
+            flusher.flush(batch);
+        } catch (SamplesLostException e) {
+            // nobody is left to retry, the caller of store() returned long ago
+            log.warn("Flushing {} samples failed, {} of them were lost.", batch.size(), e.getLost(), e);
+            samplesLost.mark(e.getLost());
+        } catch (StorageException | RuntimeException e) {
+            log.error("Flushing {} samples failed, all of them were lost.", batch.size(), e);
+            samplesLost.mark(batch.size());
+        } finally {
+            batch.clear();
+        }
+    }
+}
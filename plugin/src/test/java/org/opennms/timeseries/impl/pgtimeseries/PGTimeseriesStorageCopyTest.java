@@ -0,0 +1,36 @@
+package org.opennms.timeseries.impl.pgtimeseries;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+import org.opennms.timeseries.impl.pgtimeseries.config.WriteMode;
+
+/** Runs the storage integration tests with samples written via binary COPY. */
+public class PGTimeseriesStorageCopyTest extends PGTimeseriesStorageTest {
+
+    @Override
+    protected PGTimeseriesConfig createConfig() {
+        return PGTimeseriesConfig.builder()
+                .writeMode(WriteMode.COPY)
+                .build();
+    }
+
+    @Test
+    public void shouldWriteSamplesWithCopy() throws Exception {
+        final Metric metric = metric("copy", "gauge", Metric.Mtype.gauge);
+        final long rows = meter("copyRowsWritten");
+        final long bytes = meter("copyBytesWritten");
+
+        pgtimeseries.store(samples(metric, Instant.now().minus(Duration.ofHours(1)), Duration.ofMinutes(1), 50));
+
+        assertEquals(rows + 50, meter("copyRowsWritten"));
+        // header and trailer, per row the field count, time, key and value each with its length
+        assertEquals(bytes + 21 + 50 * (2 + 12 + 4 + metric.getKey().length() + 12), meter("copyBytesWritten"));
+        assertEquals(50, queryForLong("SELECT count(*) FROM pgtimeseries_time_series WHERE key = '" + metric.getKey() + "'"));
+    }
+}
@@ -0,0 +1,115 @@
+package org.opennms.timeseries.impl.pgtimeseries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+import org.opennms.timeseries.impl.pgtimeseries.util.RollupLevel;
+
+/**
+ * Runs the storage integration tests with metric ids, rollups and soft deletes, and checks which rows of the time
+ * series, rollup, tag and metric tables deletes and purges leave behind. The metric ids are always kept.
+ */
+public class PGTimeseriesStorageDeleteTest extends PGTimeseriesStorageTest {
+
+    @Override
+    protected PGTimeseriesConfig createConfig() {
+        return builder().softDelete(true).build();
+    }
+
+    private static PGTimeseriesConfig.Builder builder() {
+        return PGTimeseriesConfig.builder()
+                .normalizeMetricKeys(true)
+                .rollupLevels("1m:1d")
+                .rollupDelaySeconds(0);
+    }
+
+    @Test
+    public void shouldRemoveAllRowsButTheIdsOfDeletedAndPurgedMetrics() throws Exception {
+        final Instant start = Instant.now().truncatedTo(ChronoUnit.MINUTES).minus(Duration.ofMinutes(30));
+        final Metric deleted = metric("delete", "deleted", Metric.Mtype.gauge);
+        final Metric tombstoned = metric("delete", "tombstoned", Metric.Mtype.gauge);
+        final Metric restored = metric("delete", "restored", Metric.Mtype.gauge);
+        final Metric kept = metric("delete", "kept", Metric.Mtype.gauge);
+        for (Metric metric : new Metric[]{deleted, tombstoned, restored, kept}) {
+            pgtimeseries.store(samples(metric, start, Duration.ofMinutes(1), 10));
+        }
+        final RollupLevel minutes = pgtimeseries.getRollupMaintainer().getRollups().getLevels().get(0);
+        assertTrue(pgtimeseries.getRollupMaintainer().backfill(minutes, start) > 0);
+        final long deletedId = id(deleted);
+        final long tombstonedId = id(tombstoned);
+        final long restoredId = id(restored);
+        final long keptId = id(kept);
+        for (long id : new long[]{deletedId, tombstonedId, restoredId, keptId}) {
+            assertEquals(10, samples(id));
+            assertEquals(10, rollups(minutes, id));
+        }
+
+        // deleted right away by a storage without soft deletes
+        final PGTimeseriesStorage hard = new PGTimeseriesStorage(builder().build(), dataSource);
+        try {
+            hard.init();
+            hard.delete(deleted);
+        } finally {
+            hard.destroy();
+        }
+        assertEquals(0, samples(deletedId));
+        assertEquals(0, rollups(minutes, deletedId));
+        assertEquals(0, tags(deleted));
+        assertEquals(deletedId, id(deleted));
+
+        // tombstoned, the rows stay until they are purged
+        pgtimeseries.delete(tombstoned);
+        pgtimeseries.delete(restored);
+        assertEquals(0, tags(tombstoned));
+        assertEquals(10, samples(tombstonedId));
+        assertEquals(10, rollups(minutes, tombstonedId));
+        assertEquals(1, metrics(tombstoned));
+        pgtimeseries.store(samples(restored, Instant.now().plus(Duration.ofMinutes(1)), Duration.ofMinutes(1), 1));
+
+        try (Connection connection = dataSource.getConnection()) {
+            assertEquals(2, pgtimeseries.getMetricDeleter().purge(connection));
+        }
+        assertEquals(0, queryForLong("SELECT count(*) FROM pgtimeseries_tombstone"));
+        assertEquals(0, samples(tombstonedId));
+        assertEquals(0, rollups(minutes, tombstonedId));
+        assertEquals(tombstonedId, id(tombstoned));
+        // stored again after the deletion: the new sample and its tags are left
+        assertEquals(1, samples(restoredId));
+        assertEquals(0, rollups(minutes, restoredId));
+        assertTrue(tags(restored) > 0);
+        assertEquals(restoredId, id(restored));
+
+        assertEquals(10, samples(keptId));
+        assertEquals(10, rollups(minutes, keptId));
+        assertTrue(tags(kept) > 0);
+        assertEquals(1, metrics(kept));
+    }
+
+    private long id(final Metric metric) throws Exception {
+        return queryForLong("SELECT id FROM pgtimeseries_metric WHERE key = '" + metric.getKey() + "'");
+    }
+
+    private long samples(final long id) throws Exception {
+        return queryForLong("SELECT count(*) FROM pgtimeseries_time_series WHERE metric_id = " + id);
+    }
+
+    private long rollups(final RollupLevel level, final long id) throws Exception {
+        return queryForLong("SELECT count(*) FROM " + level.getTable() + " WHERE metric_id = " + id);
+    }
+
+    private long tags(final Metric metric) throws Exception {
+        return queryForLong("SELECT count(*) FROM pgtimeseries_tag WHERE fk_pgtimeseries_metric = '" + metric.getKey() + "'");
+    }
+
+    private long metrics(final Metric metric) throws Exception {
+        return queryForLong("SELECT count(*) FROM pgtimeseries_metric WHERE key = '" + metric.getKey() + "'");
+    }
+}
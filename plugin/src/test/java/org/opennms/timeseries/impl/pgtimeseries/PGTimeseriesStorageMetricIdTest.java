@@ -0,0 +1,65 @@
+package org.opennms.timeseries.impl.pgtimeseries;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+/** Runs the storage integration tests against a pgtimeseries_time_series table keyed by metric id. */
+public class PGTimeseriesStorageMetricIdTest extends PGTimeseriesStorageTest {
+
+    @Override
+    protected PGTimeseriesConfig createConfig() {
+        return PGTimeseriesConfig.builder()
+                .normalizeMetricKeys(true)
+                .build();
+    }
+
+    @Test
+    public void shouldWriteSamplesByMetricId() throws Exception {
+        final Metric metric = metric("metricid", "gauge", Metric.Mtype.gauge);
+        pgtimeseries.store(samples(metric, Instant.now().minus(Duration.ofHours(1)), Duration.ofMinutes(1), 20));
+
+        assertEquals(0, queryForLong("SELECT count(*) FROM information_schema.columns WHERE table_name = 'pgtimeseries_time_series' AND column_name = 'key'"));
+        assertEquals(20, queryForLong("SELECT count(*) FROM pgtimeseries_time_series t JOIN pgtimeseries_metric m ON m.id = t.metric_id "
+                + "WHERE m.key = '" + metric.getKey() + "'"));
+    }
+
+    @Test
+    public void shouldMigrateTablesKeyedByMetricKey() throws Exception {
+        pgtimeseries.destroy();
+        dropTables(dataSource);
+
+        // an existing installation keyed by metric key
+        final Instant start = Instant.now().minus(Duration.ofHours(1)).truncatedTo(ChronoUnit.MINUTES);
+        final Metric metric = metric("migrated", "gauge", Metric.Mtype.gauge);
+        final PGTimeseriesStorage byKey = new PGTimeseriesStorage(PGTimeseriesConfig.builder().build(), dataSource);
+        byKey.init();
+        byKey.store(samples(metric, start, Duration.ofMinutes(1), 20));
+        byKey.destroy();
+
+        pgtimeseries = new PGTimeseriesStorage(createConfig(), dataSource);
+        pgtimeseries.init();
+
+        assertEquals(0, queryForLong("SELECT count(*) FROM information_schema.columns WHERE table_name = 'pgtimeseries_time_series' AND column_name = 'key'"));
+        assertEquals(20, queryForLong("SELECT count(*) FROM pgtimeseries_time_series t JOIN pgtimeseries_metric m ON m.id = t.metric_id "
+                + "WHERE m.key = '" + metric.getKey() + "'"));
+        final List<Sample> samples = pgtimeseries.getTimeseries(ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(start)
+                .end(start.plus(Duration.ofMinutes(20)))
+                .step(Duration.ofMinutes(1))
+                .aggregation(Aggregation.AVERAGE)
+                .build());
+        assertEquals(20, samples.stream().filter(s -> !Double.isNaN(s.getValue())).count());
+    }
+}
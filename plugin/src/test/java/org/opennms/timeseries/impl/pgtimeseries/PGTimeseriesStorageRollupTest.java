@@ -0,0 +1,91 @@
+package org.opennms.timeseries.impl.pgtimeseries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.MetaTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+import org.opennms.timeseries.impl.pgtimeseries.util.RollupLevel;
+import org.opennms.timeseries.impl.pgtimeseries.util.RollupMaintainer;
+
+/** Runs the storage integration tests with rollup tables maintained and used by fetches where possible. */
+public class PGTimeseriesStorageRollupTest extends PGTimeseriesStorageTest {
+
+    @Override
+    protected PGTimeseriesConfig createConfig() {
+        return PGTimeseriesConfig.builder()
+                .rollupLevels("1m:1d,1h:30d")
+                .rollupDelaySeconds(0)
+                .build();
+    }
+
+    @Test
+    public void shouldServeFetchesFromTheRollupAfterItWasRolledUp() throws Exception {
+        // aligned to the step so rollup and raw buckets cover the same samples
+        final Instant start = Instant.ofEpochSecond(Instant.now().getEpochSecond() / 300 * 300).minus(Duration.ofMinutes(65));
+        final Instant end = start.plus(Duration.ofHours(1));
+        final Metric metric = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, "rollup")
+                .intrinsicTag(IntrinsicTagNames.name, "gauge")
+                .metaTag(MetaTagNames.mtype, Metric.Mtype.gauge.name())
+                .build();
+        final List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < 240; i++) {
+            samples.add(ImmutableSample.builder()
+                    .metric(metric)
+                    .time(start.plusSeconds(15L * i + 1))
+                    .value((double) (i * 7 % 23))
+                    .build());
+        }
+        pgtimeseries.store(samples);
+        waitForPersistingChanges();
+
+        // the scheduled run at startup already moved the watermark past these samples, roll them up again
+        final RollupMaintainer maintainer = pgtimeseries.getRollupMaintainer();
+        final RollupLevel minutes = maintainer.getRollups().getLevels().get(0);
+        assertTrue(maintainer.backfill(minutes, start) > 0);
+        assertFalse(maintainer.getRollups().getWatermark(minutes).isBefore(end));
+        assertEquals(60, queryForLong("SELECT count(*) FROM " + minutes.getTable() + " WHERE key = '" + metric.getKey() + "'"));
+
+        // the same database read without rollups
+        final PGTimeseriesStorage raw = new PGTimeseriesStorage(PGTimeseriesConfig.builder().build(), dataSource);
+        try {
+            for (Aggregation aggregation : new Aggregation[]{Aggregation.AVERAGE, Aggregation.MIN, Aggregation.MAX}) {
+                final TimeSeriesFetchRequest request = ImmutableTimeSeriesFetchRequest.builder()
+                        .metric(metric)
+                        .start(start)
+                        .end(end)
+                        .step(Duration.ofMinutes(5))
+                        .aggregation(aggregation)
+                        .build();
+                final long rollupReads = pgtimeseries.getMetrics().meter("rollupReads").getCount();
+                final List<Sample> fromRollup = pgtimeseries.getTimeseries(request);
+                assertEquals(aggregation.name(), rollupReads + 1, pgtimeseries.getMetrics().meter("rollupReads").getCount());
+
+                final List<Sample> fromRaw = raw.getTimeseries(request);
+                assertEquals(aggregation.name(), fromRaw.size(), fromRollup.size());
+                for (int i = 0; i < fromRaw.size(); i++) {
+                    assertEquals(fromRaw.get(i).getTime(), fromRollup.get(i).getTime());
+                    assertEquals(aggregation + " bucket " + i, fromRaw.get(i).getValue(), fromRollup.get(i).getValue(), 1e-9);
+                }
+            }
+        } finally {
+            raw.destroy();
+        }
+    }
+}
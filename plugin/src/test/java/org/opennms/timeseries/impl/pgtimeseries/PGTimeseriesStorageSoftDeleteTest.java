@@ -0,0 +1,72 @@
+package org.opennms.timeseries.impl.pgtimeseries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+/** Runs the storage integration tests with deleted metrics tombstoned and purged in the background. */
+public class PGTimeseriesStorageSoftDeleteTest extends PGTimeseriesStorageTest {
+
+    @Override
+    protected PGTimeseriesConfig createConfig() {
+        return PGTimeseriesConfig.builder()
+                .softDelete(true)
+                .build();
+    }
+
+    @Test
+    public void shouldHideTombstonedSamplesUntilTheyArePurged() throws Exception {
+        final Metric metric = metric("softdelete", "gauge", Metric.Mtype.gauge);
+        final Instant start = Instant.now().minus(Duration.ofHours(1));
+        pgtimeseries.store(samples(metric, start, Duration.ofMinutes(1), 10));
+        final String series = "FROM pgtimeseries_time_series WHERE key = '" + metric.getKey() + "'";
+
+        pgtimeseries.delete(metric);
+
+        assertEquals(1, queryForLong("SELECT count(*) FROM pgtimeseries_tombstone WHERE key = '" + metric.getKey() + "'"));
+        assertEquals(0, queryForLong("SELECT count(*) FROM pgtimeseries_tag WHERE fk_pgtimeseries_metric = '" + metric.getKey() + "'"));
+        assertEquals(10, queryForLong("SELECT count(*) " + series));
+        assertTrue(pgtimeseries.getTimeseries(request(metric, start)).isEmpty());
+
+        // a sample written after the deletion is shown, the buckets of the older ones are kept but empty
+        final Instant later = Instant.now().plus(Duration.ofMinutes(1));
+        pgtimeseries.store(samples(metric, later, Duration.ofMinutes(1), 1));
+        final List<Sample> fetched = pgtimeseries.getTimeseries(request(metric, start));
+        assertTrue(fetched.size() > 60);
+        assertEquals(start, fetched.get(0).getTime());
+        assertTrue(fetched.stream()
+                .filter(s -> !s.getTime().isAfter(later.minus(Duration.ofMinutes(1))))
+                .allMatch(s -> s.getValue().isNaN()));
+        assertEquals(1, fetched.stream().filter(s -> !s.getValue().isNaN()).count());
+
+        final long purged = meter("tombstonesPurged");
+        try (Connection connection = dataSource.getConnection()) {
+            assertEquals(1, pgtimeseries.getMetricDeleter().purge(connection));
+        }
+        assertEquals(0, queryForLong("SELECT count(*) FROM pgtimeseries_tombstone WHERE key = '" + metric.getKey() + "'"));
+        assertEquals(1, queryForLong("SELECT count(*) " + series));
+        assertEquals(purged + 1, meter("tombstonesPurged"));
+    }
+
+    private static TimeSeriesFetchRequest request(final Metric metric, final Instant start) {
+        return ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(start)
+                .end(Instant.now().plus(Duration.ofMinutes(5)))
+                .step(Duration.ofMinutes(1))
+                .aggregation(Aggregation.AVERAGE)
+                .build();
+    }
+}
@@ -0,0 +1,90 @@
+package org.opennms.timeseries.impl.pgtimeseries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.MetaTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+/** Runs the storage integration tests with findMetrics() answered by the in-memory tag index. */
+public class PGTimeseriesStorageTagIndexTest extends PGTimeseriesStorageTest {
+
+    @Override
+    protected PGTimeseriesConfig createConfig() {
+        return PGTimeseriesConfig.builder()
+                .tagIndexEnabled(true)
+                .build();
+    }
+
+    @Test
+    public void shouldFindTheSameMetricsAsTheTagQuery() throws Exception {
+        final Metric alpha = metric("tagindex", "alpha", Metric.Mtype.gauge);
+        final List<Sample> samples = new ArrayList<>();
+        for (Metric metric : new Metric[]{alpha, metric("tagindex", "beta", Metric.Mtype.gauge), metric("tagindex", "gamma", Metric.Mtype.counter)}) {
+            samples.addAll(samples(metric, Instant.now().minus(Duration.ofMinutes(10)), Duration.ofMinutes(1), 3));
+        }
+        pgtimeseries.store(samples);
+
+        final List<List<TagMatcher>> queries = Arrays.asList(
+                Collections.singletonList(matcher(TagMatcher.Type.EQUALS, IntrinsicTagNames.resourceId, "tagindex")),
+                Arrays.asList(matcher(TagMatcher.Type.EQUALS, IntrinsicTagNames.resourceId, "tagindex"),
+                        matcher(TagMatcher.Type.NOT_EQUALS, IntrinsicTagNames.name, "beta")),
+                Collections.singletonList(matcher(TagMatcher.Type.EQUALS_REGEX, IntrinsicTagNames.name, ".*a.*")),
+                Arrays.asList(matcher(TagMatcher.Type.EQUALS, IntrinsicTagNames.resourceId, "tagindex"),
+                        matcher(TagMatcher.Type.NOT_EQUALS_REGEX, IntrinsicTagNames.name, "g.*")),
+                Collections.singletonList(matcher(TagMatcher.Type.EQUALS, MetaTagNames.mtype, Metric.Mtype.gauge.name())));
+
+        // the same database queried by SQL
+        final PGTimeseriesStorage sql = new PGTimeseriesStorage(PGTimeseriesConfig.builder().build(), dataSource);
+        try {
+            for (List<TagMatcher> query : queries) {
+                assertEquals(query.toString(), keys(sql.findMetrics(query)), keys(pgtimeseries.findMetrics(query)));
+            }
+            assertTrue(keys(pgtimeseries.findMetrics(queries.get(0))).contains(alpha.getKey()));
+
+            pgtimeseries.delete(alpha);
+            for (List<TagMatcher> query : queries) {
+                assertEquals(query.toString(), keys(sql.findMetrics(query)), keys(pgtimeseries.findMetrics(query)));
+            }
+            assertFalse(keys(pgtimeseries.findMetrics(queries.get(0))).contains(alpha.getKey()));
+        } finally {
+            sql.destroy();
+        }
+    }
+
+    @Test
+    public void shouldReplaceTheTagIndexOfEarlierVersions() throws Exception {
+        execute("DROP INDEX pgtimeseries_tag_key_value_pattern_idx");
+        execute("CREATE INDEX pgtimeseries_tag_key_value_idx ON pgtimeseries_tag(key, value, fk_pgtimeseries_metric)");
+
+        pgtimeseries.getInitializer().upgradeTablesIfNeeded();
+
+        assertEquals(0, queryForLong("SELECT count(*) FROM pg_indexes WHERE indexname = 'pgtimeseries_tag_key_value_idx'"));
+        assertEquals(1, queryForLong("SELECT count(*) FROM pg_indexes WHERE indexname = 'pgtimeseries_tag_key_value_pattern_idx' "
+                + "AND indexdef LIKE '%text_pattern_ops%'"));
+    }
+
+    private static TagMatcher matcher(final TagMatcher.Type type, final String key, final String value) {
+        return ImmutableTagMatcher.builder().type(type).key(key).value(value).build();
+    }
+
+    private static Set<String> keys(final List<Metric> metrics) {
+        return metrics.stream().map(Metric::getKey).collect(Collectors.toSet());
+    }
+}
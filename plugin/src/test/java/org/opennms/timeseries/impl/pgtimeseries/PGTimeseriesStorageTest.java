@@ -1,10 +1,18 @@
 
 package org.opennms.timeseries.impl.pgtimeseries;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.sql.DataSource;
 
@@ -12,10 +20,21 @@ import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
 import org.opennms.integration.api.v1.timeseries.AbstractStorageIntegrationTest;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.MetaTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
 import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
 import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
 import org.opennms.timeseries.impl.pgtimeseries.util.DBUtils;
+import org.opennms.timeseries.impl.pgtimeseries.util.RollupLevel;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
 import org.testcontainers.containers.wait.strategy.Wait;
@@ -31,8 +50,8 @@ public class PGTimeseriesStorageTest extends AbstractStorageIntegrationTest {
 
     public static GenericContainer<?> container;
 
-    private DataSource dataSource;
-    private PGTimeseriesStorage pgtimeseries;
+    protected DataSource dataSource;
+    protected PGTimeseriesStorage pgtimeseries;
 
     @BeforeClass
     public static void setUpContainer() {
@@ -60,22 +79,128 @@ public class PGTimeseriesStorageTest extends AbstractStorageIntegrationTest {
     @Before
     public void setUp() throws Exception {
         dataSource = createDatasource();
-        pgtimeseries = new PGTimeseriesStorage(PGTimeseriesConfig.builder().build(), dataSource);
+        pgtimeseries = new PGTimeseriesStorage(createConfig(), dataSource);
         pgtimeseries.init();
         super.setUp();
     }
 
     @After
     public void tearDown() throws SQLException {
+        pgtimeseries.destroy();
         dropTables(dataSource);
     }
 
+    protected PGTimeseriesConfig createConfig() {
+        return PGTimeseriesConfig.builder().build();
+    }
+
     @Override
     protected TimeSeriesStorage createStorage() {
         return pgtimeseries;
     }
 
-    private void dropTables(final DataSource dataSource) throws SQLException {
+    @Test
+    public void shouldFetchTheSameInABatchAsOneByOne() throws Exception {
+        // requests served from a rollup in the subclasses are fetched one by one within the batch
+        final Duration step = Duration.ofMinutes(1);
+        final Instant start = Instant.now().truncatedTo(ChronoUnit.MINUTES).minus(Duration.ofHours(1));
+        final Instant end = start.plus(Duration.ofMinutes(30));
+        final Metric counter = metric("batch", "counter", Metric.Mtype.counter);
+        final Metric gauge = metric("batch", "gauge", Metric.Mtype.gauge);
+        final List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            final Instant time = start.plus(Duration.ofMinutes(i)).plusSeconds(1);
+            samples.add(ImmutableSample.builder().metric(counter).time(time).value(1_000_000.0 + i * 60).build());
+            samples.add(ImmutableSample.builder().metric(gauge).time(time).value((double) (i % 7)).build());
+        }
+        pgtimeseries.store(samples);
+        waitForPersistingChanges();
+        // a NULL in the middle of both series, it must not be taken as a counter reset
+        execute("UPDATE pgtimeseries_time_series SET value = NULL WHERE time = '" + start.plus(Duration.ofMinutes(12)).plusSeconds(1) + "'");
+
+        for (Aggregation aggregation : new Aggregation[]{Aggregation.AVERAGE, Aggregation.MIN, Aggregation.MAX}) {
+            final List<TimeSeriesFetchRequest> requests = new ArrayList<>();
+            for (Metric metric : new Metric[]{counter, gauge}) {
+                requests.add(ImmutableTimeSeriesFetchRequest.builder()
+                        .metric(metric)
+                        .start(start)
+                        .end(end)
+                        .step(step)
+                        .aggregation(aggregation)
+                        .build());
+            }
+            final List<List<Sample>> batch = pgtimeseries.getTimeseries(requests);
+            for (int i = 0; i < requests.size(); i++) {
+                final List<Sample> single = pgtimeseries.getTimeseries(requests.get(i));
+                assertEquals(aggregation + " " + requests.get(i).getMetric(), single.size(), batch.get(i).size());
+                for (int j = 0; j < single.size(); j++) {
+                    assertEquals(single.get(j).getTime(), batch.get(i).get(j).getTime());
+                    assertEquals(aggregation + " sample " + j, single.get(j).getValue(), batch.get(i).get(j).getValue(), 1e-9);
+                }
+            }
+            // the counter increases by 1 per second, a NULL taken as reset would show as a rate of about 1e6 / 60
+            for (Sample sample : batch.get(0)) {
+                assertTrue(aggregation + " rate " + sample.getValue(), Double.isNaN(sample.getValue()) || sample.getValue() < 2);
+            }
+        }
+    }
+
+    protected static Metric metric(final String resourceId, final String name, final Metric.Mtype mtype) {
+        return ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, resourceId)
+                .intrinsicTag(IntrinsicTagNames.name, name)
+                .metaTag(MetaTagNames.mtype, mtype.name())
+                .build();
+    }
+
+    /** @return count samples of the metric, one per interval from start on, with the values 0, 1, 2... */
+    protected static List<Sample> samples(final Metric metric, final Instant start, final Duration interval, final int count) {
+        final List<Sample> samples = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            samples.add(ImmutableSample.builder()
+                    .metric(metric)
+                    .time(start.plus(interval.multipliedBy(i)))
+                    .value((double) i)
+                    .build());
+        }
+        return samples;
+    }
+
+    protected long meter(final String name) {
+        return pgtimeseries.getMetrics().meter(name).getCount();
+    }
+
+    protected void execute(final String sql) throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            stmt.execute(sql);
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    /** @return the single long of the first row of the query. */
+    protected long queryForLong(final String sql) throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            ResultSet rs = stmt.executeQuery(sql);
+            db.watch(rs);
+            rs.next();
+            return rs.getLong(1);
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    protected void dropTables(final DataSource dataSource) throws SQLException {
         DBUtils db = new DBUtils();
         try {
             Connection conn = dataSource.getConnection();
@@ -85,6 +210,11 @@ public class PGTimeseriesStorageTest extends AbstractStorageIntegrationTest {
             stmt.execute("DROP TABLE pgtimeseries_tag;");
             stmt.execute("DROP TABLE pgtimeseries_metric;");
             stmt.execute("DROP TABLE pgtimeseries_time_series;");
+            for (RollupLevel level : RollupLevel.parse(createConfig().getRollupLevels())) {
+                stmt.execute("DROP TABLE IF EXISTS " + level.getTable() + ";");
+            }
+            stmt.execute("DROP TABLE IF EXISTS pgtimeseries_rollup_state;");
+            stmt.execute("DROP TABLE IF EXISTS pgtimeseries_tombstone;");
         } finally {
             db.cleanUp();
         }
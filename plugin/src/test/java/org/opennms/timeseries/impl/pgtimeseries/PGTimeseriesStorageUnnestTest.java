@@ -0,0 +1,37 @@
+package org.opennms.timeseries.impl.pgtimeseries;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+import org.opennms.timeseries.impl.pgtimeseries.config.WriteMode;
+
+/** Runs the storage integration tests with samples written by one unnest() INSERT per batch. */
+public class PGTimeseriesStorageUnnestTest extends PGTimeseriesStorageTest {
+
+    @Override
+    protected PGTimeseriesConfig createConfig() {
+        return PGTimeseriesConfig.builder()
+                .writeMode(WriteMode.UNNEST)
+                .maxBatchSize(100)
+                .build();
+    }
+
+    @Test
+    public void shouldWriteOneStatementPerBatch() throws Exception {
+        final Metric metric = metric("unnest", "gauge", Metric.Mtype.gauge);
+        final Instant start = Instant.now().minus(Duration.ofHours(5));
+        // the first store writes the tags, afterwards the metric is known
+        pgtimeseries.store(samples(metric, start, Duration.ofMinutes(1), 1));
+
+        final long executed = meter("statementsExecuted");
+        pgtimeseries.store(samples(metric, start.plus(Duration.ofMinutes(1)), Duration.ofMinutes(1), 250));
+
+        assertEquals(executed + 3, meter("statementsExecuted"));
+        assertEquals(251, queryForLong("SELECT count(*) FROM pgtimeseries_time_series WHERE key = '" + metric.getKey() + "'"));
+    }
+}
@@ -0,0 +1,195 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+
+public class CounterRatesTest {
+
+    private static final Instant START = Instant.ofEpochSecond(1_700_000_000L);
+    private static final Duration STEP = Duration.ofSeconds(300);
+
+    @Test
+    public void shouldMatchWindowQueryForIncreasingCounters() {
+        final Random random = new Random(42);
+        for (int run = 0; run < 50; run++) {
+            final TimeBuckets geometry = new TimeBuckets(START, START.plus(STEP.multipliedBy(20)), STEP);
+            final List<long[]> samples = new ArrayList<>();
+            long time = START.toEpochMilli() + 1 + random.nextInt(60_000);
+            double value = random.nextInt(1000);
+            while (time < START.plus(STEP.multipliedBy(20)).toEpochMilli()) {
+                samples.add(new long[]{time, (long) value});
+                // gaps of up to three buckets without samples
+                time += 1 + random.nextInt(random.nextInt(10) == 0 ? 900_000 : 120_000);
+                value += random.nextInt(10_000);
+            }
+            final CounterRates rates = new CounterRates(geometry);
+            for (long[] sample : samples) {
+                rates.add(sample[0], sample[1]);
+            }
+            for (Aggregation aggregation : Aggregation.values()) {
+                final TimeBuckets actual = geometry.copy();
+                rates.writeTo(actual, aggregation);
+                final TimeBuckets expected = windowQuery(geometry, samples, aggregation);
+                for (int i = 0; i < geometry.size(); i++) {
+                    assertEquals(aggregation + " bucket " + i, expected.getValue(i), actual.getValue(i), 1e-9);
+                }
+            }
+            assertEquals(0, rates.getWraps());
+            assertEquals(0, rates.getResets());
+        }
+    }
+
+    @Test
+    public void shouldHandle32BitWrap() {
+        final CounterRates rates = ratesOf(CounterRates.COUNTER32 - 100, 200);
+        assertEquals(300 / 300.0, rate(rates, Aggregation.NONE), 1e-9);
+        assertEquals(1, rates.getWraps());
+        assertEquals(0, rates.getResets());
+    }
+
+    @Test
+    public void shouldHandle64BitWrap() {
+        final CounterRates rates = ratesOf(CounterRates.COUNTER64 - 3_000_000, 3_000_000);
+        // doubles are only exact to a few thousand near 2^64
+        assertEquals(6_000_000 / 300.0, rate(rates, Aggregation.NONE), 10);
+        assertEquals(1, rates.getWraps());
+    }
+
+    @Test
+    public void shouldHandleReset() {
+        // the old query returned a negative rate here
+        final CounterRates rates = ratesOf(1_000_000, 1_500_000, 600);
+        assertEquals((500_000 + 600) / 300.0, rate(rates, Aggregation.NONE), 1e-9);
+        assertEquals(600 / 300.0, rate(rates, Aggregation.MIN), 1e-9);
+        assertEquals(0, rates.getWraps());
+        assertEquals(1, rates.getResets());
+
+        // a 64 bit counter restarting is not a 32 bit wrap
+        assertEquals(1, ratesOf(1e12, 10).getResets());
+    }
+
+    @Test
+    public void shouldTakeADropOfASlowCounterAsReset() {
+        // counting 5000/s at 3e9 and restarting, a wrap would mean 1.3e9 in 10s
+        final CounterRates rates = ratesOf(3e9 - 50_000, 3e9, 100);
+        assertEquals((50_000 + 100) / 300.0, rate(rates, Aggregation.NONE), 1e-9);
+        assertEquals(0, rates.getWraps());
+        assertEquals(1, rates.getResets());
+    }
+
+    @Test
+    public void shouldTakeADropAtTheUsualRateAsWrap() {
+        final CounterRates rates = ratesOf(CounterRates.COUNTER32 - 150_000, CounterRates.COUNTER32 - 50_000, 50_000);
+        assertEquals(200_000 / 300.0, rate(rates, Aggregation.NONE), 1e-9);
+        assertEquals(1, rates.getWraps());
+        assertEquals(0, rates.getResets());
+    }
+
+    @Test
+    public void shouldTakeADropAboveTheMaximumRateAsReset() {
+        // 200000 in 10s is 20000/s
+        assertEquals(1, limitedRatesOf(10_000, CounterRates.COUNTER32 - 100_000, 100_000).getResets());
+        assertEquals(1, limitedRatesOf(30_000, CounterRates.COUNTER32 - 100_000, 100_000).getWraps());
+    }
+
+    @Test
+    public void shouldLeaveFirstSampleWithoutRate() {
+        final TimeBuckets geometry = new TimeBuckets(START, START.plus(STEP.multipliedBy(2)), STEP);
+        final CounterRates rates = new CounterRates(geometry);
+        rates.add(START.toEpochMilli() + 1000, 10);
+        rates.add(START.plus(STEP).toEpochMilli() + 1000, 40);
+        final TimeBuckets buckets = geometry.copy();
+        rates.writeTo(buckets, Aggregation.AVERAGE);
+        assertTrue(Double.isNaN(buckets.getValue(0)));
+        assertEquals(30 / 300.0, buckets.getValue(1), 1e-9);
+        assertTrue(Double.isNaN(buckets.getValue(2)));
+    }
+
+    @Test
+    public void shouldUseSeedForFirstIncrease() {
+        final TimeBuckets geometry = new TimeBuckets(START, START.plus(STEP.multipliedBy(2)), STEP);
+        final TimeBuckets cached = geometry.copy();
+        cached.set(START.toEpochMilli(), 7);
+        final CounterRates rates = new CounterRates(geometry);
+        rates.seed(START.toEpochMilli() + 1000, 10);
+        rates.add(START.plus(STEP).toEpochMilli() + 1000, 40);
+        rates.writeTo(cached, Aggregation.NONE);
+        // the bucket of the seed is not touched
+        assertEquals(7, cached.getValue(0), 0);
+        assertEquals(30 / 300.0, cached.getValue(1), 1e-9);
+    }
+
+    private static CounterRates ratesOf(final double... values) {
+        return limitedRatesOf(0, values);
+    }
+
+    private static CounterRates limitedRatesOf(final double maxRate, final double... values) {
+        final CounterRates rates = new CounterRates(new TimeBuckets(START, START, STEP), maxRate);
+        for (int i = 0; i < values.length; i++) {
+            rates.add(START.toEpochMilli() + i * 10_000L, values[i]);
+        }
+        return rates;
+    }
+
+    private static double rate(final CounterRates rates, final Aggregation aggregation) {
+        final TimeBuckets buckets = new TimeBuckets(START, START, STEP);
+        rates.writeTo(buckets, aggregation);
+        return buckets.getValue(0);
+    }
+
+    /**
+     * What the former SQL computed: value - lag(value) OVER (ORDER BY time), grouped by date_bin(step, time, start)
+     * and aggregated, NONE as sum(), divided by the step in seconds.
+     */
+    private static TimeBuckets windowQuery(final TimeBuckets geometry, final List<long[]> samples, final Aggregation aggregation) {
+        final TimeBuckets result = geometry.copy();
+        final List<List<Double>> deltas = new ArrayList<>();
+        final boolean[] rows = new boolean[geometry.size()];
+        for (int i = 0; i < geometry.size(); i++) {
+            deltas.add(new ArrayList<>());
+        }
+        for (int i = 0; i < samples.size(); i++) {
+            final int bucket = (int) ((samples.get(i)[0] - geometry.getTime(0)) / geometry.getStepMs());
+            rows[bucket] = true;
+            if (i > 0) {
+                deltas.get(bucket).add((double) (samples.get(i)[1] - samples.get(i - 1)[1]));
+            }
+        }
+        for (int i = 0; i < geometry.size(); i++) {
+            if (!rows[i]) {
+                continue;
+            }
+            final List<Double> d = deltas.get(i);
+            double value = Double.NaN;
+            if (!d.isEmpty()) {
+                switch (aggregation) {
+                    case NONE:
+                        value = d.stream().mapToDouble(Double::doubleValue).sum();
+                        break;
+                    case AVERAGE:
+                        value = d.stream().mapToDouble(Double::doubleValue).average().getAsDouble();
+                        break;
+                    case MIN:
+                        value = d.stream().mapToDouble(Double::doubleValue).min().getAsDouble();
+                        break;
+                    case MAX:
+                        value = d.stream().mapToDouble(Double::doubleValue).max().getAsDouble();
+                        break;
+                    default:
+                        throw new IllegalArgumentException();
+                }
+            }
+            result.set(geometry.getTime(i), value / STEP.getSeconds());
+        }
+        return result;
+    }
+}
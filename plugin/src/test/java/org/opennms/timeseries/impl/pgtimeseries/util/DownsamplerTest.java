@@ -0,0 +1,104 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.timeseries.impl.pgtimeseries.config.Downsampling;
+
+public class DownsamplerTest {
+
+    private static final long START = 1_700_000_000_000L;
+    private static final long END = START + 86_400_000L;
+    private static final Metric METRIC = ImmutableMetric.builder()
+            .intrinsicTag("name", "downsampled")
+            .build();
+
+    @Test
+    public void shouldKeepSpikesAndEnds() {
+        for (Downsampling downsampling : new Downsampling[]{Downsampling.M4, Downsampling.LTTB}) {
+            final Random random = new Random(42);
+            final Downsampler downsampler = Downsampler.create(downsampling, START, END, 100);
+            double value = 100;
+            long first = -1;
+            long last = -1;
+            for (long time = START + 1_000; time < END; time += 10_000) {
+                value += random.nextGaussian();
+                if (time == START + 43_201_000L) {
+                    downsampler.add(time, 10_000);
+                } else if (time == START + 64_801_000L) {
+                    downsampler.add(time, -10_000);
+                } else {
+                    downsampler.add(time, value);
+                }
+                first = first < 0 ? time : first;
+                last = time;
+            }
+            final List<Sample> samples = downsampler.toSamples(METRIC);
+
+            assertTrue(downsampling + " returned " + samples.size(), samples.size() <= 100 && samples.size() >= 90);
+            assertEquals(first, samples.get(0).getTime().toEpochMilli());
+            assertEquals(last, samples.get(samples.size() - 1).getTime().toEpochMilli());
+            assertTrue(samples.stream().anyMatch(s -> s.getValue() == 10_000));
+            assertTrue(samples.stream().anyMatch(s -> s.getValue() == -10_000));
+            for (int i = 1; i < samples.size(); i++) {
+                assertTrue(samples.get(i - 1).getTime().isBefore(samples.get(i).getTime()));
+            }
+        }
+    }
+
+    @Test
+    public void shouldKeepTheMinimumAndMaximumOfEachColumn() {
+        final Random random = new Random(7);
+        final Downsampler downsampler = Downsampler.create(Downsampling.M4, START, END, 40);
+        final double[] min = new double[10];
+        final double[] max = new double[10];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        for (long time = START; time < END; time += 60_000) {
+            final double value = random.nextDouble();
+            final int column = (int) ((time - START) * 10 / (END - START + 1));
+            min[column] = Math.min(min[column], value);
+            max[column] = Math.max(max[column], value);
+            downsampler.add(time, value);
+        }
+        final List<Sample> samples = downsampler.toSamples(METRIC);
+
+        assertEquals(40, samples.size());
+        for (int column = 0; column < 10; column++) {
+            final double columnMin = min[column];
+            final double columnMax = max[column];
+            assertTrue(samples.stream().anyMatch(s -> s.getValue() == columnMin));
+            assertTrue(samples.stream().anyMatch(s -> s.getValue() == columnMax));
+        }
+    }
+
+    @Test
+    public void shouldReturnAllSamplesWhenThereAreFewer() {
+        for (Downsampling downsampling : new Downsampling[]{Downsampling.M4, Downsampling.LTTB}) {
+            final Downsampler downsampler = Downsampler.create(downsampling, START, END, 1000);
+            downsampler.add(START + 1_000, 1);
+            downsampler.add(START + 2_000, Double.NaN);
+            downsampler.add(END - 1_000, 3);
+            final List<Sample> samples = downsampler.toSamples(METRIC);
+
+            assertEquals(downsampling.name(), 2, samples.size());
+            assertEquals(1, samples.get(0).getValue(), 0);
+            assertEquals(3, samples.get(1).getValue(), 0);
+        }
+    }
+
+    @Test
+    public void shouldReturnNothingWithoutSamples() {
+        for (Downsampling downsampling : new Downsampling[]{Downsampling.M4, Downsampling.LTTB}) {
+            assertTrue(Downsampler.create(downsampling, START, END, 100).toSamples(METRIC).isEmpty());
+        }
+    }
+}
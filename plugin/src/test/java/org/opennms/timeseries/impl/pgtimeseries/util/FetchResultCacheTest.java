@@ -0,0 +1,128 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class FetchResultCacheTest {
+
+    /** A multiple of the step. */
+    private static final Instant START = Instant.ofEpochSecond(1_700_000_100L);
+    private static final Duration STEP = Duration.ofSeconds(300);
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final FetchResultCache cache = new FetchResultCache(PGTimeseriesConfig.builder()
+            .fetchCacheMaxBytes(1024 * 1024)
+            .fetchCacheSettleSeconds(300)
+            .build(), metrics);
+
+    @Test
+    public void shouldOnlyReuseSettledBuckets() {
+        TimeSeriesFetchRequest request = request("a");
+        TimeBuckets buckets = new TimeBuckets(START, START.plus(STEP.multipliedBy(3)), STEP);
+
+        // buckets 0 and 1 ended at least 300s before the fetch, 2 and 3 did not
+        cache.put(request, buckets, START.plus(STEP.multipliedBy(3)));
+        FetchResultCache.Entry entry = cache.get(request);
+        assertEquals(2, entry.getFirstOpenIndex());
+        assertFalse(entry.isComplete());
+        assertEquals(1, metrics.meter("fetchCachePartialHits").getCount());
+
+        cache.put(request, buckets, START.plus(STEP.multipliedBy(10)));
+        assertTrue(cache.get(request).isComplete());
+        assertEquals(1, metrics.meter("fetchCacheHits").getCount());
+    }
+
+    @Test
+    public void shouldNotCacheWithoutSettledBuckets() {
+        TimeSeriesFetchRequest request = request("a");
+        cache.put(request, new TimeBuckets(START, START.plus(STEP), STEP), START);
+        assertNull(cache.get(request));
+        assertEquals(1, metrics.meter("fetchCacheMisses").getCount());
+    }
+
+    @Test
+    public void shouldInvalidateByMetricKey() {
+        TimeSeriesFetchRequest a = request("a");
+        TimeSeriesFetchRequest b = request("b");
+        Instant fetchedAt = START.plus(STEP.multipliedBy(10));
+        cache.put(a, new TimeBuckets(START, a.getEnd(), STEP), fetchedAt);
+        cache.put(b, new TimeBuckets(START, b.getEnd(), STEP), fetchedAt);
+
+        cache.invalidate(a.getMetric().getKey());
+        assertNull(cache.get(a));
+        assertTrue(cache.get(b).isComplete());
+    }
+
+    @Test
+    public void shouldServeLaterRequestsFromTheSettledBuckets() {
+        // a range relative to now, which does not start at a multiple of the step
+        final TimeSeriesFetchRequest first = request("a", START.plusSeconds(17), START.plusSeconds(17).plus(STEP.multipliedBy(10)));
+        assertEquals(START, FetchResultCache.alignedStart(first));
+        final TimeBuckets buckets = new TimeBuckets(START, first.getEnd(), STEP);
+        for (int i = 0; i < buckets.size(); i++) {
+            buckets.set(buckets.getTime(i), i);
+        }
+        // buckets 0 to 8 ended at least 300s before the fetch
+        cache.put(first, buckets, first.getEnd());
+
+        // the same range a little later, in the same step
+        final TimeSeriesFetchRequest later = request("a", START.plusSeconds(117), START.plusSeconds(117).plus(STEP.multipliedBy(10)));
+        FetchResultCache.Entry entry = cache.get(later);
+        assertEquals(9, entry.getFirstOpenIndex());
+        assertEquals(START.toEpochMilli(), entry.getBuckets().getTime(0));
+        for (int i = 0; i < 9; i++) {
+            assertEquals(i, entry.getBuckets().getValue(i), 0);
+        }
+        // the open buckets are not taken from the cache
+        assertTrue(Double.isNaN(entry.getBuckets().getValue(9)));
+        assertTrue(Double.isNaN(entry.getBuckets().getValue(10)));
+
+        // two steps later the range starts at the third bucket
+        final TimeSeriesFetchRequest next = request("a", START.plus(STEP.multipliedBy(2)), START.plus(STEP.multipliedBy(12)));
+        entry = cache.get(next);
+        assertEquals(7, entry.getFirstOpenIndex());
+        assertEquals(2, entry.getBuckets().getValue(0), 0);
+        assertEquals(2, metrics.meter("fetchCachePartialHits").getCount());
+    }
+
+    @Test
+    public void shouldMissRequestsStartingBeforeTheCachedBuckets() {
+        final TimeSeriesFetchRequest request = request("a");
+        cache.put(request, new TimeBuckets(START, request.getEnd(), STEP), START.plus(STEP.multipliedBy(10)));
+
+        assertNull(cache.get(request("a", START.minus(STEP), request.getEnd())));
+        assertEquals(1, metrics.meter("fetchCacheMisses").getCount());
+    }
+
+    private static TimeSeriesFetchRequest request(final String name) {
+        return request(name, START, START.plus(STEP.multipliedBy(3)));
+    }
+
+    private static TimeSeriesFetchRequest request(final String name, final Instant start, final Instant end) {
+        return ImmutableTimeSeriesFetchRequest.builder()
+                .metric(ImmutableMetric.builder()
+                        .intrinsicTag(IntrinsicTagNames.name, name)
+                        .intrinsicTag(IntrinsicTagNames.resourceId, "r")
+                        .build())
+                .start(start)
+                .end(end)
+                .step(STEP)
+                .aggregation(Aggregation.AVERAGE)
+                .build();
+    }
+}
@@ -0,0 +1,115 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+
+public class FetchStatementsTest {
+
+    private static final Timestamp START = new Timestamp(1_700_000_000_000L);
+    private static final Timestamp FROM = new Timestamp(1_700_000_600_000L);
+    private static final Timestamp END = new Timestamp(1_700_001_200_000L);
+
+    private final FetchStatements statements = new FetchStatements("key");
+
+    @Test
+    public void shouldBindEveryParameter() throws Exception {
+        for (boolean partial : new boolean[]{false, true}) {
+            for (Aggregation aggregation : Aggregation.values()) {
+                String sql = statements.get(aggregation, partial);
+                assertFalse(sql, sql.contains("'"));
+                Set<Integer> bound = new HashSet<>();
+                FetchStatements.bind(recording(bound), partial, "a", START, FROM, END, Duration.ofSeconds(300));
+                assertEquals(sql, placeholders(sql), bound.size());
+            }
+            String sql = statements.getRaw(partial);
+            Set<Integer> bound = new HashSet<>();
+            FetchStatements.bindRaw(recording(bound), partial, "a", START, FROM, END);
+            assertEquals(sql, placeholders(sql), bound.size());
+        }
+        Set<Integer> bound = new HashSet<>();
+        FetchStatements.bindBatch(recording(bound), null, START, END, Duration.ofSeconds(300));
+        assertEquals(placeholders(statements.getBatch()), bound.size());
+        bound.clear();
+        FetchStatements.bindCounterBatch(recording(bound), null, START, END);
+        assertEquals(placeholders(statements.getCounterBatch()), bound.size());
+    }
+
+    @Test
+    public void shouldBindEveryRollupParameter() throws Exception {
+        final RollupLevel level = RollupLevel.parse("1h:365d").get(0);
+        final FetchStatements statements = new FetchStatements("key", RollupLevel.parse("1h:365d"));
+        for (Aggregation aggregation : Aggregation.values()) {
+            String sql = statements.getRollup(level, aggregation);
+            Set<Integer> bound = new HashSet<>();
+            FetchStatements.bindRollup(recording(bound), level, "a", START, FROM, END, Duration.ofSeconds(3600));
+            assertEquals(sql, placeholders(sql), bound.size());
+        }
+        String sql = statements.getCounterRollup(level);
+        Set<Integer> bound = new HashSet<>();
+        FetchStatements.bindCounterRollup(recording(bound), level, "a", START, FROM, END);
+        assertEquals(sql, placeholders(sql), bound.size());
+    }
+
+    @Test
+    public void shouldExcludeTheStartFromRollupFetchesLikeFromRawFetches() throws Exception {
+        final RollupLevel level = RollupLevel.parse("1m:1d").get(0);
+        final String sql = new FetchStatements("key", RollupLevel.parse("1m:1d")).getCounterRollup(level);
+        assertFalse(sql, sql.contains(">="));
+        final Map<Integer, Object> bound = new HashMap<>();
+        FetchStatements.bindCounterRollup(values(bound), level, "a", START, FROM, END);
+        // rollup rows after the start up to the watermark
+        assertEquals(START, bound.get(2));
+        assertEquals(FROM, bound.get(3));
+        // raw samples after the start up to the first rollup window, START is 20s into a minute
+        assertEquals(START, bound.get(5));
+        assertEquals(new Timestamp(1_700_000_040_000L), bound.get(6));
+        // raw samples from the watermark on
+        assertEquals(START, bound.get(8));
+        assertEquals(FROM.toInstant().minusNanos(1000), ((Timestamp) bound.get(9)).toInstant());
+        assertEquals(END, bound.get(10));
+    }
+
+    @Test
+    public void shouldReuseStatementText() {
+        // the same request shape must always produce the same text, otherwise it can not be prepared once
+        assertEquals(statements.get(Aggregation.AVERAGE, false), new FetchStatements("key").get(Aggregation.AVERAGE, false));
+    }
+
+    /** A statement which only records the indexes of the parameters set on it. */
+    private static PreparedStatement recording(final Set<Integer> bound) {
+        return (PreparedStatement) Proxy.newProxyInstance(FetchStatementsTest.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                    if (method.getName().startsWith("set") && args != null && args.length == 2) {
+                        bound.add((Integer) args[0]);
+                    }
+                    return null;
+                });
+    }
+
+    /** A statement which records the values of the parameters set on it by index. */
+    private static PreparedStatement values(final Map<Integer, Object> bound) {
+        return (PreparedStatement) Proxy.newProxyInstance(FetchStatementsTest.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                    if (method.getName().startsWith("set") && args != null && args.length == 2) {
+                        bound.put((Integer) args[0], args[1]);
+                    }
+                    return null;
+                });
+    }
+
+    private static int placeholders(final String sql) {
+        return (int) sql.chars().filter(c -> c == '?').count();
+    }
+}
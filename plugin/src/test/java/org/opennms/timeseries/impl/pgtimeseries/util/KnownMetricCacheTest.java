@@ -0,0 +1,58 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class KnownMetricCacheTest {
+
+    private final KnownMetricCache cache = new KnownMetricCache(PGTimeseriesConfig.builder()
+            .knownMetricCacheSize(100)
+            .build(), new MetricRegistry());
+
+    @Test
+    public void shouldKnowMetricsWithTheSameTags() {
+        final Metric metric = metric("value");
+        assertFalse(cache.isKnown(metric));
+        cache.markKnown(metric);
+        assertTrue(cache.isKnown(metric("value")));
+
+        cache.invalidate(metric.getKey());
+        assertFalse(cache.isKnown(metric));
+    }
+
+    @Test
+    public void shouldNotKnowMetricsWhoseTagsChanged() {
+        cache.markKnown(metric("value"));
+        assertFalse(cache.isKnown(metric("other")));
+    }
+
+    @Test
+    public void shouldNotKnowMetricsWhoseTagsHaveTheSameHash() {
+        // "Aa" and "BB" have the same String hash code
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        final Metric aa = metric("Aa");
+        final Metric bb = metric("BB");
+        assertEquals(aa.getKey(), bb.getKey());
+        assertEquals(aa.getMetaTags().hashCode(), bb.getMetaTags().hashCode());
+
+        cache.markKnown(aa);
+        assertFalse(cache.isKnown(bb));
+    }
+
+    private static Metric metric(final String metaValue) {
+        return ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, "known")
+                .intrinsicTag(IntrinsicTagNames.name, "metric")
+                .metaTag("meta", metaValue)
+                .build();
+    }
+}
@@ -0,0 +1,28 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MetricDeleterTest {
+
+    @Test
+    public void shouldDeleteAllSamplesOfTheSeries() {
+        assertEquals("DELETE FROM pgtimeseries_time_series_p20240101 WHERE key = ANY( ? )",
+                MetricDeleter.deleteSql("pgtimeseries_time_series_p20240101", "key", false));
+        assertEquals("DELETE FROM pgtimeseries_rollup_1h WHERE metric_id = ANY( ? )",
+                MetricDeleter.deleteSql("pgtimeseries_rollup_1h", "metric_id", false));
+    }
+
+    @Test
+    public void shouldOnlyPurgeSamplesUpToTheDeletion() {
+        assertEquals("DELETE FROM pgtimeseries_time_series_p20240101 s "
+                        + "USING pgtimeseries_tombstone t "
+                        + "WHERE s.key = t.key AND s.time <= t.deleted_at AND t.key = ANY( ? )",
+                MetricDeleter.deleteSql("pgtimeseries_time_series_p20240101", "key", true));
+        assertEquals("DELETE FROM pgtimeseries_time_series_p20240101 s "
+                        + "USING pgtimeseries_tombstone t JOIN pgtimeseries_metric m ON m.key = t.key "
+                        + "WHERE s.metric_id = m.id AND s.time <= t.deleted_at AND t.key = ANY( ? )",
+                MetricDeleter.deleteSql("pgtimeseries_time_series_p20240101", "metric_id", true));
+    }
+}
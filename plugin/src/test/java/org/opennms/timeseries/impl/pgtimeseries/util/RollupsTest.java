@@ -0,0 +1,110 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+public class RollupsTest {
+
+    private static final Instant NOW = Instant.parse("2024-06-01T12:00:00Z");
+
+    @Test
+    public void shouldParseLevels() {
+        List<RollupLevel> levels = RollupLevel.parse(" 1d:3650d, 5m:90d,1h:365d ");
+        assertEquals(3, levels.size());
+        assertEquals("5m", levels.get(0).getName());
+        assertEquals(Duration.ofMinutes(5), levels.get(0).getResolution());
+        assertEquals(Duration.ofDays(90), levels.get(0).getRetention());
+        assertEquals("pgtimeseries_rollup_1h", levels.get(1).getTable());
+        assertEquals("86400 seconds", levels.get(2).getResolutionInterval());
+        assertEquals(0, RollupLevel.parse("").size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidDuration() {
+        RollupLevel.parse("5x:90d");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectDuplicateResolution() {
+        RollupLevel.parse("60m:90d,1h:365d");
+    }
+
+    @Test
+    public void shouldChooseCoarsestPopulatedLevel() {
+        Rollups rollups = new Rollups(PGTimeseriesConfig.builder().rollupLevels("5m:90d,1h:365d,1d:3650d").build(), "key");
+        List<RollupLevel> levels = rollups.getLevels();
+        rollups.setWatermark(levels.get(0), NOW.minus(Duration.ofMinutes(10)));
+        rollups.setWatermark(levels.get(1), NOW.minus(Duration.ofHours(2)));
+        rollups.setWatermark(levels.get(2), NOW.minus(Duration.ofDays(1)));
+
+        // one day steps over a year: the daily rollup
+        assertEquals(levels.get(2), rollups.choose(request(Duration.ofDays(300), Duration.ofDays(1), Aggregation.AVERAGE), false, NOW));
+        // two hour steps are not a multiple of a day
+        assertEquals(levels.get(1), rollups.choose(request(Duration.ofDays(30), Duration.ofHours(2), Aggregation.AVERAGE), false, NOW));
+        // longer ago than the retention of 5m, the step is too small for the others
+        assertNull(rollups.choose(request(Duration.ofDays(100), Duration.ofMinutes(5), Aggregation.AVERAGE), false, NOW));
+        // steps smaller than every resolution
+        assertNull(rollups.choose(request(Duration.ofDays(1), Duration.ofMinutes(1), Aggregation.AVERAGE), false, NOW));
+        // counters keep no single increases for MIN and MAX
+        assertNull(rollups.choose(request(Duration.ofDays(300), Duration.ofDays(1), Aggregation.MAX), true, NOW));
+        assertEquals(levels.get(2), rollups.choose(request(Duration.ofDays(300), Duration.ofDays(1), Aggregation.NONE), true, NOW));
+        // the 1h rollup does not reach into the last hour
+        assertEquals(levels.get(0), rollups.choose(request(Duration.ofMinutes(30), Duration.ofHours(1), Aggregation.AVERAGE), false, NOW));
+    }
+
+    @Test
+    public void shouldNotMoveWatermarkBackwards() {
+        Rollups rollups = new Rollups(PGTimeseriesConfig.builder().rollupLevels("1h:365d").build(), "key");
+        RollupLevel level = rollups.getLevels().get(0);
+        rollups.setWatermark(level, NOW);
+        rollups.setWatermark(level, NOW.minus(Duration.ofHours(1)));
+        assertEquals(NOW, rollups.getWatermark(level));
+    }
+
+    @Test
+    public void shouldOnlyBindBoundsOfKeyRange() {
+        RollupLevel level = RollupLevel.parse("1h:365d").get(0);
+        assertEquals(3, placeholders(Rollups.rollupSql(level, "key", new Rollups.KeyRange(null, null))));
+        assertEquals(4, placeholders(Rollups.rollupSql(level, "key", new Rollups.KeyRange("m", null))));
+        assertEquals(4, placeholders(Rollups.rollupSql(level, "key", new Rollups.KeyRange(null, "m"))));
+        String sql = Rollups.rollupSql(level, "metric_id", new Rollups.KeyRange(10L, 20L));
+        assertEquals(5, placeholders(sql));
+        assertTrue(sql, sql.contains("AND metric_id >= ? AND metric_id < ?"));
+    }
+
+    @Test
+    public void shouldAlignToEpoch() {
+        assertEquals(Instant.parse("2024-06-01T11:00:00Z"), Rollups.align(Instant.parse("2024-06-01T11:59:59Z"), Duration.ofHours(1)));
+        assertEquals(Instant.parse("2024-06-01T00:00:00Z"), Rollups.align(Instant.parse("2024-06-01T11:59:59Z"), Duration.ofDays(1)));
+    }
+
+    private static TimeSeriesFetchRequest request(final Duration range, final Duration step, final Aggregation aggregation) {
+        return ImmutableTimeSeriesFetchRequest.builder()
+                .metric(ImmutableMetric.builder()
+                        .intrinsicTag(IntrinsicTagNames.name, "a")
+                        .intrinsicTag(IntrinsicTagNames.resourceId, "r")
+                        .build())
+                .start(NOW.minus(range))
+                .end(NOW)
+                .step(step)
+                .aggregation(aggregation)
+                .build();
+    }
+
+    private static int placeholders(final String sql) {
+        return (int) sql.chars().filter(c -> c == '?').count();
+    }
+}
@@ -0,0 +1,62 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+public class SampleShardsTest {
+
+    @Test
+    public void shouldKeepMetricsInOneShardInOrder() {
+        List<Sample> samples = new ArrayList<>();
+        for (int t = 0; t < 10; t++) {
+            for (int m = 0; m < 20; m++) {
+                samples.add(ImmutableSample.builder()
+                        .metric(metric("m" + m))
+                        .time(Instant.ofEpochSecond(t))
+                        .value((double) t)
+                        .build());
+            }
+        }
+
+        List<List<Sample>> shards = SampleShards.byMetric(samples, 4);
+
+        assertEquals(4, shards.size());
+        assertEquals(samples.size(), shards.stream().mapToInt(List::size).sum());
+        Set<String> seen = new HashSet<>();
+        for (List<Sample> shard : shards) {
+            Set<String> keys = new HashSet<>();
+            Instant[] last = new Instant[20];
+            for (Sample sample : shard) {
+                keys.add(sample.getMetric().getKey());
+                int m = Integer.parseInt(sample.getMetric().getFirstTagByKey(IntrinsicTagNames.name).getValue().substring(1));
+                if (last[m] != null) {
+                    assertEquals(last[m].plusSeconds(1), sample.getTime());
+                }
+                last[m] = sample.getTime();
+            }
+            for (String key : keys) {
+                assertEquals("metric in more than one shard", true, seen.add(key));
+            }
+        }
+        assertEquals(20, seen.size());
+    }
+
+    private static Metric metric(final String name) {
+        return ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, name)
+                .intrinsicTag(IntrinsicTagNames.resourceId, "r")
+                .build();
+    }
+}
@@ -0,0 +1,74 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TagBatchTest {
+
+    @Test
+    public void shouldWriteTheRowsSorted() throws Exception {
+        final TagBatch batch = new TagBatch();
+        batch.add(ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, "b")
+                .intrinsicTag(IntrinsicTagNames.name, "z")
+                .metaTag("mtype", "gauge")
+                .build());
+        batch.add(ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, "a")
+                .intrinsicTag(IntrinsicTagNames.name, "y")
+                .externalTag("host", "x")
+                .build());
+        // added again, only written once
+        batch.add(ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, "a")
+                .intrinsicTag(IntrinsicTagNames.name, "y")
+                .build());
+        assertEquals(6, batch.size());
+        assertEquals(2, batch.getDuplicates());
+
+        final List<Object[]> arrays = new ArrayList<>();
+        batch.write(recording(arrays), new StatementStats(PGTimeseriesConfig.builder().build(), new MetricRegistry()));
+
+        final String a = "name=y_resourceId=a";
+        final String b = "name=z_resourceId=b";
+        assertArrayEquals(new Object[]{a, a, a, b, b, b}, arrays.get(0));
+        assertArrayEquals(new Object[]{"host", "name", "resourceId", "mtype", "name", "resourceId"}, arrays.get(1));
+        assertArrayEquals(new Object[]{"x", "y", "a", "gauge", "z", "b"}, arrays.get(2));
+        assertArrayEquals(new Object[]{"external", "intrinsic", "intrinsic", "meta", "intrinsic", "intrinsic"}, arrays.get(3));
+    }
+
+    /** A connection which records the elements of the arrays created on it and executes nothing. */
+    private static Connection recording(final List<Object[]> arrays) {
+        return (Connection) Proxy.newProxyInstance(TagBatchTest.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("createArrayOf")) {
+                        arrays.add((Object[]) args[1]);
+                    } else if (method.getName().equals("prepareStatement")) {
+                        return Proxy.newProxyInstance(TagBatchTest.class.getClassLoader(),
+                                new Class<?>[]{PreparedStatement.class}, (statement, m, a) -> defaultValue(m));
+                    }
+                    return defaultValue(method);
+                });
+    }
+
+    private static Object defaultValue(final Method method) {
+        if (method.getReturnType() == boolean.class) {
+            return false;
+        }
+        return method.getReturnType() == int.class ? 0 : null;
+    }
+}
@@ -0,0 +1,105 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TagIndexTest {
+
+    private final TagIndex index = new TagIndex(new MetricRegistry());
+
+    @Test
+    public void shouldMatchLikeTheTagQuery() throws Exception {
+        index.add(metric("ifInOctets", "snmp/1/eth0", "a"));
+        index.add(metric("ifOutOctets", "snmp/1/eth0", "b"));
+        index.add(metric("ifInOctets", "snmp/2/eth0", "a"));
+
+        assertEquals(Arrays.asList("ifInOctets/snmp/1/eth0", "ifInOctets/snmp/2/eth0"),
+                find(matcher(TagMatcher.Type.EQUALS, IntrinsicTagNames.name, "ifInOctets")));
+        assertEquals(Collections.singletonList("ifInOctets/snmp/2/eth0"),
+                find(matcher(TagMatcher.Type.EQUALS, IntrinsicTagNames.name, "ifInOctets"),
+                        matcher(TagMatcher.Type.EQUALS_REGEX, IntrinsicTagNames.resourceId, "/2/")));
+        assertEquals(Collections.singletonList("ifOutOctets/snmp/1/eth0"),
+                find(matcher(TagMatcher.Type.NOT_EQUALS, "group", "a")));
+        assertEquals(Collections.singletonList("ifOutOctets/snmp/1/eth0"),
+                find(matcher(TagMatcher.Type.NOT_EQUALS_REGEX, IntrinsicTagNames.name, "^ifIn")));
+        assertTrue(find(matcher(TagMatcher.Type.EQUALS, "unknown", "x")).isEmpty());
+    }
+
+    @Test
+    public void shouldMergeTagsAndRemoveMetrics() throws Exception {
+        index.add(metric("ifInOctets", "snmp/1/eth0", "a"));
+        index.add(metric("ifInOctets", "snmp/1/eth0", "b"));
+
+        assertEquals(1, index.size());
+        assertEquals(Collections.singletonList("ifInOctets/snmp/1/eth0"), find(matcher(TagMatcher.Type.EQUALS, "group", "a")));
+        assertEquals(Collections.singletonList("ifInOctets/snmp/1/eth0"), find(matcher(TagMatcher.Type.EQUALS, "group", "b")));
+
+        index.remove(metric("ifInOctets", "snmp/1/eth0", "a").getKey());
+        assertEquals(0, index.size());
+        assertTrue(find(matcher(TagMatcher.Type.EQUALS, "group", "a")).isEmpty());
+
+        // the freed ordinal is reused without leaking the old tags
+        index.add(metric("ifOutOctets", "snmp/1/eth0", "c"));
+        assertTrue(find(matcher(TagMatcher.Type.EQUALS, "group", "b")).isEmpty());
+        assertEquals(1, find(matcher(TagMatcher.Type.EQUALS, "group", "c")).size());
+    }
+
+    @Test
+    public void shouldRejectInvalidRegularExpressions() {
+        index.add(metric("ifInOctets", "snmp/1/eth0", "a"));
+        try {
+            find(matcher(TagMatcher.Type.EQUALS_REGEX, IntrinsicTagNames.name, "ifIn("));
+            fail("an invalid regular expression should fail");
+        } catch (StorageException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldReplaceAllMetrics() throws Exception {
+        index.add(metric("ifInOctets", "snmp/1/eth0", "a"));
+        index.remove(metric("ifInOctets", "snmp/1/eth0", "a").getKey());
+        index.add(metric("ifOutOctets", "snmp/1/eth0", "b"));
+
+        // e.g. reloaded with the metric another instance wrote
+        index.replaceAll(Arrays.asList(metric("ifInOctets", "snmp/2/eth0", "a"), metric("ifOutOctets", "snmp/2/eth0", "b")));
+        assertEquals(2, index.size());
+        assertEquals(Arrays.asList("ifInOctets/snmp/2/eth0", "ifOutOctets/snmp/2/eth0"),
+                find(matcher(TagMatcher.Type.EQUALS_REGEX, IntrinsicTagNames.resourceId, "snmp")));
+    }
+
+    private List<String> find(final TagMatcher... matchers) throws StorageException {
+        return index.find(Arrays.asList(matchers)).stream()
+                .map(m -> m.getFirstTagByKey(IntrinsicTagNames.name).getValue() + "/" + m.getFirstTagByKey(IntrinsicTagNames.resourceId).getValue())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private static Metric metric(final String name, final String resourceId, final String group) {
+        return ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, name)
+                .intrinsicTag(IntrinsicTagNames.resourceId, resourceId)
+                .metaTag("group", group)
+                .build();
+    }
+
+    private static TagMatcher matcher(final TagMatcher.Type type, final String key, final String value) {
+        return ImmutableTagMatcher.builder().type(type).key(key).value(value).build();
+    }
+}
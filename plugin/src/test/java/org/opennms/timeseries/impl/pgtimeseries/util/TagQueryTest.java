@@ -0,0 +1,64 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+
+public class TagQueryTest {
+
+    @Test
+    public void shouldBindMatchersOrderedBySelectivity() {
+        TagQuery query = TagQuery.compile(Arrays.asList(
+                matcher(TagMatcher.Type.NOT_EQUALS_REGEX, "name", "^ifIn.*"),
+                matcher(TagMatcher.Type.EQUALS_REGEX, "resourceId", "snmp/1/.*"),
+                matcher(TagMatcher.Type.EQUALS, "mtype", "x'; DROP TABLE pgtimeseries_tag; --")));
+
+        assertEquals(Arrays.asList(
+                "mtype", "x'; DROP TABLE pgtimeseries_tag; --",
+                "resourceId", "snmp/1/.*",
+                "name", "^ifIn.*"), query.getParameters());
+        assertEquals("SELECT DISTINCT t0.fk_pgtimeseries_metric FROM pgtimeseries_tag t0 WHERE t0.key = ? AND t0.value = ?"
+                + " AND EXISTS ( SELECT 1 FROM pgtimeseries_tag t1 WHERE t1.fk_pgtimeseries_metric = t0.fk_pgtimeseries_metric AND t1.key = ? AND t1.value ~ ? )"
+                + " AND EXISTS ( SELECT 1 FROM pgtimeseries_tag t2 WHERE t2.fk_pgtimeseries_metric = t0.fk_pgtimeseries_metric AND t2.key = ? AND t2.value !~ ? )",
+                query.getSql());
+        assertFalse(query.getSql().contains("'"));
+    }
+
+    @Test
+    public void shouldRangeScanAnchoredRegex() {
+        TagQuery query = TagQuery.compile(Arrays.asList(
+                matcher(TagMatcher.Type.EQUALS_REGEX, "resourceId", "^snmp/1/.*")));
+
+        assertEquals("SELECT DISTINCT t0.fk_pgtimeseries_metric FROM pgtimeseries_tag t0 WHERE t0.key = ? AND t0.value ~ ?"
+                + " AND t0.value ~>=~ ? AND t0.value ~<~ ?", query.getSql());
+        assertEquals(Arrays.asList("resourceId", "^snmp/1/.*", "snmp/1/", "snmp/10"), query.getParameters());
+    }
+
+    @Test
+    public void shouldExtractLiteralPrefix() {
+        assertEquals("snmp/1/", TagQuery.literalPrefix("^snmp/1/.*"));
+        assertEquals("node.example.", TagQuery.literalPrefix("^node\\.example\\.(com|org)"));
+        assertEquals("ab", TagQuery.literalPrefix("^abc?d"));
+        assertEquals("abc", TagQuery.literalPrefix("^abc+"));
+        assertEquals("a", TagQuery.literalPrefix("^a\\d"));
+        assertEquals("", TagQuery.literalPrefix("snmp/1/.*"));
+        assertEquals("", TagQuery.literalPrefix("^abc|def"));
+        assertEquals("", TagQuery.literalPrefix("^(abc)|def"));
+        assertEquals("abc", TagQuery.literalPrefix("^abc[|]"));
+        assertEquals("", TagQuery.literalPrefix("^(?i)abc"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectEmptyMatchers() {
+        TagQuery.compile(Arrays.asList());
+    }
+
+    private static TagMatcher matcher(final TagMatcher.Type type, final String key, final String value) {
+        return ImmutableTagMatcher.builder().type(type).key(key).value(value).build();
+    }
+}
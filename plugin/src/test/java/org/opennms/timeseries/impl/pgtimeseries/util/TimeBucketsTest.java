@@ -0,0 +1,39 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.Test;
+
+public class TimeBucketsTest {
+
+    private static final Instant START = Instant.ofEpochSecond(1_700_000_000L);
+
+    @Test
+    public void shouldCreateBucketsLikeGenerateSeries() {
+        // generate_series includes end when it falls on a step
+        assertEquals(5, new TimeBuckets(START, START.plusSeconds(4 * 300), Duration.ofSeconds(300)).size());
+        assertEquals(4, new TimeBuckets(START, START.plusSeconds(4 * 300 - 1), Duration.ofSeconds(300)).size());
+        assertEquals(1, new TimeBuckets(START, START, Duration.ofSeconds(300)).size());
+        assertEquals(0, new TimeBuckets(START, START.minusSeconds(1), Duration.ofSeconds(300)).size());
+    }
+
+    @Test
+    public void shouldFillGapsWithNaN() {
+        TimeBuckets buckets = new TimeBuckets(START, START.plusSeconds(900), Duration.ofSeconds(300));
+        buckets.set(START.plusSeconds(300).toEpochMilli(), 42.0);
+        buckets.set(START.minusSeconds(1).toEpochMilli(), 1.0);
+        buckets.set(START.plusSeconds(1200).toEpochMilli(), 1.0);
+
+        assertEquals(4, buckets.size());
+        assertTrue(Double.isNaN(buckets.getValue(0)));
+        assertEquals(42.0, buckets.getValue(1), 0.0);
+        assertTrue(Double.isNaN(buckets.getValue(2)));
+        assertTrue(Double.isNaN(buckets.getValue(3)));
+        assertEquals(START.plusSeconds(600).toEpochMilli(), buckets.getTime(2));
+        assertEquals(1, buckets.indexOf(START.plusSeconds(599).toEpochMilli()));
+    }
+}
@@ -0,0 +1,251 @@
+package org.opennms.timeseries.impl.pgtimeseries.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.timeseries.impl.pgtimeseries.config.PGTimeseriesConfig;
+import org.opennms.timeseries.impl.pgtimeseries.config.QueueFullPolicy;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+public class WriteBehindQueueTest {
+
+    private final Meter samplesLost = new Meter();
+    private final AtomicInteger flushed = new AtomicInteger();
+    /** Counted down by the flusher once it holds a batch, it then waits for release. */
+    private final CountDownLatch flushing = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private WriteBehindQueue queue;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (queue != null) {
+            queue.stop();
+        }
+    }
+
+    @Test
+    public void shouldDropSamplesWhichDoNotFitWithDropPolicy() throws Exception {
+        queue = blockedQueue(QueueFullPolicy.DROP);
+        queue.enqueue(samples(1));
+        assertTrue(flushing.await(10, TimeUnit.SECONDS));
+
+        // the flusher holds the first sample, two fit into the queue
+        queue.enqueue(samples(5));
+        assertEquals(3, samplesLost.getCount());
+
+        release.countDown();
+        queue.stop();
+        assertEquals(3, flushed.get());
+        assertEquals(3, samplesLost.getCount());
+    }
+
+    @Test
+    public void shouldWaitForRoomWithBlockPolicy() throws Exception {
+        queue = blockedQueue(QueueFullPolicy.BLOCK);
+        queue.enqueue(samples(1));
+        assertTrue(flushing.await(10, TimeUnit.SECONDS));
+
+        final Thread caller = new Thread(() -> {
+            try {
+                queue.enqueue(samples(5));
+            } catch (StorageException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        caller.start();
+        caller.join(200);
+        assertTrue("enqueue should block while the queue is full", caller.isAlive());
+
+        release.countDown();
+        caller.join(10_000);
+        queue.stop();
+        assertEquals(6, flushed.get());
+        assertEquals(0, samplesLost.getCount());
+    }
+
+    @Test
+    public void shouldDrainTheQueueOnStop() throws Exception {
+        queue = new WriteBehindQueue(config(1000, QueueFullPolicy.BLOCK, 10),
+                samples -> flushed.addAndGet(samples.size()), new MetricRegistry(), samplesLost);
+        queue.start();
+        queue.enqueue(samples(100));
+        queue.stop();
+
+        assertEquals(100, flushed.get());
+        assertEquals(0, samplesLost.getCount());
+    }
+
+    @Test
+    public void shouldRejectSamplesAfterStop() throws Exception {
+        queue = new WriteBehindQueue(config(10, QueueFullPolicy.BLOCK, 10),
+                samples -> flushed.addAndGet(samples.size()), new MetricRegistry(), samplesLost);
+        queue.start();
+        queue.stop();
+        try {
+            queue.enqueue(samples(1));
+            fail("enqueue after stop should fail");
+        } catch (StorageException e) {
+            // expected
+        }
+        assertEquals(0, flushed.get());
+    }
+
+    @Test
+    public void shouldGiveUpWaitingForRoomOnStop() throws Exception {
+        queue = blockedQueue(QueueFullPolicy.BLOCK);
+        queue.enqueue(samples(1));
+        assertTrue(flushing.await(10, TimeUnit.SECONDS));
+
+        final Thread caller = new Thread(() -> {
+            try {
+                queue.enqueue(samples(5));
+            } catch (StorageException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        caller.start();
+        caller.join(200);
+        assertTrue("enqueue should block while the queue is full", caller.isAlive());
+
+        final Thread stopper = new Thread(queue::stop);
+        stopper.start();
+        caller.join(10_000);
+        assertFalse("enqueue should return once the queue is stopped", caller.isAlive());
+        // two samples made it into the queue, the other three were rejected
+        assertEquals(3, samplesLost.getCount());
+
+        release.countDown();
+        stopper.join(10_000);
+        assertEquals(3, flushed.get());
+        assertEquals(3, samplesLost.getCount());
+    }
+
+    @Test
+    public void shouldKeepTheOrderOfTheSamplesOfAMetric() throws Exception {
+        final Map<String, List<Instant>> times = new ConcurrentHashMap<>();
+        queue = new WriteBehindQueue(PGTimeseriesConfig.builder()
+                .writeQueueSize(1000)
+                .writeThreads(4)
+                .writeFlushSize(3)
+                .writeFlushIntervalMs(10)
+                .build(), samples -> samples.forEach(sample -> times
+                        .computeIfAbsent(sample.getMetric().getKey(), key -> Collections.synchronizedList(new ArrayList<>()))
+                        .add(sample.getTime())), new MetricRegistry(), samplesLost);
+        queue.start();
+        for (int i = 0; i < 100; i++) {
+            queue.enqueue(samplesAt(10, 1_700_000_000L + i));
+        }
+        queue.stop();
+
+        assertEquals(10, times.size());
+        for (List<Instant> metricTimes : times.values()) {
+            assertEquals(100, metricTimes.size());
+            final List<Instant> sorted = new ArrayList<>(metricTimes);
+            Collections.sort(sorted);
+            assertEquals(sorted, metricTimes);
+        }
+    }
+
+    @Test
+    public void shouldCountTheSamplesLostByTheFlusher() throws Exception {
+        final AtomicInteger flushes = new AtomicInteger();
+        queue = new WriteBehindQueue(config(1000, QueueFullPolicy.BLOCK, 10), samples -> {
+            flushes.incrementAndGet();
+            // the first batches were written, the last sample was not
+            throw new SamplesLostException(1, new SQLException("connection lost"));
+        }, new MetricRegistry(), samplesLost);
+        queue.start();
+        queue.enqueue(samples(100));
+        queue.stop();
+
+        assertEquals(flushes.get(), samplesLost.getCount());
+    }
+
+    @Test
+    public void shouldCountAllSamplesOfAFailedFlushAsLost() throws Exception {
+        queue = new WriteBehindQueue(config(1000, QueueFullPolicy.BLOCK, 10), samples -> {
+            throw new StorageException("no connection");
+        }, new MetricRegistry(), samplesLost);
+        queue.start();
+        queue.enqueue(samples(100));
+        queue.stop();
+
+        assertEquals(100, samplesLost.getCount());
+    }
+
+    /** A queue with room for two samples whose single flusher blocks on the first sample until released. */
+    private WriteBehindQueue blockedQueue(final QueueFullPolicy policy) {
+        final WriteBehindQueue blocked = new WriteBehindQueue(config(2, policy, 1), samples -> {
+            flushing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flushed.addAndGet(samples.size());
+        }, new MetricRegistry(), samplesLost);
+        blocked.start();
+        return blocked;
+    }
+
+    private static PGTimeseriesConfig config(final int queueSize, final QueueFullPolicy policy, final int flushSize) {
+        return PGTimeseriesConfig.builder()
+                .writeQueueSize(queueSize)
+                .writeQueueFullPolicy(policy)
+                .writeThreads(1)
+                .writeFlushSize(flushSize)
+                .writeFlushIntervalMs(10)
+                .build();
+    }
+
+    private static List<Sample> samples(final int count) {
+        final List<Sample> samples = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            samples.add(sample(i, 1_700_000_000L + i));
+        }
+        return samples;
+    }
+
+    /** @return one sample of each of {@code count} metrics, all at the same time. */
+    private static List<Sample> samplesAt(final int count, final long epochSecond) {
+        final List<Sample> samples = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            samples.add(sample(i, epochSecond));
+        }
+        return samples;
+    }
+
+    private static Sample sample(final int metric, final long epochSecond) {
+        return ImmutableSample.builder()
+                .metric(ImmutableMetric.builder()
+                        .intrinsicTag(IntrinsicTagNames.resourceId, "queued")
+                        .intrinsicTag(IntrinsicTagNames.name, "sample" + metric)
+                        .build())
+                .time(Instant.ofEpochSecond(epochSecond))
+                .value((double) metric)
+                .build();
+    }
+}